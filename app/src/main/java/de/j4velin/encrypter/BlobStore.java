@@ -0,0 +1,147 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * The storage of the encrypted files.
+ * <p>
+ * Every encrypted file is named by an id allocated from the database, so creating a new file
+ * never has to probe the file system for a free name. The files are spread over 256
+ * sub-directories by the lowest byte of their id, so no directory grows too large.
+ * <p>
+ * Older versions stored the encrypted files directly in the root directory, named after the
+ * plaintext file. {@link #migrate} moves them into the new layout.
+ */
+class BlobStore {
+
+    private final static String DIRECTORY = "blobs";
+    private final static String EXTENSION = ".enc";
+
+    private static boolean migrated;
+
+    private BlobStore() {
+    }
+
+    /**
+     * Creates a new, empty file for an encrypted file. Waits for {@link #migrate} to complete,
+     * which might take long on the first start after an update, so this must not be called on
+     * the main thread
+     *
+     * @param context the context
+     * @return the new file
+     */
+    static synchronized java.io.File create(final Context context) throws IOException {
+        // ids allocated by an interrupted migration are reused, so it has to be completed first
+        migrate(context);
+        Database db = new Database(context);
+        try {
+            java.io.File file = getFile(context, db.allocateBlobId());
+            java.io.File shard = file.getParentFile();
+            if (!shard.isDirectory() && !shard.mkdirs()) {
+                throw new IOException("Can not create " + shard);
+            }
+            if (!file.createNewFile()) {
+                throw new IOException(file + " exists already");
+            }
+            return file;
+        } finally {
+            db.close();
+        }
+    }
+
+    /**
+     * @param context the context
+     * @param id      the id of the encrypted file
+     * @return the path of the encrypted file with the given id
+     */
+    private static java.io.File getFile(final Context context, final long id) {
+        java.io.File shard = new java.io.File(new java.io.File(getRoot(context), DIRECTORY),
+                String.format(Locale.US, "%02x", id & 0xff));
+        return new java.io.File(shard, Long.toHexString(id) + EXTENSION);
+    }
+
+    /**
+     * @param context the context
+     * @return the directory all encrypted files are stored in
+     */
+    static java.io.File getRoot(final Context context) {
+        java.io.File dir = context.getExternalFilesDir(null);
+        return dir != null ? dir : context.getFilesDir();
+    }
+
+    /**
+     * Moves all encrypted files, which are still stored directly in the root directory, into
+     * the sharded layout and updates their uris in the database.
+     * <p>
+     * Every file is moved in its own transaction, which only commits after the file has been
+     * renamed. If the process dies in between, the transaction is rolled back, so the next run
+     * allocates the same id again and finds the file already moved.
+     *
+     * @param context the context
+     * @return true, if any file has been moved
+     */
+    static synchronized boolean migrate(final Context context) {
+        if (migrated) {
+            return false;
+        }
+        java.io.File root = getRoot(context);
+        boolean moved = false;
+        Database database = new Database(context);
+        try {
+            for (Uri uri : database.getFileUris()) {
+                java.io.File flat = new java.io.File(uri.getPath());
+                if (!root.equals(flat.getParentFile())) {
+                    continue;
+                }
+                SQLiteDatabase db = database.getWritableDatabase();
+                db.beginTransaction();
+                try {
+                    java.io.File file = getFile(context, database.allocateBlobId());
+                    if (flat.exists()) {
+                        java.io.File shard = file.getParentFile();
+                        if (!shard.isDirectory() && !shard.mkdirs() || !flat.renameTo(file)) {
+                            throw new IOException("Can not move " + flat + " to " + file);
+                        }
+                        // the tree, if the file has been checked before
+                        MerkleTree.getTreeFile(flat).renameTo(MerkleTree.getTreeFile(file));
+                    } else if (!file.exists()) {
+                        // lost, nothing to move
+                        continue;
+                    }
+                    database.replaceUri(uri, Uri.fromFile(file));
+                    db.setTransactionSuccessful();
+                    moved = true;
+                } finally {
+                    db.endTransaction();
+                }
+            }
+            migrated = true;
+        } catch (IOException e) {
+            // retried on the next start
+            e.printStackTrace();
+        } finally {
+            database.close();
+        }
+        return moved;
+    }
+}
@@ -0,0 +1,393 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.content.AsyncTaskLoader;
+import android.util.LruCache;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The list of encrypted files matching a search, in a given order.
+ * <p>
+ * Only the ids of the files are queried up front. The rows are read by id in pages once they are
+ * actually needed, e.g. when they are bound to a view, and only a few pages are kept in memory.
+ * The main thread never reads a page: it gets placeholders, until the page has been read in the
+ * background and the {@link PageListener} is notified. As the rows are not read by their
+ * position in the query, the list stays valid when files are deleted.
+ * <p>
+ * Files removed from or added to the database after the query are tracked in this list, until
+ * the next query replaces it.
+ */
+class Catalog extends AbstractList<File> {
+
+    interface PageListener {
+        /**
+         * Called on the main thread, once rows, which have been returned as placeholders, are
+         * read
+         *
+         * @param index the index of the first row
+         * @param count the number of rows
+         */
+        void pageLoaded(final int index, final int count);
+    }
+
+    private final static int PAGE_SIZE = 64;
+    private final static int PAGES_CACHED = 16;
+    /**
+     * Reads the pages requested by the main thread, and closes the database after them
+     */
+    private final static ExecutorService PAGE_EXECUTOR = Executors.newSingleThreadExecutor();
+
+    private final Context context;
+    private final Database db;
+    /**
+     * The words searched for or null, if the catalog contains all files
+     */
+    final String query;
+    final CatalogSql.Order order;
+    /**
+     * The ids of all files of the query, in the order of the list
+     */
+    private final long[] ids;
+    /**
+     * The query positions of the removed files, in ascending order
+     */
+    private final List<Integer> removed = new ArrayList<>();
+    private final List<File> added = new ArrayList<>();
+    private final LruCache<Integer, File[]> pages = new LruCache<>(PAGES_CACHED);
+    /**
+     * The pages, which are being read in the background. Only accessed on the main thread
+     */
+    private final Set<Integer> loading = new HashSet<>();
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private PageListener listener;
+    private volatile boolean closed;
+
+    private Catalog(final Context context, final Database db, final String query, final CatalogSql.Order order,
+                    final long[] ids) {
+        this.context = context;
+        this.db = db;
+        this.query = query;
+        this.order = order;
+        this.ids = ids;
+    }
+
+    @Override
+    public File get(final int index) {
+        int rows = ids.length - removed.size();
+        if (index >= rows) {
+            return added.get(index - rows);
+        }
+        int position = getQueryPosition(index);
+        int page = position / PAGE_SIZE;
+        File[] files = pages.get(page);
+        if (files == null) {
+            if (Looper.myLooper() == Looper.getMainLooper()) {
+                loadPage(page);
+                return new File(ids[position], "", "", Uri.EMPTY, 0, true);
+            }
+            files = readPage(page);
+            pages.put(page, files);
+        }
+        File file = files[position % PAGE_SIZE];
+        if (file == null) {
+            // deleted elsewhere since the query, shown until the list is queried again
+            file = new File(ids[position], "", "", Uri.EMPTY, 0, true);
+        }
+        return file;
+    }
+
+    /**
+     * @param file a file of a catalog
+     * @return true, if the file is a placeholder for a row, which is not read yet or which has
+     * been deleted since the query
+     */
+    static boolean isPlaceholder(final File file) {
+        return Uri.EMPTY.equals(file.uri);
+    }
+
+    /**
+     * @param listener notified once the rows of a page are read, which have been returned as
+     *                 placeholders before
+     */
+    void setPageListener(final PageListener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public int size() {
+        return ids.length - removed.size() + added.size();
+    }
+
+    /**
+     * @return true, if files added to the database after the query belong at the end of this
+     * list, i.e. the list contains all files in the order they have been added
+     */
+    boolean acceptsNewFiles() {
+        return query == null && order == CatalogSql.Order.DATE;
+    }
+
+    @Override
+    public void add(final int index, final File file) {
+        if (index != size() || !acceptsNewFiles()) {
+            throw new UnsupportedOperationException("Files can only be appended to all files");
+        }
+        added.add(file);
+    }
+
+    @Override
+    public File remove(final int index) {
+        int rows = ids.length - removed.size();
+        if (index >= rows) {
+            return added.remove(index - rows);
+        }
+        File file = get(index);
+        int position = getQueryPosition(index);
+        int insert = Collections.binarySearch(removed, position);
+        removed.add(-insert - 1, position);
+        return file;
+    }
+
+    /**
+     * Checks whether the given file has been part of the query or added since, without reading
+     * any rows. Only valid if the list {@link #acceptsNewFiles()}
+     *
+     * @param file an encrypted file, which has been added to the database
+     * @return true, if the file is (or has been, before it got removed) part of this list
+     */
+    boolean includes(final File file) {
+        if (ids.length > 0 && file.id <= ids[ids.length - 1]) {
+            return true;
+        }
+        for (File f : added) {
+            if (f.id == file.id) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the ids of all files in this list, in the same order. Does not read any rows
+     */
+    long[] getIds() {
+        long[] re = new long[size()];
+        int i = 0, r = 0;
+        for (int position = 0; position < ids.length; position++) {
+            if (r < removed.size() && removed.get(r) == position) {
+                r++;
+            } else {
+                re[i++] = ids[position];
+            }
+        }
+        for (File file : added) {
+            re[i++] = file.id;
+        }
+        return re;
+    }
+
+    /**
+     * @param index the index in this list
+     * @return the position of the file in the query
+     */
+    private int getQueryPosition(final int index) {
+        int position = index;
+        for (int r : removed) {
+            if (r <= position) {
+                position++;
+            } else {
+                break;
+            }
+        }
+        return position;
+    }
+
+    /**
+     * @param position a position in the query
+     * @return the index of the file at that position or, if it has been removed, of the next one
+     */
+    private int getIndex(final int position) {
+        int index = position;
+        for (int r : removed) {
+            if (r < position) {
+                index--;
+            } else {
+                break;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Reads a page in the background, unless it is read already
+     */
+    private void loadPage(final int page) {
+        if (!loading.add(page)) {
+            return;
+        }
+        PAGE_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                File[] files = null;
+                try {
+                    files = readPage(page);
+                } catch (RuntimeException e) {
+                    // tried again, when the page is needed the next time
+                    e.printStackTrace();
+                }
+                final File[] read = files;
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        loading.remove(page);
+                        if (read == null) {
+                            return;
+                        }
+                        pages.put(page, read);
+                        int from = page * PAGE_SIZE, to = Math.min(ids.length, from + PAGE_SIZE);
+                        int first = getIndex(from), count = getIndex(to) - first;
+                        if (listener != null && count > 0) {
+                            listener.pageLoaded(first, count);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private File[] readPage(final int page) {
+        int from = page * PAGE_SIZE, to = Math.min(ids.length, from + PAGE_SIZE);
+        if (!closed) {
+            return db.getFiles(ids, from, to);
+        }
+        // still shown, until the list replacing it is bound
+        Database database = new Database(context);
+        try {
+            return database.getFiles(ids, from, to);
+        } finally {
+            database.close();
+        }
+    }
+
+    /**
+     * Closes the database, once the pages being read are done. Reading rows afterwards is
+     * slower, as every page opens the database
+     */
+    void close() {
+        closed = true;
+        PAGE_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                db.close();
+            }
+        });
+    }
+
+    /**
+     * Queries the catalog off the main thread
+     */
+    static class Loader extends AsyncTaskLoader<Catalog> {
+        private final String query;
+        private final CatalogSql.Order order;
+        private Catalog catalog;
+
+        /**
+         * @param context the context
+         * @param query   the words to search for or null, for all files
+         * @param order   the order of the files
+         */
+        Loader(final Context context, final String query, final CatalogSql.Order order) {
+            super(context);
+            this.query = CatalogSql.toMatch(query) != null ? query : null;
+            this.order = order;
+        }
+
+        @Override
+        public Catalog loadInBackground() {
+            long start = System.nanoTime();
+            Database db = new Database(getContext());
+            Catalog catalog = new Catalog(getContext(), db, query, order, db.getIds(query, order));
+            if (!catalog.isEmpty()) {
+                // reads the first page, which is shown right away
+                catalog.get(0);
+            }
+            Metrics.DB_CATALOG.recordSince(start);
+            return catalog;
+        }
+
+        @Override
+        public void deliverResult(final Catalog data) {
+            if (isReset()) {
+                if (data != null) {
+                    data.close();
+                }
+                return;
+            }
+            Catalog old = catalog;
+            catalog = data;
+            if (isStarted()) {
+                super.deliverResult(data);
+            }
+            if (old != null && old != data) {
+                old.close();
+            }
+        }
+
+        @Override
+        protected void onStartLoading() {
+            if (catalog != null) {
+                deliverResult(catalog);
+            }
+            if (takeContentChanged() || catalog == null) {
+                forceLoad();
+            }
+        }
+
+        @Override
+        protected void onStopLoading() {
+            cancelLoad();
+        }
+
+        @Override
+        public void onCanceled(final Catalog data) {
+            if (data != null) {
+                data.close();
+            }
+        }
+
+        @Override
+        protected void onReset() {
+            super.onReset();
+            onStopLoading();
+            if (catalog != null) {
+                catalog.close();
+                catalog = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Locale;
+
+/**
+ * The SQL of the catalog of encrypted files: the full-text search over the names and mime types
+ * and the sort orders, each of which is backed by an index.
+ * <p>
+ * Contains no Android classes, so the benchmark module runs the same statements against SQLite
+ * on the plain JVM.
+ */
+class CatalogSql {
+
+    final static String TABLE_FILES = "encrypted_files";
+    final static String COLUMN_ID = "_id";
+    final static String COLUMN_NAME = "name";
+    final static String COLUMN_MIME = "mime";
+    final static String COLUMN_SIZE = "size";
+    /**
+     * FTS4 index of the names and mime types in {@link #TABLE_FILES}. It stores no copy of the
+     * text, its docids are the ids of the files
+     */
+    final static String TABLE_SEARCH = "encrypted_files_search";
+    private final static String INDEX_NAME = "encrypted_files_name";
+    private final static String INDEX_SIZE = "encrypted_files_size";
+    private final static int SORT_IN_DATABASE = 4096;
+
+    enum Order {
+        /**
+         * The order the files have been added in. The id of a new row is always larger than
+         * all existing ids, so this is the order of the primary key
+         */
+        DATE(COLUMN_ID),
+        NAME(COLUMN_NAME + " COLLATE NOCASE, " + COLUMN_ID),
+        /**
+         * Largest first
+         */
+        SIZE(COLUMN_SIZE + " DESC, " + COLUMN_ID + " DESC");
+
+        private final String orderBy;
+
+        Order(final String orderBy) {
+            this.orderBy = orderBy;
+        }
+    }
+
+    private CatalogSql() {
+    }
+
+    /**
+     * @return the statements, which create the search index and the triggers keeping it up to
+     * date, and index the existing files
+     */
+    static String[] createSearch() {
+        return new String[]{"CREATE VIRTUAL TABLE " + TABLE_SEARCH + " USING fts4(content=\"" +
+                TABLE_FILES + "\", " + COLUMN_NAME + ", " + COLUMN_MIME +
+                ", tokenize=unicode61, prefix=\"1,2,3\")",
+                // the old text is read from the files table, so it must be removed before
+                "CREATE TRIGGER " + TABLE_SEARCH + "_bd BEFORE DELETE ON " + TABLE_FILES +
+                        " BEGIN " + deleteFromSearch() + " END",
+                "CREATE TRIGGER " + TABLE_SEARCH + "_bu BEFORE UPDATE OF " + COLUMN_NAME + ", " +
+                        COLUMN_MIME + " ON " + TABLE_FILES + " BEGIN " + deleteFromSearch() +
+                        " END",
+                "CREATE TRIGGER " + TABLE_SEARCH + "_au AFTER UPDATE OF " + COLUMN_NAME + ", " +
+                        COLUMN_MIME + " ON " + TABLE_FILES + " BEGIN " + insertIntoSearch() +
+                        " END",
+                "CREATE TRIGGER " + TABLE_SEARCH + "_ai AFTER INSERT ON " + TABLE_FILES +
+                        " BEGIN " + insertIntoSearch() + " END",
+                "INSERT INTO " + TABLE_SEARCH + "(" + TABLE_SEARCH + ") VALUES('rebuild')"};
+    }
+
+    private static String deleteFromSearch() {
+        return "DELETE FROM " + TABLE_SEARCH + " WHERE docid = old." + COLUMN_ID + ";";
+    }
+
+    private static String insertIntoSearch() {
+        return "INSERT INTO " + TABLE_SEARCH + "(docid, " + COLUMN_NAME + ", " + COLUMN_MIME +
+                ") VALUES (new." + COLUMN_ID + ", new." + COLUMN_NAME + ", new." + COLUMN_MIME +
+                ");";
+    }
+
+    /**
+     * @return the statements, which create the indexes of the sort orders
+     */
+    static String[] createSortIndexes() {
+        return new String[]{"CREATE INDEX " + INDEX_NAME + " ON " + TABLE_FILES + " (" +
+                COLUMN_NAME + " COLLATE NOCASE)",
+                "CREATE INDEX " + INDEX_SIZE + " ON " + TABLE_FILES + " (" + COLUMN_SIZE + ")"};
+    }
+
+    /**
+     * Converts what the user typed into a full-text query: every word has to be the prefix of a
+     * word in the name or mime type. Operators and quotes are not passed on
+     *
+     * @param query the text the user typed or null
+     * @return the argument for MATCH or null, if the query contains no words
+     */
+    static String toMatch(final String query) {
+        if (query == null) {
+            return null;
+        }
+        StringBuilder match = new StringBuilder();
+        int start = -1;
+        for (int i = 0; i <= query.length(); i++) {
+            if (i < query.length() && Character.isLetterOrDigit(query.charAt(i))) {
+                if (start < 0) {
+                    start = i;
+                }
+            } else if (start >= 0) {
+                if (match.length() > 0) {
+                    match.append(' ');
+                }
+                // lower case, so that words like OR are not read as operators
+                match.append(query.substring(start, i).toLowerCase(Locale.ROOT)).append('*');
+                start = -1;
+            }
+        }
+        return match.length() > 0 ? match.toString() : null;
+    }
+
+    /**
+     * @return the statement, which selects the ids of the files matching the argument of the
+     * statement, see {@link #toMatch(String)}, in ascending order
+     */
+    static String selectMatches() {
+        return "SELECT docid FROM " + TABLE_SEARCH + " WHERE " + TABLE_SEARCH +
+                " MATCH ? ORDER BY docid";
+    }
+
+    /**
+     * @param order the order
+     * @return the statement, which selects the ids of all files. The index of the order is read,
+     * the rows themselves are not
+     */
+    static String selectIds(final Order order) {
+        return "SELECT " + COLUMN_ID + " FROM " + TABLE_FILES + " ORDER BY " + order.orderBy;
+    }
+
+    /**
+     * @param ids   the ids of files
+     * @param order the order
+     * @return the statement, which selects the given ids in the given order
+     */
+    static String selectIds(final long[] ids, final Order order) {
+        StringBuilder sql = new StringBuilder("SELECT ").append(COLUMN_ID).append(" FROM ")
+                .append(TABLE_FILES).append(" WHERE ").append(COLUMN_ID).append(" IN (");
+        for (int i = 0; i < ids.length; i++) {
+            sql.append(i > 0 ? "," : "").append(ids[i]);
+        }
+        return sql.append(") ORDER BY ").append(order.orderBy).toString();
+    }
+
+    /**
+     * Sorting the matches of a search in the database looks up every matching row, while
+     * reading the ids of all files in the order from its index and keeping the matching ones
+     * costs about the same for any number of matches. On a catalog of 100k files, the latter is
+     * faster above a few thousand matches, see CatalogBenchmark.
+     *
+     * @param matches the number of files matching a search
+     * @return true, if the matches should be sorted with {@link #selectIds(long[], Order)},
+     * false to filter {@link #selectIds(Order)} with {@link #retain(long[], long[])}
+     */
+    static boolean sortInDatabase(final int matches) {
+        return matches <= SORT_IN_DATABASE;
+    }
+
+    /**
+     * @param ordered all ids, in the order of the list
+     * @param matches the ids to keep, in ascending order
+     * @return the ids of ordered, which are in matches, in the order of ordered
+     */
+    static long[] retain(final long[] ordered, final long[] matches) {
+        long[] retained = new long[matches.length];
+        if (matches.length == 0) {
+            return retained;
+        }
+        int count = 0;
+        long max = matches[matches.length - 1];
+        if (max < Integer.MAX_VALUE) {
+            BitSet set = new BitSet((int) max + 1);
+            for (long id : matches) {
+                set.set((int) id);
+            }
+            for (long id : ordered) {
+                if (id >= 0 && id <= max && set.get((int) id)) {
+                    retained[count++] = id;
+                }
+            }
+        } else {
+            for (long id : ordered) {
+                if (Arrays.binarySearch(matches, id) >= 0) {
+                    retained[count++] = id;
+                }
+            }
+        }
+        return count == retained.length ? retained : Arrays.copyOf(retained, count);
+    }
+
+    /**
+     * @param columns the columns to select
+     * @param ids     the ids of the files
+     * @param from    the first index in ids to select
+     * @param to      the index after the last one to select
+     * @return the statement, which selects the given files in no particular order
+     */
+    static String selectFiles(final String[] columns, final long[] ids, final int from,
+                              final int to) {
+        StringBuilder sql = new StringBuilder("SELECT ");
+        for (int i = 0; i < columns.length; i++) {
+            sql.append(i > 0 ? ", " : "").append(columns[i]);
+        }
+        sql.append(" FROM ").append(TABLE_FILES).append(" WHERE ").append(COLUMN_ID)
+                .append(" IN (");
+        for (int i = from; i < to; i++) {
+            sql.append(i > from ? "," : "").append(ids[i]);
+        }
+        return sql.append(')').toString();
+    }
+}
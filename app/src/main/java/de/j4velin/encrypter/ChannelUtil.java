@@ -0,0 +1,115 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Utility class to open channels for content uris.
+ * <p>
+ * If the provider can give us a file descriptor of a regular file, a {@link
+ * java.nio.channels.FileChannel} is returned, which allows the {@link ChunkEngine} to read and
+ * write without any intermediate copies. Otherwise, the channel falls back to the provider's
+ * streams.
+ */
+class ChannelUtil {
+
+    private ChannelUtil() {
+    }
+
+    /**
+     * Opens the given uri for reading
+     *
+     * @param context the context
+     * @param uri     the uri to read
+     * @return a FileChannel if possible, a channel wrapping the provider's stream otherwise
+     */
+    static ReadableByteChannel openInput(final Context context, final Uri uri) throws
+            IOException {
+        ParcelFileDescriptor pfd = openFileDescriptor(context, uri, "r");
+        if (pfd == null) {
+            return Channels.newChannel(context.getContentResolver().openInputStream(uri));
+        } else if (pfd.getStatSize() < 0) {
+            // not a regular file (e.g. a pipe), so it can neither be mapped nor positioned
+            return Channels.newChannel(new ParcelFileDescriptor.AutoCloseInputStream(pfd));
+        } else {
+            return new ParcelFileDescriptor.AutoCloseInputStream(pfd).getChannel();
+        }
+    }
+
+    /**
+     * Opens the given uri for writing
+     *
+     * @param context the context
+     * @param uri     the uri to write to
+     * @return a FileChannel if possible, a channel wrapping the provider's stream otherwise
+     */
+    static WritableByteChannel openOutput(final Context context, final Uri uri) throws
+            IOException {
+        ParcelFileDescriptor pfd = openFileDescriptor(context, uri, "w");
+        if (pfd == null) {
+            return Channels.newChannel(context.getContentResolver().openOutputStream(uri));
+        } else if (pfd.getStatSize() < 0) {
+            return Channels.newChannel(new ParcelFileDescriptor.AutoCloseOutputStream(pfd));
+        } else {
+            return new ParcelFileDescriptor.AutoCloseOutputStream(pfd).getChannel();
+        }
+    }
+
+    /**
+     * Opens the given uri to continue writing at the given position. Everything after that
+     * position is discarded.
+     *
+     * @param context  the context
+     * @param uri      the uri to write to
+     * @param position the position to continue at
+     * @return a FileChannel positioned at the given position or null, if the uri is not a
+     * regular file of at least that size
+     */
+    static FileChannel openOutput(final Context context, final Uri uri, final long position)
+            throws IOException {
+        ParcelFileDescriptor pfd = openFileDescriptor(context, uri, "rw");
+        if (pfd == null) {
+            return null;
+        } else if (pfd.getStatSize() < position) {
+            pfd.close();
+            return null;
+        }
+        FileChannel channel = new ParcelFileDescriptor.AutoCloseOutputStream(pfd).getChannel();
+        channel.truncate(position);
+        channel.position(position);
+        return channel;
+    }
+
+    private static ParcelFileDescriptor openFileDescriptor(final Context context, final Uri uri,
+                                                           final String mode) {
+        try {
+            return context.getContentResolver().openFileDescriptor(uri, mode);
+        } catch (FileNotFoundException | UnsupportedOperationException e) {
+            // provider can not give us a descriptor (e.g. "Not a whole file")
+            return null;
+        }
+    }
+}
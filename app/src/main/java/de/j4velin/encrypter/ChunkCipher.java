@@ -0,0 +1,205 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.Provider;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * Seals and opens the single chunks of a {@link Container}.
+ * <p>
+ * The nonce of a chunk is the nonce prefix of the container followed by the chunk index, the
+ * additional authenticated data marks the last chunk so that a truncated file is detected.
+ * <p>
+ * The data key is a plain software key, so the chunks are encrypted in process and never by the
+ * Android Key Store. The provider is resolved once and then pinned, as an unpinned cipher
+ * searches all installed providers for one accepting the key on every init.
+ * <p>
+ * The cipher works on its own copy of the key, which {@link #destroy()} overwrites. A
+ * {@link javax.crypto.spec.SecretKeySpec} is not used, as its copy can not be overwritten.
+ * <p>
+ * Instances are not thread-safe.
+ */
+class ChunkCipher {
+
+    private final static String TRANSFORMATION = "AES/GCM/NoPadding";
+
+    private static volatile Provider provider;
+
+    final Container container;
+    private final RawKey key;
+    private final byte[] nonce = new byte[Container.NONCE_LENGTH];
+    private final byte[] aad = new byte[1];
+    private Cipher cipher;
+
+    /**
+     * @param container the container header
+     * @param key       the (unwrapped) data key
+     */
+    ChunkCipher(final Container container, final byte[] key) {
+        this.container = container;
+        this.key = new RawKey(key.clone());
+        System.arraycopy(container.noncePrefix, 0, nonce, 0, Container.NONCE_PREFIX_LENGTH);
+    }
+
+    /**
+     * Encrypts one chunk
+     *
+     * @param index  the chunk index
+     * @param last   true, if this is the last chunk of the file
+     * @param in     the plaintext buffer
+     * @param length the number of plaintext bytes, at most the chunk size
+     * @param out    the output buffer, must have room for length + {@link Container#TAG_LENGTH}
+     * @return the number of bytes written to out
+     */
+    int seal(final long index, final boolean last, final byte[] in, final int length,
+             final byte[] out) throws GeneralSecurityException {
+        init(Cipher.ENCRYPT_MODE, index, last);
+        return cipher.doFinal(in, 0, length, out, 0);
+    }
+
+    /**
+     * Decrypts and verifies one chunk
+     *
+     * @param index  the chunk index
+     * @param last   true, if this is the last chunk of the file
+     * @param in     the ciphertext buffer
+     * @param length the number of ciphertext bytes including the tag
+     * @param out    the output buffer, must have room for length - {@link Container#TAG_LENGTH}
+     * @return the number of bytes written to out
+     * @throws javax.crypto.AEADBadTagException if the chunk has been modified
+     */
+    int open(final long index, final boolean last, final byte[] in, final int length,
+             final byte[] out) throws GeneralSecurityException {
+        init(Cipher.DECRYPT_MODE, index, last);
+        return cipher.doFinal(in, 0, length, out, 0);
+    }
+
+    /**
+     * Encrypts one chunk
+     *
+     * @param index the chunk index
+     * @param last  true, if this is the last chunk of the file
+     * @param in    the plaintext, at most the chunk size
+     * @param out   the output buffer, must have room for the plaintext + tag
+     * @return the number of bytes written to out
+     */
+    int seal(final long index, final boolean last, final ByteBuffer in, final ByteBuffer out)
+            throws GeneralSecurityException {
+        init(Cipher.ENCRYPT_MODE, index, last);
+        return cipher.doFinal(in, out);
+    }
+
+    /**
+     * Decrypts and verifies one chunk
+     *
+     * @param index the chunk index
+     * @param last  true, if this is the last chunk of the file
+     * @param in    the ciphertext including the tag
+     * @param out   the output buffer, must have room for the plaintext
+     * @return the number of bytes written to out
+     * @throws javax.crypto.AEADBadTagException if the chunk has been modified
+     */
+    int open(final long index, final boolean last, final ByteBuffer in, final ByteBuffer out)
+            throws GeneralSecurityException {
+        init(Cipher.DECRYPT_MODE, index, last);
+        return cipher.doFinal(in, out);
+    }
+
+    private void init(final int mode, final long index, final boolean last) throws
+            GeneralSecurityException {
+        boolean resolve = false;
+        if (cipher == null) {
+            Provider pinned = provider;
+            resolve = pinned == null;
+            cipher = resolve ? Cipher.getInstance(TRANSFORMATION) :
+                    Cipher.getInstance(TRANSFORMATION, pinned);
+        }
+        for (int i = 0; i < 8; i++) {
+            nonce[Container.NONCE_LENGTH - 1 - i] = (byte) (index >>> (8 * i));
+        }
+        aad[0] = (byte) (last ? 1 : 0);
+        cipher.init(mode, key, new GCMParameterSpec(Container.TAG_LENGTH * 8, nonce));
+        cipher.updateAAD(aad);
+        if (resolve) {
+            provider = cipher.getProvider();
+        }
+    }
+
+    /**
+     * Overwrites the copy of the key. The cipher can not be used afterwards
+     */
+    void destroy() {
+        key.destroy();
+        cipher = null;
+    }
+
+    /**
+     * @return the provider doing the chunk encryption or null, if no chunk has been processed yet
+     */
+    static Provider getProvider() {
+        return provider;
+    }
+
+    /**
+     * An AES key in raw format, whose bytes can be overwritten
+     */
+    private static class RawKey implements SecretKey {
+        // keys are never serialized
+        private final static long serialVersionUID = 1L;
+        private final byte[] encoded;
+        private boolean destroyed;
+
+        private RawKey(final byte[] encoded) {
+            this.encoded = encoded;
+        }
+
+        @Override
+        public String getAlgorithm() {
+            return "AES";
+        }
+
+        @Override
+        public String getFormat() {
+            return "RAW";
+        }
+
+        @Override
+        public byte[] getEncoded() {
+            if (destroyed) {
+                throw new IllegalStateException("Key destroyed");
+            }
+            return encoded.clone();
+        }
+
+        @Override
+        public void destroy() {
+            Arrays.fill(encoded, (byte) 0);
+            destroyed = true;
+        }
+
+        @Override
+        public boolean isDestroyed() {
+            return destroyed;
+        }
+    }
+}
@@ -0,0 +1,564 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Encrypts or decrypts the chunks of a {@link Container} in a three stage pipeline:
+ * <ol>
+ * <li>a reader thread reads the chunks sequentially,</li>
+ * <li>the chunks are sealed/opened in parallel on all available cores,</li>
+ * <li>the calling thread writes them back in their original order.</li>
+ * </ol>
+ * The stages are connected by bounded queues of recycled blocks, so storage latency and cipher
+ * time overlap while the memory used stays bounded independent of the file size. How long each
+ * stage had to wait for the others is recorded and can be queried after {@link #run}.
+ * <p>
+ * All buffers are direct {@link ByteBuffer}s, so data read from or written to a
+ * {@link FileChannel} is not copied between the Java heap and native memory.
+ */
+class ChunkEngine {
+
+    /**
+     * Inputs larger than this are memory mapped instead of read
+     */
+    private final static long MAP_THRESHOLD = 16 * 1024 * 1024;
+    private final static int CHUNKS_PER_SEGMENT = 512;
+
+    private final static ForkJoinPool POOL =
+            new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+    interface ProgressListener {
+        /**
+         * Called after every chunk written to the output
+         *
+         * @param bytes the number of plaintext bytes processed so far
+         */
+        void progress(final long bytes);
+    }
+
+    /**
+     * Tuning parameters of the pipeline
+     */
+    static class Config {
+        /**
+         * The chunk size of newly encrypted files. Existing files keep the chunk size they have
+         * been written with.
+         */
+        final int blockSize;
+        /**
+         * The number of blocks shared by all stages, at least 3
+         */
+        final int depth;
+
+        Config(final int blockSize, final int depth) {
+            this.blockSize = blockSize;
+            this.depth = Math.max(3, depth);
+        }
+
+        /**
+         * @return the default configuration: 64 KB blocks and about two blocks per core
+         */
+        static Config defaults() {
+            return new Config(Container.DEFAULT_CHUNK_SIZE, 2 * POOL.getParallelism() + 2);
+        }
+    }
+
+    final Container container;
+    private final byte[] key;
+    private final boolean encrypt;
+    private final long size;
+    private final long offset;
+    private final int depth;
+    private final ConcurrentLinkedQueue<ChunkCipher> ciphers = new ConcurrentLinkedQueue<>();
+    private final BlockingQueue<Block> free;
+    private final BlockingQueue<Block> filled;
+    private final Block end;
+    private ReadableByteChannel in;
+    private FileChannel mapped;
+    private MappedByteBuffer segment;
+    private long mappedSize, segmentStart, inputPosition;
+    private volatile Exception readError;
+    private volatile boolean cancelled;
+    private MessageDigest digest;
+    private WritableByteChannel copy;
+
+    private long readerStall, writerStall, readTime, writeTime;
+    private final AtomicLong cipherStall = new AtomicLong();
+    private final AtomicLong cipherTime = new AtomicLong();
+    /**
+     * Element i counts how often the writer found i processed blocks waiting for it
+     */
+    private final long[] queueDepths;
+
+    private ChunkEngine(final Container container, final byte[] key, final boolean encrypt,
+                        final long size, final long offset, final int depth) {
+        this.container = container;
+        this.key = key.clone();
+        this.encrypt = encrypt;
+        this.size = size;
+        this.offset = offset;
+        this.depth = depth;
+        free = new ArrayBlockingQueue<>(depth);
+        filled = new ArrayBlockingQueue<>(depth + 1);
+        queueDepths = new long[depth + 2];
+        end = new Block(this, 0);
+    }
+
+    /**
+     * Creates an engine to encrypt a plaintext stream into chunks. The header must already have
+     * been written to the output.
+     *
+     * @param container the container header
+     * @param key       the data key. The engine and its ciphers work on copies, which are wiped
+     *                  once the engine is done, so the caller may wipe its key right away
+     * @param config    the pipeline configuration
+     * @return the engine
+     */
+    static ChunkEngine encrypter(final Container container, final byte[] key,
+                                 final Config config) {
+        return encrypter(container, key, 0, config);
+    }
+
+    /**
+     * Creates an engine to continue an interrupted encryption. The output must be positioned at
+     * {@link Container#chunkOffset(long)} of the chunk containing the offset.
+     *
+     * @param container the container header of the interrupted encryption
+     * @param key       the data key, copied like for {@link #encrypter(Container, byte[], Config)}
+     * @param offset    the position in the plaintext to continue at, a multiple of the chunk size
+     * @param config    the pipeline configuration
+     * @return the engine
+     */
+    static ChunkEngine encrypter(final Container container, final byte[] key, final long offset,
+                                 final Config config) {
+        return new ChunkEngine(container, key, true, -1, offset, config.depth);
+    }
+
+    /**
+     * Creates an engine to decrypt the chunks of an encrypted file. The input must be positioned
+     * right after the header.
+     *
+     * @param container the container header
+     * @param key       the data key, copied like for {@link #encrypter(Container, byte[], Config)}
+     * @param size      the size of the complete encrypted file in bytes, including the header
+     * @param offset    the position in the plaintext to start at
+     * @param config    the pipeline configuration
+     * @return the engine
+     */
+    static ChunkEngine decrypter(final Container container, final byte[] key, final long size,
+                                 final long offset, final Config config) {
+        return new ChunkEngine(container, key, false, size, offset, config.depth);
+    }
+
+    /**
+     * @return the time in ms the reader waited for free blocks
+     */
+    long getReaderStall() {
+        return readerStall / 1000000;
+    }
+
+    /**
+     * @return the accumulated time in ms blocks waited for a free core
+     */
+    long getCipherStall() {
+        return cipherStall.get() / 1000000;
+    }
+
+    /**
+     * @return the time in ms the writer waited for the next block to be read and processed
+     */
+    long getWriterStall() {
+        return writerStall / 1000000;
+    }
+
+    /**
+     * @return the time in ms the reader spent reading the input
+     */
+    long getReadTime() {
+        return readTime / 1000000;
+    }
+
+    /**
+     * @return the accumulated time in ms spent in the cipher, on all cores
+     */
+    long getCipherTime() {
+        return cipherTime.get() / 1000000;
+    }
+
+    /**
+     * @return the time in ms the writer spent writing the output
+     */
+    long getWriteTime() {
+        return writeTime / 1000000;
+    }
+
+    /**
+     * @return element i counts how often the writer found i blocks waiting for it
+     */
+    long[] getQueueDepths() {
+        return queueDepths.clone();
+    }
+
+    /**
+     * Lets an encrypter feed its plaintext into the given digest, in the order it is read.
+     * Must be called before {@link #run}. Resumed encrypters only digest the plaintext after
+     * their offset.
+     *
+     * @param digest the digest
+     */
+    void setDigest(final MessageDigest digest) {
+        this.digest = digest;
+    }
+
+    /**
+     * Lets the engine write its output to the given channel as well, for example to hash it
+     * while it is written. The writer stage writes to it right after each chunk has been
+     * written to the output. Must be called before {@link #run}
+     *
+     * @param copy the channel
+     */
+    void setOutputCopy(final WritableByteChannel copy) {
+        this.copy = copy;
+    }
+
+    /**
+     * Stops a running engine: {@link #run} throws an {@link InterruptedIOException} before it
+     * writes the next chunk. May be called from any thread.
+     */
+    void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Processes the complete input and writes the result to the output.
+     * Both channels are left open. An engine can only be run once.
+     * <p>
+     * If the input is a {@link FileChannel} larger than {@link #MAP_THRESHOLD}, it is memory
+     * mapped and the chunks are passed to the cipher without copying them.
+     *
+     * @param in       the input
+     * @param out      the output
+     * @param listener the progress listener, may be null
+     */
+    void run(final ReadableByteChannel in, final WritableByteChannel out,
+             final ProgressListener listener) throws IOException {
+        this.in = in;
+        int frameLength = container.frameLength();
+        for (int i = 0; i < depth; i++) {
+            free.add(new Block(this, frameLength));
+        }
+        if (in instanceof FileChannel) {
+            FileChannel file = (FileChannel) in;
+            inputPosition = file.position();
+            if (file.size() - inputPosition > MAP_THRESHOLD) {
+                mapped = file;
+                mappedSize = file.size();
+            }
+        }
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    read();
+                } catch (IOException | InterruptedException | RuntimeException e) {
+                    readError = e;
+                } finally {
+                    filled.add(end);
+                }
+            }
+        }, "ChunkEngine reader");
+        reader.start();
+        long processed = 0;
+        try {
+            while (true) {
+                long start = System.nanoTime();
+                queueDepths[filled.size()]++;
+                Block block = filled.take();
+                if (block == end) {
+                    break;
+                }
+                if (cancelled) {
+                    throw new InterruptedIOException("Cancelled");
+                }
+                block.quietlyJoin();
+                writerStall += System.nanoTime() - start;
+                if (block.error instanceof RuntimeException) {
+                    throw (RuntimeException) block.error;
+                } else if (block.error != null) {
+                    throw new IOException("Chunk " + block.index + " failed", block.error);
+                }
+                block.output.position(block.skip);
+                int bytes = block.output.remaining();
+                start = System.nanoTime();
+                ByteBuffer written = copy != null ? block.output.duplicate() : null;
+                while (block.output.hasRemaining()) {
+                    out.write(block.output);
+                }
+                while (written != null && written.hasRemaining()) {
+                    copy.write(written);
+                }
+                writeTime += System.nanoTime() - start;
+                processed += encrypt ? block.inLength : bytes;
+                free.add(block);
+                if (listener != null) {
+                    listener.progress(processed);
+                }
+            }
+            if (readError instanceof IOException) {
+                throw (IOException) readError;
+            } else if (readError instanceof RuntimeException) {
+                throw (RuntimeException) readError;
+            } else if (readError != null) {
+                throw new InterruptedIOException();
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        } finally {
+            reader.interrupt();
+            try {
+                reader.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            for (Block block : filled) {
+                if (block != end) {
+                    block.quietlyJoin();
+                }
+            }
+            Arrays.fill(key, (byte) 0);
+            // all blocks are done, so every cipher is back in the pool
+            for (ChunkCipher cipher : ciphers) {
+                cipher.destroy();
+            }
+            ciphers.clear();
+            segment = null;
+        }
+    }
+
+    /**
+     * The reader stage: reads all chunks and passes them on to the cipher stage
+     */
+    private void read() throws IOException, InterruptedException {
+        int frameLength = container.frameLength();
+        long chunks = 0;
+        int lastFrameLength = 0;
+        long index = 0;
+        int skip = 0;
+        if (encrypt) {
+            index = offset / container.chunkSize;
+            skip(offset);
+        } else {
+            long payload = size - container.headerLength();
+            chunks = (payload + frameLength - 1) / frameLength;
+            lastFrameLength = (int) (payload - (chunks - 1) * frameLength);
+            if (chunks < 1 || lastFrameLength < Container.TAG_LENGTH) {
+                throw new EOFException("Encrypted file is truncated");
+            }
+            index = offset / container.chunkSize;
+            skip = (int) (offset % container.chunkSize);
+            skip(index * frameLength);
+        }
+        boolean done = false;
+        Block ahead = null;
+        while (!done) {
+            Block block;
+            if (encrypt) {
+                if (ahead == null) {
+                    block = take();
+                    fill(block, container.chunkSize);
+                } else {
+                    block = ahead;
+                    ahead = null;
+                }
+                // read one chunk ahead to know whether the current one is the last one
+                done = block.input.remaining() < container.chunkSize;
+                if (!done) {
+                    ahead = take();
+                    if (fill(ahead, container.chunkSize) == 0) {
+                        free.add(ahead);
+                        ahead = null;
+                        done = true;
+                    }
+                }
+            } else {
+                block = take();
+                done = index == chunks - 1;
+                int length = done ? lastFrameLength : frameLength;
+                if (fill(block, length) < length) {
+                    free.add(block);
+                    throw new EOFException("Encrypted file is truncated");
+                }
+            }
+            block.index = index;
+            block.last = done;
+            block.skip = skip;
+            skip = 0;
+            block.reinitialize();
+            block.submitted = System.nanoTime();
+            POOL.execute(block);
+            filled.add(block);
+            index++;
+        }
+    }
+
+    /**
+     * Gets a free block, waiting for the writer to recycle one if necessary
+     *
+     * @return a block which can be filled with the next chunk
+     */
+    private Block take() throws InterruptedException {
+        long start = System.nanoTime();
+        Block block = free.take();
+        readerStall += System.nanoTime() - start;
+        return block;
+    }
+
+    /**
+     * Points the input of the given block to the next bytes of the input
+     *
+     * @param block  the block
+     * @param length the number of bytes to read
+     * @return the number of bytes read, less than length only at the end of the input
+     */
+    private int fill(final Block block, final int length) throws IOException {
+        long start = System.nanoTime();
+        if (mapped != null) {
+            long end = Math.min(inputPosition + length, mappedSize);
+            if (segment == null || end > segmentStart + segment.capacity()) {
+                // segments are a multiple of the read length, so a block never spans two
+                long segmentLength = Math.min((long) length * CHUNKS_PER_SEGMENT,
+                        mappedSize - inputPosition);
+                segment = mapped.map(FileChannel.MapMode.READ_ONLY, inputPosition, segmentLength);
+                segmentStart = inputPosition;
+            }
+            ByteBuffer view = segment.duplicate();
+            view.position((int) (inputPosition - segmentStart));
+            view.limit((int) (end - segmentStart));
+            block.input = view.slice();
+            inputPosition = end;
+        } else {
+            block.input = block.buffer;
+            block.buffer.clear();
+            block.buffer.limit(length);
+            while (block.buffer.hasRemaining() && in.read(block.buffer) >= 0) ;
+            block.buffer.flip();
+            inputPosition += block.buffer.remaining();
+        }
+        if (encrypt && digest != null) {
+            digest.update(block.input.duplicate());
+        }
+        readTime += System.nanoTime() - start;
+        return block.input.remaining();
+    }
+
+    private void skip(final long n) throws IOException {
+        if (mapped != null) {
+            inputPosition += n;
+        } else if (in instanceof FileChannel) {
+            inputPosition += n;
+            ((FileChannel) in).position(inputPosition);
+        } else {
+            ByteBuffer discard = ByteBuffer.allocate(container.frameLength());
+            long remaining = n;
+            while (remaining > 0) {
+                discard.clear();
+                discard.limit((int) Math.min(discard.capacity(), remaining));
+                int read = in.read(discard);
+                if (read < 0) {
+                    throw new EOFException(encrypt ? "Input ends before the checkpoint" :
+                            "Encrypted file is truncated");
+                }
+                remaining -= read;
+            }
+        }
+    }
+
+    private ChunkCipher borrowCipher() {
+        ChunkCipher cipher = ciphers.poll();
+        return cipher != null ? cipher : new ChunkCipher(container, key);
+    }
+
+    /**
+     * A single chunk, processed as a task on the pool. Blocks are recycled once their result has
+     * been written.
+     */
+    private static class Block extends RecursiveAction {
+        // tasks are never serialized
+        private final static long serialVersionUID = 1L;
+        private final ChunkEngine engine;
+        private final ByteBuffer buffer, output;
+        private ByteBuffer input;
+        private int inLength, skip;
+        private long index, submitted;
+        private boolean last;
+        /**
+         * The failure of the cipher, a GeneralSecurityException or a RuntimeException. The
+         * output is invalid then
+         */
+        private Exception error;
+
+        private Block(final ChunkEngine engine, final int frameLength) {
+            this.engine = engine;
+            buffer = ByteBuffer.allocateDirect(frameLength);
+            output = ByteBuffer.allocateDirect(frameLength);
+        }
+
+        @Override
+        protected void compute() {
+            engine.cipherStall.addAndGet(System.nanoTime() - submitted);
+            error = null;
+            inLength = input.remaining();
+            output.clear();
+            ChunkCipher cipher = null;
+            long start = System.nanoTime();
+            try {
+                cipher = engine.borrowCipher();
+                if (engine.encrypt) {
+                    cipher.seal(index, last, input, output);
+                } else {
+                    cipher.open(index, last, input, output);
+                }
+            } catch (GeneralSecurityException | RuntimeException e) {
+                // rethrown by the writer, as the pool would swallow it
+                error = e;
+            } finally {
+                engine.cipherTime.addAndGet(System.nanoTime() - start);
+                if (cipher != null) {
+                    engine.ciphers.add(cipher);
+                }
+                output.flip();
+            }
+        }
+    }
+}
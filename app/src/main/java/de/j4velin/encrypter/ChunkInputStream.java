@@ -0,0 +1,166 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+
+/**
+ * InputStream which decrypts and verifies the chunks of a {@link Container}.
+ * <p>
+ * The underlying stream must be positioned right after the header. {@link #skip(long)} jumps
+ * directly to the chunk containing the target position, so only that chunk is decrypted.
+ */
+class ChunkInputStream extends FilterInputStream {
+
+    private final ChunkCipher cipher;
+    private final int chunkSize;
+    private final long chunks;
+    private final int lastFrameLength;
+    private final long length;
+    private final byte[] frame;
+    private final byte[] chunk;
+    private int chunkPos, chunkLen;
+    private long nextIndex;
+    private long position;
+
+    /**
+     * @param in     the stream to read the chunks from
+     * @param cipher the cipher of the container
+     * @param size   the size of the complete encrypted file in bytes, including the header
+     * @throws IOException if the file is truncated
+     */
+    ChunkInputStream(final InputStream in, final ChunkCipher cipher, final long size) throws
+            IOException {
+        super(in);
+        this.cipher = cipher;
+        Container container = cipher.container;
+        chunkSize = container.chunkSize;
+        long payload = size - container.headerLength();
+        int frameLength = container.frameLength();
+        chunks = (payload + frameLength - 1) / frameLength;
+        lastFrameLength = (int) (payload - (chunks - 1) * frameLength);
+        if (chunks < 1 || lastFrameLength < Container.TAG_LENGTH) {
+            throw new EOFException("Encrypted file is truncated");
+        }
+        length = payload - chunks * Container.TAG_LENGTH;
+        frame = new byte[frameLength];
+        chunk = new byte[chunkSize];
+    }
+
+    /**
+     * @return the size of the plaintext in bytes
+     */
+    long length() {
+        return length;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (chunkPos == chunkLen) {
+            if (nextIndex == chunks) {
+                return -1;
+            }
+            fill();
+        }
+        int n = Math.min(len, chunkLen - chunkPos);
+        System.arraycopy(chunk, chunkPos, b, off, n);
+        chunkPos += n;
+        position += n;
+        return n;
+    }
+
+    @Override
+    public long skip(final long n) throws IOException {
+        if (n <= 0) {
+            return 0;
+        }
+        long target = Math.min(position + n, length);
+        long skipped = target - position;
+        if (skipped <= chunkLen - chunkPos) {
+            chunkPos += (int) skipped;
+        } else {
+            long index = target / chunkSize;
+            skipFully((index - nextIndex) * frame.length);
+            nextIndex = index;
+            chunkPos = chunkLen = 0;
+            if (index < chunks) {
+                fill();
+                chunkPos = (int) (target - index * chunkSize);
+            }
+        }
+        position = target;
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return chunkLen - chunkPos;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    private void fill() throws IOException {
+        int frameLength = nextIndex == chunks - 1 ? lastFrameLength : frame.length;
+        readFully(frameLength);
+        try {
+            chunkLen = cipher.open(nextIndex, nextIndex == chunks - 1, frame, frameLength, chunk);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Chunk " + nextIndex + " is corrupt", e);
+        }
+        chunkPos = 0;
+        nextIndex++;
+    }
+
+    private void readFully(final int len) throws IOException {
+        int n = 0;
+        while (n < len) {
+            int read = in.read(frame, n, len - n);
+            if (read < 0) {
+                throw new EOFException("Encrypted file is truncated");
+            }
+            n += read;
+        }
+    }
+
+    private void skipFully(long n) throws IOException {
+        while (n > 0) {
+            long skipped = in.skip(n);
+            if (skipped <= 0) {
+                if (in.read() < 0) {
+                    throw new EOFException("Encrypted file is truncated");
+                }
+                skipped = 1;
+            }
+            n -= skipped;
+        }
+    }
+}
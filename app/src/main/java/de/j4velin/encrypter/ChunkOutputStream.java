@@ -0,0 +1,92 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+
+/**
+ * OutputStream which encrypts everything written to it into the chunks of a {@link Container}.
+ * <p>
+ * The header must already have been written to the underlying stream. The last chunk is only
+ * sealed when the stream is closed.
+ */
+class ChunkOutputStream extends FilterOutputStream {
+
+    private final ChunkCipher cipher;
+    private final byte[] plaintext;
+    private final byte[] frame;
+    private int buffered;
+    private long index;
+    private boolean closed;
+
+    /**
+     * @param out    the stream to write the chunks to
+     * @param cipher the cipher of the container
+     */
+    ChunkOutputStream(final OutputStream out, final ChunkCipher cipher) {
+        super(out);
+        this.cipher = cipher;
+        plaintext = new byte[cipher.container.chunkSize];
+        frame = new byte[cipher.container.frameLength()];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(final byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (buffered == plaintext.length) {
+                // only seal a full chunk once we know that it is not the last one
+                seal(false);
+            }
+            int n = Math.min(len, plaintext.length - buffered);
+            System.arraycopy(b, off, plaintext, buffered, n);
+            buffered += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    private void seal(final boolean last) throws IOException {
+        try {
+            int length = cipher.seal(index, last, plaintext, buffered, frame);
+            out.write(frame, 0, length);
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        }
+        index++;
+        buffered = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            seal(true);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -21,21 +21,34 @@ import android.content.Context;
 import android.content.DialogInterface;
 import android.hardware.fingerprint.FingerprintManager;
 import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Looper;
 import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyPermanentlyInvalidatedException;
 import android.security.keystore.KeyProperties;
+import android.security.keystore.UserNotAuthenticatedException;
 import android.widget.TextView;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.KeyStore;
-import java.security.NoSuchAlgorithmException;
-import java.security.cert.CertificateException;
+import java.security.Provider;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import javax.crypto.Cipher;
 import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
 
 /**
  * Utility class to deal with the cryptographic ciphers.
@@ -52,39 +65,168 @@ class CipherUtil {
      */
     private static final String KEY_NAME = "my_key";
 
-    private static KeyStore mKeyStore;
+    /**
+     * Alias of the key wrapping the thumbnail key, see {@link #getThumbnailKey(Context)}
+     */
+    private static final String THUMBNAIL_KEY_NAME = "thumbnails";
+    private static final String THUMBNAIL_KEY_FILE = "thumbnails.key";
+    /**
+     * How long the thumbnail key can be unwrapped after the user has unlocked the device or
+     * authenticated with fingerprint
+     */
+    private static final int THUMBNAIL_KEY_VALIDITY_SECONDS = 5 * 60;
+    private static final String GCM = KeyProperties.KEY_ALGORITHM_AES + "/" +
+            KeyProperties.BLOCK_MODE_GCM + "/" + KeyProperties.ENCRYPTION_PADDING_NONE;
+    private static final int GCM_TAG_BITS = 128;
+
+    private static final String CBC = KeyProperties.KEY_ALGORITHM_AES + "/" +
+            KeyProperties.BLOCK_MODE_CBC + "/" + KeyProperties.ENCRYPTION_PADDING_PKCS7;
+
+    /**
+     * All Key Store access happens on this thread, so the main thread never waits for it and
+     * the key is never created twice
+     */
+    private static final ExecutorService KEYSTORE =
+            Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    return new Thread(runnable, "Keystore");
+                }
+            });
+    private static final Handler HANDLER = new Handler(Looper.getMainLooper());
+    private static boolean warmUpStarted;
+
+    private static volatile KeyStore mKeyStore;
     private static KeyGenerator mKeyGenerator;
+    /**
+     * The handle of the key or null, if it does not exist or is not loaded yet
+     */
+    private static volatile SecretKey mKey;
+    /**
+     * The provider, which has been chosen for the key before, so that later ciphers do not have
+     * to look it up again
+     */
+    private static volatile Provider mCipherProvider;
+    private static volatile SecretKey thumbnailKey;
 
     /**
-     * Initializes the keystore and creates the key if necessary
-     *
-     * @return true, if a new key has been generated
-     * @throws GeneralSecurityException
-     * @throws IOException
+     * Loads the keystore and looks up the key and the providers in the background. Called as
+     * early as possible, so that it is done before the first cipher is requested
      */
-    static boolean init() throws GeneralSecurityException, IOException {
-        mKeyStore = KeyStore.getInstance("AndroidKeyStore");
-        mKeyGenerator =
-                KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, "AndroidKeyStore");
-        if (!hasKey()) {
-            createKey();
-            return true;
-        } else {
-            return false;
+    static synchronized void warmUp() {
+        if (warmUpStarted) {
+            return;
         }
+        warmUpStarted = true;
+        KEYSTORE.execute(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                try {
+                    load();
+                    // the first lookup of a transformation searches all providers
+                    Cipher.getInstance(CBC);
+                    Metrics.KEYSTORE_WARM_UP.recordSince(start);
+                } catch (GeneralSecurityException | IOException e) {
+                    // init reports the error
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
+    /**
+     * Loads the keystore and the handle of the key, if it exists. Must only be called on the
+     * keystore thread
+     */
+    private static void load() throws GeneralSecurityException, IOException {
+        if (mKeyStore == null) {
+            KeyStore keyStore = KeyStore.getInstance("AndroidKeyStore");
+            keyStore.load(null);
+            mKeyGenerator =
+                    KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, "AndroidKeyStore");
+            mKeyStore = keyStore;
+        }
+        if (mKey == null) {
+            mKey = (SecretKey) mKeyStore.getKey(KEY_NAME, null);
+        }
+    }
+
+    interface InitCallback {
+        /**
+         * The key is ready, ciphers can be requested now. Called on the main thread
+         *
+         * @param generated true, if a new key has been generated
+         */
+        void keyReady(final boolean generated);
+
+        /**
+         * The keystore could not be loaded or the key not be generated. Called on the main
+         * thread
+         *
+         * @param e the error
+         */
+        void keyFailed(final Exception e);
     }
 
+    /**
+     * Initializes the keystore and creates the key if necessary, in the background
+     *
+     * @param callback the callback, which is notified once the key is ready
+     */
+    static void init(final InitCallback callback) {
+        warmUp();
+        KEYSTORE.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean generated = false;
+                Exception error = null;
+                try {
+                    load();
+                    if (mKey == null) {
+                        createKey();
+                        mKey = (SecretKey) mKeyStore.getKey(KEY_NAME, null);
+                        generated = true;
+                    }
+                } catch (GeneralSecurityException | IOException e) {
+                    e.printStackTrace();
+                    error = e;
+                }
+                final boolean keyGenerated = generated;
+                final Exception exception = error;
+                HANDLER.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (exception == null) {
+                            callback.keyReady(keyGenerated);
+                        } else {
+                            callback.keyFailed(exception);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * @return true, if the key is ready and ciphers can be requested
+     */
+    static boolean isInitialized() {
+        return mKey != null;
+    }
 
     /**
      * Creates a symmetric key in the Android Key Store which can only be used after the user has
      * authenticated with fingerprint.
+     * <p>
+     * The key only wraps and unwraps the master keys in the {@link Container} headers, the file
+     * content itself is encrypted in process with the data keys. Only legacy files have their
+     * content encrypted with this key directly.
      */
-    private static void createKey() throws CertificateException, NoSuchAlgorithmException,
-            IOException, InvalidAlgorithmParameterException {
+    private static void createKey() throws InvalidAlgorithmParameterException {
         // The enrolling flow for fingerprint. This is where you ask the user to set up fingerprint
         // for your flow. Use of keys is necessary if you need to know if the set of
         // enrolled fingerprints has changed.
-        mKeyStore.load(null);
         // Set the alias of the entry in Android KeyStore where the key will appear
         // and the constrains (purposes) in the constructor of the Builder
         mKeyGenerator.init(new KeyGenParameterSpec.Builder(KEY_NAME,
@@ -97,22 +239,6 @@ class CipherUtil {
         mKeyGenerator.generateKey();
     }
 
-    /**
-     * Checks if a key has already been create
-     *
-     * @return true, if a key is already created
-     */
-    private static boolean hasKey() {
-        try {
-            mKeyStore.load(null);
-            SecretKey key = (SecretKey) mKeyStore.getKey(KEY_NAME, null);
-            return key != null;
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-        return false;
-    }
-
     /**
      * Request a cipher
      *
@@ -123,21 +249,172 @@ class CipherUtil {
     static void getCipher(final Context context, final byte[] iv,
                           final CipherResultCallback callback) throws GeneralSecurityException,
             IOException {
-        mKeyStore.load(null);
-        SecretKey key = (SecretKey) mKeyStore.getKey(KEY_NAME, null);
-        Cipher c;
+        long start = System.nanoTime();
+        SecretKey key = getKey();
+        Provider provider = mCipherProvider;
+        Cipher c = provider != null ? Cipher.getInstance(CBC, provider) : Cipher.getInstance(CBC);
         if (iv == null) {
-            c = Cipher.getInstance(
-                    KeyProperties.KEY_ALGORITHM_AES + "/" + KeyProperties.BLOCK_MODE_CBC + "/" +
-                            KeyProperties.ENCRYPTION_PADDING_PKCS7);
             c.init(Cipher.ENCRYPT_MODE, key);
         } else {
-            c = Cipher.getInstance(
-                    KeyProperties.KEY_ALGORITHM_AES + "/" + KeyProperties.BLOCK_MODE_CBC + "/" +
-                            KeyProperties.ENCRYPTION_PADDING_PKCS7);
             c.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(iv));
         }
+        mCipherProvider = c.getProvider();
         auth(c, context, callback);
+        Metrics.AUTH_PROMPT.recordSince(start);
+    }
+
+    /**
+     * @return the handle of the key, waiting for the keystore thread if it is not loaded yet
+     * @throws GeneralSecurityException if the key does not exist
+     */
+    private static SecretKey getKey() throws GeneralSecurityException, IOException {
+        SecretKey key = mKey;
+        if (key != null) {
+            return key;
+        }
+        warmUp();
+        try {
+            key = KEYSTORE.submit(new Callable<SecretKey>() {
+                @Override
+                public SecretKey call() throws Exception {
+                    load();
+                    return mKey;
+                }
+            }).get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof GeneralSecurityException) {
+                throw (GeneralSecurityException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+        if (key == null) {
+            throw new GeneralSecurityException("No key");
+        }
+        return key;
+    }
+
+    /**
+     * Gets the key, which encrypts the thumbnails in the {@link Database}.
+     * <p>
+     * Thumbnails are decrypted whenever a list is scrolled, so they can not ask for a fingerprint
+     * every time. Their key is a random AES key, stored wrapped with a key in the Android Key Store,
+     * which can only be used for a few minutes after the user has authenticated. Once unwrapped,
+     * the key is kept in memory for the lifetime of the process. Waits for the keystore thread,
+     * so it must not be called on the main thread.
+     *
+     * @param context the context
+     * @return the key or null, if the user has not authenticated recently and the key has not
+     * been unwrapped before
+     */
+    static SecretKey getThumbnailKey(final Context context) {
+        SecretKey key = thumbnailKey;
+        if (key != null) {
+            return key;
+        }
+        warmUp();
+        try {
+            return KEYSTORE.submit(new Callable<SecretKey>() {
+                @Override
+                public SecretKey call() {
+                    return loadThumbnailKey(context);
+                }
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Unwraps the thumbnail key or creates it, if it does not exist. Must only be called on the
+     * keystore thread
+     *
+     * @return the key or null, if it is not available
+     */
+    private static SecretKey loadThumbnailKey(final Context context) {
+        if (thumbnailKey != null) {
+            return thumbnailKey;
+        }
+        java.io.File file = new java.io.File(context.getFilesDir(), THUMBNAIL_KEY_FILE);
+        byte[] key = null;
+        try {
+            load();
+            SecretKey wrappingKey = (SecretKey) mKeyStore.getKey(THUMBNAIL_KEY_NAME, null);
+            if (wrappingKey == null || !file.exists()) {
+                wrappingKey = createThumbnailWrappingKey();
+                key = new byte[32];
+                new SecureRandom().nextBytes(key);
+                KeyWrap.write(file, wrappingKey, key);
+            } else {
+                key = KeyWrap.read(file, wrappingKey);
+            }
+            thumbnailKey = new SecretKeySpec(key, KeyProperties.KEY_ALGORITHM_AES);
+        } catch (UserNotAuthenticatedException e) {
+            return null;
+        } catch (KeyPermanentlyInvalidatedException e) {
+            // the lock screen has been removed: the existing thumbnails can not be decrypted
+            // anymore, new ones get a new key
+            file.delete();
+            return null;
+        } catch (GeneralSecurityException | IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            if (key != null) {
+                Arrays.fill(key, (byte) 0);
+            }
+        }
+        return thumbnailKey;
+    }
+
+    private static SecretKey createThumbnailWrappingKey() throws GeneralSecurityException {
+        KeyGenerator generator =
+                KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, "AndroidKeyStore");
+        generator.init(new KeyGenParameterSpec.Builder(THUMBNAIL_KEY_NAME,
+                KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
+                .setBlockModes(KeyProperties.BLOCK_MODE_GCM)
+                .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_NONE)
+                .setUserAuthenticationRequired(true)
+                .setUserAuthenticationValidityDurationSeconds(THUMBNAIL_KEY_VALIDITY_SECONDS)
+                .build());
+        return generator.generateKey();
+    }
+
+    /**
+     * Encrypts a thumbnail in process
+     *
+     * @param key       the key, see {@link #getThumbnailKey(Context)}
+     * @param thumbnail the plaintext
+     * @return the random IV followed by the ciphertext
+     */
+    static byte[] encryptThumbnail(final SecretKey key, final byte[] thumbnail)
+            throws GeneralSecurityException {
+        byte[] iv = new byte[12];
+        new SecureRandom().nextBytes(iv);
+        Cipher c = Cipher.getInstance(GCM);
+        c.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_BITS, iv));
+        byte[] encrypted = Arrays.copyOf(iv, iv.length + c.getOutputSize(thumbnail.length));
+        c.doFinal(thumbnail, 0, thumbnail.length, encrypted, iv.length);
+        return encrypted;
+    }
+
+    /**
+     * @param key       the key, see {@link #getThumbnailKey(Context)}
+     * @param encrypted a thumbnail returned by {@link #encryptThumbnail(SecretKey, byte[])}
+     * @return the plaintext
+     * @throws GeneralSecurityException if the thumbnail has been encrypted with another key or
+     *                                  has been modified
+     */
+    static byte[] decryptThumbnail(final SecretKey key, final byte[] encrypted)
+            throws GeneralSecurityException {
+        Cipher c = Cipher.getInstance(GCM);
+        c.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_BITS, encrypted, 0, 12));
+        return c.doFinal(encrypted, 12, encrypted.length - 12);
     }
 
     private static void auth(final Cipher c, final Context context,
@@ -150,6 +427,7 @@ class CipherUtil {
                     public void onCancel(final DialogInterface dialogInterface) {
                         mCancellationSignal.cancel();
                         dialogInterface.dismiss();
+                        callback.cipherCancelled();
                     }
                 })
                 .setNegativeButton(android.R.string.cancel, new DialogInterface.OnClickListener() {
@@ -159,6 +437,7 @@ class CipherUtil {
                     }
                 }).create();
         dialog.show();
+        final long start = System.nanoTime();
         //noinspection ResourceType
         ((FingerprintManager) context.getSystemService(Context.FINGERPRINT_SERVICE))
                 .authenticate(mCryptoObject, mCancellationSignal, 0,
@@ -167,6 +446,7 @@ class CipherUtil {
                             public void onAuthenticationSucceeded(
                                     FingerprintManager.AuthenticationResult result) {
                                 super.onAuthenticationSucceeded(result);
+                                Metrics.AUTH_WAIT.recordSince(start);
                                 dialog.dismiss();
                                 callback.cipherAvailable(c);
                             }
@@ -188,5 +468,10 @@ class CipherUtil {
          * @param c the cipher
          */
         void cipherAvailable(final Cipher c);
+
+        /**
+         * The user cancelled the authentication, no cipher will be available
+         */
+        void cipherCancelled();
     }
 }
@@ -0,0 +1,296 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter;
+
+import android.content.Context;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Optional compression of the plaintext before it is encrypted, as ciphertext can not be
+ * compressed anymore.
+ * <p>
+ * Whether a file is compressed is decided by its mime type first: images, videos and audio files
+ * (as well as archives) are already compressed and skip the compression without reading
+ * anything. All other files are compressed, if a sample of their beginning has a low enough
+ * entropy. The (de)compression streams through fixed size buffers, so it never needs more memory
+ * for larger files.
+ * <p>
+ * A compressed file can neither be decrypted starting at a chunk in the middle nor continued at
+ * a checkpoint, as the compressed stream can only be read from its beginning.
+ */
+class Compression {
+
+    private final static int SAMPLE_SIZE = 16 * 1024;
+    private final static int MIN_SAMPLE_SIZE = 512;
+    /**
+     * Samples with more bits of entropy per byte are considered incompressible
+     */
+    private final static double MAX_ENTROPY = 7.5;
+
+    /**
+     * Image, video and audio types, which are not compressed by their format
+     */
+    private final static String[] UNCOMPRESSED_MEDIA_TYPES =
+            {"image/bmp", "image/x-ms-bmp", "image/svg+xml", "audio/wav", "audio/x-wav"};
+    private final static String[] COMPRESSED_TYPES =
+            {"application/zip", "application/gzip", "application/x-gzip", "application/x-bzip2",
+                    "application/x-xz", "application/x-7z-compressed",
+                    "application/x-rar-compressed", "application/java-archive",
+                    "application/vnd.android.package-archive", "application/epub+zip",
+                    "application/vnd.openxmlformats-officedocument.",
+                    "application/vnd.oasis.opendocument."};
+
+    private Compression() {
+    }
+
+    /**
+     * Chooses the compression for the given file
+     *
+     * @param context the context
+     * @param file    the plaintext file
+     * @return the compression to use, one of the COMPRESSION_ constants in {@link Container}
+     */
+    static int choose(final Context context, final File file) {
+        if (isCompressedType(file.mime)) {
+            return Container.COMPRESSION_NONE;
+        }
+        try (ReadableByteChannel in = ChannelUtil.openInput(context, file.uri)) {
+            ByteBuffer sample = ByteBuffer.allocate(SAMPLE_SIZE);
+            while (sample.hasRemaining() && in.read(sample) >= 0) ;
+            if (sample.position() < MIN_SAMPLE_SIZE) {
+                // too small to save more than the compression overhead
+                return Container.COMPRESSION_NONE;
+            }
+            double entropy = entropy(sample.array(), sample.position());
+            if (BuildConfig.DEBUG) android.util.Log.d(MainActivity.TAG,
+                    "Compression: " + file.name + " (" + file.mime + ") has an entropy of " +
+                            entropy + " bits/byte");
+            return entropy <= MAX_ENTROPY ? Container.COMPRESSION_DEFLATE :
+                    Container.COMPRESSION_NONE;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return Container.COMPRESSION_NONE;
+        }
+    }
+
+    /**
+     * @param mime the mime type
+     * @return true, if files of this type are known to be compressed already
+     */
+    static boolean isCompressedType(final String mime) {
+        if (mime == null) {
+            return false;
+        }
+        if (mime.startsWith("image") || mime.startsWith("video") || mime.startsWith("audio")) {
+            for (String type : UNCOMPRESSED_MEDIA_TYPES) {
+                if (mime.equals(type)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        for (String type : COMPRESSED_TYPES) {
+            if (mime.startsWith(type)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param data   the data
+     * @param length the number of bytes to consider
+     * @return the Shannon entropy of the data in bits per byte, between 0 and 8
+     */
+    static double entropy(final byte[] data, final int length) {
+        int[] counts = new int[256];
+        for (int i = 0; i < length; i++) {
+            counts[data[i] & 0xff]++;
+        }
+        double entropy = 0;
+        for (int count : counts) {
+            if (count > 0) {
+                double p = (double) count / length;
+                entropy -= p * Math.log(p);
+            }
+        }
+        return entropy / Math.log(2);
+    }
+
+    /**
+     * A channel, which knows how many bytes of the uncompressed plaintext it has processed
+     */
+    interface Progress {
+        /**
+         * @return the number of uncompressed bytes processed so far
+         */
+        long plaintextBytes();
+    }
+
+    /**
+     * Channel reading the compressed form of another channel
+     */
+    static class DeflatingChannel implements ReadableByteChannel, Progress {
+        private final ReadableByteChannel source;
+        private final MessageDigest digest;
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        private final byte[] input = new byte[CryptoService.BUFFER_SIZE];
+        private final byte[] output = new byte[CryptoService.BUFFER_SIZE];
+        private final ByteBuffer inputBuffer = ByteBuffer.wrap(input);
+        private int outputPosition, outputLength;
+
+        /**
+         * @param source the channel to read the uncompressed data from
+         * @param digest the digest to feed the uncompressed data into or null
+         */
+        DeflatingChannel(final ReadableByteChannel source, final MessageDigest digest) {
+            this.source = source;
+            this.digest = digest;
+        }
+
+        @Override
+        public int read(final ByteBuffer dst) throws IOException {
+            if (!dst.hasRemaining()) {
+                return 0;
+            }
+            while (outputPosition == outputLength) {
+                if (deflater.finished()) {
+                    return -1;
+                }
+                if (deflater.needsInput()) {
+                    inputBuffer.clear();
+                    int read = source.read(inputBuffer);
+                    if (read < 0) {
+                        deflater.finish();
+                    } else {
+                        deflater.setInput(input, 0, read);
+                        if (digest != null) {
+                            digest.update(input, 0, read);
+                        }
+                    }
+                }
+                outputLength = deflater.deflate(output);
+                outputPosition = 0;
+            }
+            int n = Math.min(dst.remaining(), outputLength - outputPosition);
+            dst.put(output, outputPosition, n);
+            outputPosition += n;
+            return n;
+        }
+
+        @Override
+        public long plaintextBytes() {
+            return deflater.getBytesRead();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return source.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            deflater.end();
+            source.close();
+        }
+    }
+
+    /**
+     * Channel decompressing everything written to it into another channel
+     */
+    static class InflatingChannel implements WritableByteChannel, Progress {
+        private final WritableByteChannel sink;
+        private final Inflater inflater = new Inflater();
+        private final byte[] input = new byte[CryptoService.BUFFER_SIZE];
+        private final byte[] output = new byte[CryptoService.BUFFER_SIZE];
+        private long skip;
+
+        /**
+         * @param sink the channel to write the uncompressed data to
+         * @param skip the number of uncompressed bytes to discard before writing to the sink
+         */
+        InflatingChannel(final WritableByteChannel sink, final long skip) {
+            this.sink = sink;
+            this.skip = skip;
+        }
+
+        @Override
+        public int write(final ByteBuffer src) throws IOException {
+            int length = src.remaining();
+            while (src.hasRemaining()) {
+                if (inflater.finished()) {
+                    throw new ZipException("Unexpected data after the compressed stream");
+                }
+                int n = Math.min(src.remaining(), input.length);
+                src.get(input, 0, n);
+                inflater.setInput(input, 0, n);
+                while (!inflater.needsInput() && !inflater.finished()) {
+                    int inflated;
+                    try {
+                        inflated = inflater.inflate(output);
+                    } catch (DataFormatException e) {
+                        throw new ZipException(e.getMessage());
+                    }
+                    if (inflated == 0 && inflater.needsDictionary()) {
+                        throw new ZipException("Compressed stream needs a dictionary");
+                    }
+                    int discard = (int) Math.min(skip, inflated);
+                    skip -= discard;
+                    ByteBuffer buffer = ByteBuffer.wrap(output, discard, inflated - discard);
+                    while (buffer.hasRemaining()) {
+                        sink.write(buffer);
+                    }
+                }
+            }
+            return length;
+        }
+
+        /**
+         * Verifies, that the complete compressed stream has been written
+         */
+        void finish() throws IOException {
+            if (!inflater.finished()) {
+                throw new EOFException("Compressed stream is truncated");
+            }
+        }
+
+        @Override
+        public long plaintextBytes() {
+            return inflater.getBytesWritten();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return sink.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            inflater.end();
+            sink.close();
+        }
+    }
+}
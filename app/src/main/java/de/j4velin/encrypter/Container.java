@@ -0,0 +1,277 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * The container format of encrypted files.
+ * <p>
+ * Layout: [magic][version][chunk size][nonce prefix][key iv length][key iv][wrapped key length]
+ * [wrapped key][data key iv length][data key iv][wrapped data key length][wrapped data key]
+ * [compression][chunk 0][chunk 1]...
+ * <p>
+ * Each chunk contains (at most) chunk size bytes of plaintext and is sealed on its own with
+ * AES-GCM, so every chunk can be decrypted and verified without reading the chunks before it.
+ * <p>
+ * The chunks are encrypted with a random data key per file. The data key is wrapped with a
+ * master key, which in turn is wrapped with the key from the Android Key Store. All files
+ * encrypted after a single authentication share the same master key. Version 1 files have no
+ * data key: their chunks are encrypted with the master key directly.
+ * <p>
+ * Since version 3, the plaintext may be compressed before it is split into chunks. The
+ * compression is authenticated together with the data key, so it can not be changed without the
+ * data key failing to unwrap. Older files are never compressed.
+ * <p>
+ * Files written before this format existed start with [iv length][iv] followed by a single
+ * AES/CBC/PKCS7 stream. As the magic never starts with a valid iv length, both formats can be
+ * told apart by the first bytes.
+ */
+class Container {
+
+    private final static byte[] MAGIC = new byte[]{'E', 'N', 'C', 'R'};
+    final static int VERSION = 3;
+
+    final static int DEFAULT_CHUNK_SIZE = 64 * 1024;
+    final static int NONCE_PREFIX_LENGTH = 4;
+    final static int NONCE_LENGTH = NONCE_PREFIX_LENGTH + 8;
+    final static int TAG_LENGTH = 16;
+    final static int KEY_LENGTH = 32;
+
+    final static int COMPRESSION_NONE = 0;
+    final static int COMPRESSION_DEFLATE = 1;
+
+    private final static int MAX_CHUNK_SIZE = 16 * 1024 * 1024;
+    private final static String KEY_WRAP_TRANSFORMATION = "AES/GCM/NoPadding";
+
+    final int version;
+    final int chunkSize;
+    final byte[] noncePrefix;
+    /**
+     * The iv and the master key, as wrapped by the Android Key Store
+     */
+    final byte[] keyIv, wrappedKey;
+    /**
+     * The iv and the data key, as wrapped by the master key. Null for version 1 files
+     */
+    private final byte[] dataKeyIv, wrappedDataKey;
+    /**
+     * The compression of the plaintext, one of the COMPRESSION_ constants
+     */
+    final int compression;
+
+    private Container(final int version, final int chunkSize, final byte[] noncePrefix,
+                      final byte[] keyIv, final byte[] wrappedKey, final byte[] dataKeyIv,
+                      final byte[] wrappedDataKey, final int compression) {
+        this.version = version;
+        this.chunkSize = chunkSize;
+        this.noncePrefix = noncePrefix;
+        this.keyIv = keyIv;
+        this.wrappedKey = wrappedKey;
+        this.dataKeyIv = dataKeyIv;
+        this.wrappedDataKey = wrappedDataKey;
+        this.compression = compression;
+    }
+
+    /**
+     * Creates the header of a new file
+     *
+     * @param chunkSize   the chunk size
+     * @param keyIv       the iv used by the Android Key Store to wrap the master key
+     * @param wrappedKey  the wrapped master key
+     * @param masterKey   the (unwrapped) master key
+     * @param dataKey     the random data key of the new file
+     * @param compression the compression of the plaintext, one of the COMPRESSION_ constants
+     * @return the header
+     */
+    static Container create(final int chunkSize, final byte[] keyIv, final byte[] wrappedKey,
+                            final byte[] masterKey, final byte[] dataKey,
+                            final int compression) throws GeneralSecurityException {
+        SecureRandom random = new SecureRandom();
+        byte[] noncePrefix = new byte[NONCE_PREFIX_LENGTH];
+        random.nextBytes(noncePrefix);
+        byte[] dataKeyIv = new byte[NONCE_LENGTH];
+        random.nextBytes(dataKeyIv);
+        Cipher c = Cipher.getInstance(KEY_WRAP_TRANSFORMATION);
+        c.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(masterKey, "AES"),
+                new GCMParameterSpec(TAG_LENGTH * 8, dataKeyIv));
+        c.updateAAD(new byte[]{(byte) compression});
+        return new Container(VERSION, chunkSize, noncePrefix, keyIv, wrappedKey, dataKeyIv,
+                c.doFinal(dataKey), compression);
+    }
+
+    /**
+     * Unwraps the data key of this file
+     *
+     * @param masterKey the master key, as unwrapped by the Android Key Store
+     * @return the key to encrypt/decrypt the chunks with. Always a new array, which the caller
+     * overwrites once done, even for version 1 files, whose chunks use the master key itself
+     */
+    byte[] dataKey(final byte[] masterKey) throws GeneralSecurityException {
+        if (wrappedDataKey == null) {
+            // the master key is shared with other jobs
+            return masterKey.clone();
+        }
+        Cipher c = Cipher.getInstance(KEY_WRAP_TRANSFORMATION);
+        c.init(Cipher.DECRYPT_MODE, new SecretKeySpec(masterKey, "AES"),
+                new GCMParameterSpec(TAG_LENGTH * 8, dataKeyIv));
+        if (version >= 3) {
+            c.updateAAD(new byte[]{(byte) compression});
+        }
+        return c.doFinal(wrappedDataKey);
+    }
+
+    /**
+     * @return the size of the header in bytes, which is also the offset of the first chunk
+     */
+    int headerLength() {
+        int length = MAGIC.length + 1 + 4 + NONCE_PREFIX_LENGTH + 1 + keyIv.length + 2 +
+                wrappedKey.length;
+        if (wrappedDataKey != null) {
+            length += 1 + dataKeyIv.length + 2 + wrappedDataKey.length;
+        }
+        if (version >= 3) {
+            length += 1;
+        }
+        return length;
+    }
+
+    /**
+     * @return the size of one complete chunk (ciphertext + tag) in the file
+     */
+    int frameLength() {
+        return chunkSize + TAG_LENGTH;
+    }
+
+    /**
+     * @param chunk the chunk index
+     * @return the position of the given chunk within the encrypted file
+     */
+    long chunkOffset(final long chunk) {
+        return headerLength() + chunk * frameLength();
+    }
+
+    /**
+     * Writes the header to the given stream
+     *
+     * @param out the stream to write to
+     */
+    void write(final OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.write(MAGIC);
+        data.writeByte(version);
+        data.writeInt(chunkSize);
+        data.write(noncePrefix);
+        data.writeByte(keyIv.length);
+        data.write(keyIv);
+        data.writeShort(wrappedKey.length);
+        data.write(wrappedKey);
+        if (wrappedDataKey != null) {
+            data.writeByte(dataKeyIv.length);
+            data.write(dataKeyIv);
+            data.writeShort(wrappedDataKey.length);
+            data.write(wrappedDataKey);
+        }
+        if (version >= 3) {
+            data.writeByte(compression);
+        }
+        data.flush();
+    }
+
+    /**
+     * Writes the header to the given channel with a single write
+     *
+     * @param out the channel to write to
+     */
+    void write(final WritableByteChannel out) throws IOException {
+        ByteArrayOutputStream header = new ByteArrayOutputStream(headerLength());
+        write(header);
+        ByteBuffer buffer = ByteBuffer.wrap(header.toByteArray());
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    /**
+     * Reads the header of an encrypted file.
+     * <p>
+     * The stream must support mark/reset: if the file is not in the container format, the
+     * stream is reset to its beginning so that the legacy format can be read instead.
+     *
+     * @param in the stream to read from, positioned at the beginning of the file
+     * @return the header or null, if the file is not in the container format
+     * @throws IOException if the header is corrupt or of an unsupported version
+     */
+    static Container read(final InputStream in) throws IOException {
+        in.mark(MAGIC.length);
+        byte[] magic = new byte[MAGIC.length];
+        DataInputStream data = new DataInputStream(in);
+        try {
+            data.readFully(magic);
+        } catch (IOException e) {
+            in.reset();
+            return null;
+        }
+        if (!Arrays.equals(magic, MAGIC)) {
+            in.reset();
+            return null;
+        }
+        int version = data.readUnsignedByte();
+        if (version > VERSION) {
+            throw new IOException("Unsupported container version " + version);
+        }
+        int chunkSize = data.readInt();
+        if (chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE) {
+            throw new IOException("Invalid chunk size " + chunkSize);
+        }
+        byte[] noncePrefix = new byte[NONCE_PREFIX_LENGTH];
+        data.readFully(noncePrefix);
+        byte[] keyIv = new byte[data.readUnsignedByte()];
+        data.readFully(keyIv);
+        byte[] wrappedKey = new byte[data.readUnsignedShort()];
+        data.readFully(wrappedKey);
+        byte[] dataKeyIv = null, wrappedDataKey = null;
+        if (version >= 2) {
+            dataKeyIv = new byte[data.readUnsignedByte()];
+            data.readFully(dataKeyIv);
+            wrappedDataKey = new byte[data.readUnsignedShort()];
+            data.readFully(wrappedDataKey);
+        }
+        int compression = COMPRESSION_NONE;
+        if (version >= 3) {
+            compression = data.readUnsignedByte();
+            if (compression > COMPRESSION_DEFLATE) {
+                throw new IOException("Unsupported compression " + compression);
+            }
+        }
+        return new Container(version, chunkSize, noncePrefix, keyIv, wrappedKey, dataKeyIv,
+                wrappedDataKey, compression);
+    }
+}
@@ -0,0 +1,856 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.database.Cursor;
+import android.graphics.drawable.Icon;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.provider.DocumentsContract;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.crypto.CipherInputStream;
+
+/**
+ * Foreground service which runs the encryption and decryption jobs on a bounded pool of workers.
+ * <p>
+ * Jobs are persisted in the database when they are submitted and removed once they are done. The
+ * progress of all running jobs is shown in a single notification and the result of every job in
+ * a summary notification once the queue is empty. Jobs left over by a killed process are not run
+ * until the user authenticates again, see {@link CryptoUtil#resume(Context, List)}.
+ */
+public class CryptoService extends Service {
+
+    final static int BUFFER_SIZE = 64 * 1024;
+    final static int LEGACY_BLOCK_SIZE = 16;
+    private final static String HASH_ALGORITHM = "SHA-256";
+
+    private final static String ACTION_CANCEL = "de.j4velin.encrypter.CANCEL";
+    private final static long CHECKPOINT_INTERVAL = 64 * 1024 * 1024;
+
+    private final static int MAX_PARALLEL_JOBS = 2;
+    private final static int NOTIFICATION_PROGRESS = 1;
+    private final static int NOTIFICATION_RESULT = 2;
+    private final static int NOTIFICATION_INTERRUPTED = 3;
+    private final static long UPDATE_INTERVAL = 1000;
+
+    /**
+     * The submitted jobs which can be run, together with their keys
+     */
+    private final static Map<Long, Job> JOBS = new ConcurrentHashMap<>();
+    /**
+     * Reads and writes the job queue in the database, so that the main thread never waits for
+     * it. A single thread keeps the jobs in the order they have been submitted
+     */
+    private final static ExecutorService QUEUE = Executors.newSingleThreadExecutor();
+    /**
+     * The number of submitted jobs, which are not persisted yet. Guarded by {@link #JOBS}
+     */
+    private static int submitting;
+
+    private final Map<Long, Job> running = new ConcurrentHashMap<>();
+    private final List<String> results = new ArrayList<>();
+    private int succeeded;
+    private ExecutorService executor;
+    private Database db;
+    private Handler handler;
+    private NotificationManager notificationManager;
+
+    private final Runnable updateProgress = new Runnable() {
+        @Override
+        public void run() {
+            if (!running.isEmpty()) {
+                notificationManager.notify(NOTIFICATION_PROGRESS, buildProgressNotification());
+                handler.postDelayed(this, UPDATE_INTERVAL);
+            }
+        }
+    };
+
+    /**
+     * Persists the given authenticated jobs and starts running them. The caller may release the
+     * keys of the jobs as soon as this method returns.
+     * <p>
+     * On the main thread, the jobs are persisted in the background. Other threads wait until
+     * they are persisted, so that for example a batch can release its pack afterwards.
+     *
+     * @param context the context
+     * @param jobs    the jobs to run, with their keys
+     */
+    static void submit(final Context context, final List<Job> jobs) {
+        final Context appContext = context.getApplicationContext();
+        final List<Job> submitted = new ArrayList<>(jobs);
+        for (Job job : submitted) {
+            if (job.masterKey != null) {
+                job.masterKey.retain();
+            }
+        }
+        synchronized (JOBS) {
+            submitting += submitted.size();
+        }
+        Future<?> persisted = QUEUE.submit(new Runnable() {
+            @Override
+            public void run() {
+                int added = 0;
+                Database db = new Database(appContext);
+                try {
+                    for (Job job : submitted) {
+                        if (job.id < 0) {
+                            job.id = db.addJob(job);
+                        }
+                        JOBS.put(job.id, job);
+                        added++;
+                    }
+                } finally {
+                    db.close();
+                    for (Job job : submitted.subList(added, submitted.size())) {
+                        if (job.masterKey != null) {
+                            job.masterKey.release();
+                        }
+                    }
+                    synchronized (JOBS) {
+                        submitting -= submitted.size();
+                        JOBS.notifyAll();
+                    }
+                }
+                appContext.startService(new Intent(appContext, CryptoService.class));
+            }
+        });
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    persisted.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    // e.g. a full disk
+                    if (e.getCause() instanceof RuntimeException) {
+                        throw (RuntimeException) e.getCause();
+                    }
+                    throw new RuntimeException(e.getCause());
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Waits until less than the given number of submitted jobs are not done yet. Used to submit
+     * a large number of jobs in parts, while the first ones are already running
+     *
+     * @param max the maximum number of jobs
+     */
+    static void awaitCapacity(final int max) throws InterruptedException {
+        synchronized (JOBS) {
+            while (JOBS.size() + submitting >= max) {
+                JOBS.wait();
+            }
+        }
+    }
+
+    interface InterruptedJobsCallback {
+        /**
+         * Called on the main thread
+         *
+         * @param jobs the interrupted jobs
+         */
+        void found(final List<Job> jobs);
+    }
+
+    /**
+     * Looks up the persisted jobs which can not be run as their key is gone, because the process
+     * has been killed while they were queued or running
+     *
+     * @param context  the context
+     * @param callback receives the interrupted jobs
+     */
+    static void getInterruptedJobs(final Context context,
+                                   final InterruptedJobsCallback callback) {
+        final Context appContext = context.getApplicationContext();
+        final Handler handler = new Handler(Looper.getMainLooper());
+        QUEUE.execute(new Runnable() {
+            @Override
+            public void run() {
+                final List<Job> jobs = getInterruptedJobs(appContext);
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.found(jobs);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Must only be called on the {@link #QUEUE} thread, so that no submitted job is missing
+     * from {@link #JOBS} yet
+     *
+     * @return the interrupted jobs
+     */
+    private static List<Job> getInterruptedJobs(final Context context) {
+        Database db = new Database(context);
+        List<Job> jobs = db.getJobs();
+        db.close();
+        Iterator<Job> iterator = jobs.iterator();
+        while (iterator.hasNext()) {
+            if (JOBS.containsKey(iterator.next().id)) {
+                iterator.remove();
+            }
+        }
+        return jobs;
+    }
+
+    /**
+     * Removes interrupted jobs without running them
+     *
+     * @param context the context
+     * @param jobs    the interrupted jobs
+     */
+    static void discard(final Context context, final List<Job> jobs) {
+        final Context appContext = context.getApplicationContext();
+        QUEUE.execute(new Runnable() {
+            @Override
+            public void run() {
+                Database db = new Database(appContext);
+                for (Job job : jobs) {
+                    db.deleteJob(job.id);
+                    if (job.encrypt && PackStore.isPack(job.target.uri)) {
+                        PackStore.deleteIfUnused(db, job.target.uri);
+                    } else if (job.encrypt) {
+                        new java.io.File(job.target.uri.getPath()).delete();
+                    }
+                    CryptoUtil.releaseUriPermission(appContext, job.encrypt ? job.source.uri :
+                            job.target.uri);
+                }
+                db.close();
+            }
+        });
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        executor = Executors.newFixedThreadPool(MAX_PARALLEL_JOBS);
+        db = new Database(this);
+        handler = new Handler(Looper.getMainLooper());
+        notificationManager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        executor.shutdown();
+        handler.removeCallbacks(updateProgress);
+        db.close();
+    }
+
+    @Override
+    public IBinder onBind(final Intent intent) {
+        return null;
+    }
+
+    @Override
+    public int onStartCommand(final Intent intent, int flags, int startId) {
+        if (intent != null && ACTION_CANCEL.equals(intent.getAction())) {
+            for (Job job : running.values()) {
+                job.cancel();
+            }
+            return START_NOT_STICKY;
+        }
+        for (final Job job : JOBS.values()) {
+            if (running.containsKey(job.id)) {
+                continue;
+            }
+            if (running.isEmpty()) {
+                startForeground(NOTIFICATION_PROGRESS, buildProgressNotification());
+                handler.postDelayed(updateProgress, UPDATE_INTERVAL);
+            }
+            running.put(job.id, job);
+            Metrics.JOB_QUEUE.record(running.size());
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    runJob(job);
+                }
+            });
+        }
+        getInterruptedJobs(this, new InterruptedJobsCallback() {
+            @Override
+            public void found(final List<Job> jobs) {
+                int interrupted = jobs.size();
+                if (interrupted > 0) {
+                    notificationManager.notify(NOTIFICATION_INTERRUPTED,
+                            new Notification.Builder(CryptoService.this)
+                                    .setSmallIcon(R.drawable.ic_lock)
+                                    .setContentTitle(getResources()
+                                            .getQuantityString(R.plurals.jobs_interrupted,
+                                                    interrupted, interrupted))
+                                    .setContentText(getString(R.string.jobs_resume))
+                                    .setContentIntent(getMainActivityIntent())
+                                    .setAutoCancel(true).build());
+                }
+            }
+        });
+        if (running.isEmpty()) {
+            stopSelf(startId);
+        }
+        return START_NOT_STICKY;
+    }
+
+    private void runJob(final Job job) {
+        if (BuildConfig.DEBUG) android.util.Log.d(MainActivity.TAG, "CryptoService start " + job);
+        long start = System.nanoTime();
+        String result;
+        boolean success = false;
+        Uri pack = job.encrypt && PackStore.isPack(job.target.uri) ? job.target.uri : null;
+        try {
+            if (job.cancelled) {
+                throw new InterruptedIOException("Cancelled");
+            }
+            if (job.encrypt) {
+                encrypt(job);
+            } else {
+                decrypt(job);
+            }
+            success = true;
+            result = getString(job.encrypt ? R.string.job_encrypted : R.string.job_decrypted,
+                    job.source.name);
+        } catch (IOException | GeneralSecurityException e) {
+            e.printStackTrace();
+            deleteTarget(job);
+            result = job.cancelled ? getString(R.string.job_cancelled, job.source.name) :
+                    getString(R.string.job_failed, job.source.name, e.getMessage());
+        } finally {
+            db.deleteJob(job.id);
+            if (pack != null) {
+                // deleted, if none of the files of its batch has been encrypted into it
+                PackStore.deleteIfUnused(db, pack);
+            }
+            synchronized (JOBS) {
+                JOBS.remove(job.id);
+                JOBS.notifyAll();
+            }
+            if (job.masterKey != null) {
+                job.masterKey.release();
+            }
+            CryptoUtil.releaseUriPermission(this, job.encrypt ? job.source.uri : job.target.uri);
+        }
+        Metrics.recordJob(job.encrypt, job.processed, System.nanoTime() - start, success);
+        if (BuildConfig.DEBUG) {
+            long ms = Math.max(1, (System.nanoTime() - start) / 1000000);
+            android.util.Log.d(MainActivity.TAG,
+                    "CryptoService " + job.processed + " bytes in " + ms + " ms, " +
+                            (job.processed / 1024 * 1000 / 1024 / ms) + " MB/s");
+        }
+        jobDone(job, success, result);
+    }
+
+    private void encrypt(final Job job) throws IOException, GeneralSecurityException {
+        if (PackStore.isPack(job.target.uri) && encryptIntoPack(job)) {
+            return;
+        }
+        ReadableByteChannel input = ChannelUtil.openInput(this, job.source.uri);
+        // only a job encrypting the complete file in one run knows the hash of the plaintext
+        MessageDigest digest = null;
+        // the tree of the encrypted file is built from what the engine writes
+        MerkleTree.Builder tree = new MerkleTree.Builder();
+        try (FileChannel output = new RandomAccessFile(job.target.uri.getPath(), "rw")
+                .getChannel()) {
+            Container container = null;
+            String sourceVersion = getVersion(job.source.uri);
+            if (job.checkpoint > 0) {
+                container = Container.read(
+                        new BufferedInputStream(Channels.newInputStream(output), BUFFER_SIZE));
+                // A changed source would seal different plaintext with the same key and nonces
+                // as the chunks written before, which reveals both. A new run gets a new data
+                // key and nonce prefix instead
+                if (container == null || !Arrays.equals(container.wrappedKey, job.wrappedKey) ||
+                        container.compression != Container.COMPRESSION_NONE ||
+                        sourceVersion == null || !sourceVersion.equals(job.sourceVersion)) {
+                    container = null;
+                    job.checkpoint = 0;
+                }
+            }
+            ChunkEngine engine;
+            if (container != null) {
+                // chunks are independent of each other, so the file can be continued with
+                // the next chunk after the checkpoint, using the data key from the header
+                long position = container.chunkOffset(job.checkpoint / container.chunkSize);
+                output.truncate(position);
+                output.position(position);
+                byte[] key = container.dataKey(job.masterKey.key);
+                engine = ChunkEngine.encrypter(container, key, job.checkpoint,
+                        ChunkEngine.Config.defaults());
+                Arrays.fill(key, (byte) 0);
+            } else {
+                output.truncate(0);
+                output.position(0);
+                int compression = Compression.choose(this, job.source);
+                engine = CryptoUtil.createEncrypter(job.masterKey, output, compression);
+                container = engine.container;
+                digest = MessageDigest.getInstance(HASH_ALGORITHM);
+                if (compression == Container.COMPRESSION_DEFLATE) {
+                    input = new Compression.DeflatingChannel(input, digest);
+                } else {
+                    engine.setDigest(digest);
+                }
+            }
+            job.sourceVersion = sourceVersion;
+            // the header or the output of an interrupted run
+            tree.update(output, 0, output.position());
+            engine.setOutputCopy(tree);
+            run(job, engine, input, output, container.chunkSize);
+        } finally {
+            input.close();
+        }
+        byte[] hash = digest != null ? digest.digest() : null;
+        if (hash != null) {
+            // The hash of the plaintext is only known once all of it has been read, so a
+            // duplicate still costs one full encryption pass. Hashing the input in a separate
+            // pass before would read every new file twice instead. The existing file already
+            // has its tree and preview
+            File stored = db.addDuplicate(job.target, hash, getBatch(job));
+            if (stored != null) {
+                deleteTarget(job);
+                job.target = stored;
+                return;
+            }
+        }
+        // stored before the entry is added, so that a failure leaves no entry without its tree
+        byte[] root = tree.finish(new java.io.File(job.target.uri.getPath()));
+        // the plaintext is only readable now, so its preview has to be made right away
+        byte[] thumbnail = Thumbnails.create(this, job.source);
+        File stored = db.addFile(job.target, hash, root, getBatch(job));
+        if (stored != job.target) {
+            // the same content has been encrypted by another job in the meantime
+            deleteTarget(job);
+            job.target = stored;
+        }
+        if (thumbnail != null) {
+            Thumbnails.store(db, stored, thumbnail);
+        }
+    }
+
+    /**
+     * Appends a small file to the pack of its batch
+     *
+     * @param job the job, whose target is a pack
+     * @return false, if the file turned out to be too large for a pack. The target of the job is
+     * a new blob then
+     */
+    private boolean encryptIntoPack(final Job job) throws IOException, GeneralSecurityException {
+        ByteBuffer data = ByteBuffer.allocate(Pack.MAX_MEMBER_SIZE + 1);
+        try (ReadableByteChannel input = ChannelUtil.openInput(this, job.source.uri)) {
+            while (data.hasRemaining() && input.read(data) >= 0) {
+                if (job.cancelled) {
+                    throw new InterruptedIOException("Cancelled");
+                }
+            }
+        }
+        if (!data.hasRemaining()) {
+            // the size has been reported wrong
+            job.target = new File(-1, job.target.name, job.target.mime,
+                    Uri.fromFile(BlobStore.create(this)), job.target.size, true,
+                    job.target.path);
+            return false;
+        }
+        long start = System.nanoTime();
+        MessageDigest digest = MessageDigest.getInstance(HASH_ALGORITHM);
+        digest.update(data.array(), 0, data.position());
+        byte[] thumbnail = Thumbnails.create(this, job.source);
+        Pack pack = PackStore.acquire(job.target.uri, job.masterKey);
+        try {
+            long member = pack.append(data.array(), data.position());
+            pack.commit();
+            Metrics.PACK_APPEND.recordSince(start);
+            job.processed = data.position();
+            File target = new File(-1, job.target.name, job.target.mime,
+                    PackStore.getMemberUri(job.target.uri, member), job.target.size, true,
+                    job.target.path);
+            File stored = db.addFile(target, digest.digest(), null, getBatch(job));
+            if (stored != target) {
+                // the same content has been encrypted before
+                pack.remove(member);
+                pack.commit();
+            }
+            job.target = stored;
+            if (thumbnail != null) {
+                Thumbnails.store(db, stored, thumbnail);
+            }
+        } finally {
+            PackStore.release(this, pack);
+        }
+        return true;
+    }
+
+    private void decrypt(final Job job) throws IOException, GeneralSecurityException {
+        if (PackStore.isMember(job.source.uri)) {
+            if (job.masterKey == null) {
+                throw new GeneralSecurityException("Not authenticated");
+            }
+            byte[] data = PackStore.read(this, job.source, job.masterKey);
+            job.checkpoint = 0;
+            int offset = (int) Math.min(job.offset, data.length);
+            try (WritableByteChannel output = openOutput(job)) {
+                ByteBuffer buffer = ByteBuffer.wrap(data, offset, data.length - offset);
+                while (buffer.hasRemaining()) {
+                    output.write(buffer);
+                }
+            }
+            job.processed = data.length - offset;
+            return;
+        }
+        try (FileChannel input = new FileInputStream(job.source.uri.getPath()).getChannel()) {
+            InputStream inputStream =
+                    new BufferedInputStream(Channels.newInputStream(input), BUFFER_SIZE);
+            Container container = Container.read(inputStream);
+            if (container == null) {
+                decryptLegacy(job, inputStream);
+            } else {
+                if (job.masterKey == null) {
+                    throw new GeneralSecurityException("Not authenticated");
+                }
+                boolean compressed = container.compression != Container.COMPRESSION_NONE;
+                if (compressed) {
+                    // the compressed stream has to be decrypted from its beginning
+                    job.checkpoint = 0;
+                }
+                try (WritableByteChannel output = compressed ?
+                        new Compression.InflatingChannel(openOutput(job), job.offset) :
+                        openOutput(job)) {
+                    input.position(container.headerLength());
+                    byte[] key = container.dataKey(job.masterKey.key);
+                    ChunkEngine engine = ChunkEngine.decrypter(container, key, input.size(),
+                            compressed ? 0 : job.offset + job.checkpoint,
+                            ChunkEngine.Config.defaults());
+                    Arrays.fill(key, (byte) 0);
+                    run(job, engine, input, output, 1);
+                    if (compressed) {
+                        ((Compression.InflatingChannel) output).finish();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Decrypts a file in the legacy format, which is a single CBC stream
+     *
+     * @param job         the job
+     * @param inputStream the encrypted file, positioned at its beginning
+     */
+    private void decryptLegacy(final Job job, final InputStream inputStream) throws
+            IOException, GeneralSecurityException {
+        if (job.legacyCipher == null) {
+            throw new GeneralSecurityException("Not authenticated");
+        }
+        // when resuming, the cipher has been initialized with the ciphertext block right before
+        // the checkpoint as iv, see CryptoUtil#resume
+        skipFully(inputStream, 1 + job.keyIv.length + job.checkpoint);
+        try (InputStream in = new CipherInputStream(inputStream, job.legacyCipher);
+             WritableByteChannel output = openOutput(job)) {
+            if (job.checkpoint == 0) {
+                skipFully(in, job.offset);
+            }
+            // only an output, which can be positioned, can be continued at a checkpoint
+            FileChannel checkpointOutput = output instanceof FileChannel && job.offset == 0 ?
+                    (FileChannel) output : null;
+            OutputStream out = new BufferedOutputStream(Channels.newOutputStream(output),
+                    BUFFER_SIZE);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            long written = job.checkpoint, nextCheckpoint = written + CHECKPOINT_INTERVAL;
+            while ((read = in.read(buffer)) > 0) {
+                if (job.cancelled) {
+                    throw new InterruptedIOException("Cancelled");
+                }
+                out.write(buffer, 0, read);
+                written += read;
+                job.processed = written;
+                if (checkpointOutput != null && written >= nextCheckpoint) {
+                    out.flush();
+                    checkpoint(job, checkpointOutput, written - written % LEGACY_BLOCK_SIZE);
+                    nextCheckpoint = written + CHECKPOINT_INTERVAL;
+                }
+            }
+            out.flush();
+        }
+    }
+
+    /**
+     * Opens the output of a decryption job, positioned at its checkpoint
+     *
+     * @param job the job
+     * @return the output channel
+     */
+    private WritableByteChannel openOutput(final Job job) throws IOException {
+        if (job.checkpoint > 0) {
+            FileChannel output = ChannelUtil.openOutput(this, job.target.uri, job.checkpoint);
+            if (output != null) {
+                return output;
+            } else if (job.legacyCipher != null) {
+                throw new IOException("Can not continue writing " + job.target.uri);
+            }
+            job.checkpoint = 0;
+        }
+        return ChannelUtil.openOutput(this, job.target.uri);
+    }
+
+    /**
+     * Runs the engine of a job and regularly stores checkpoints, if the output is a file and
+     * the plaintext is not compressed
+     *
+     * @param job         the job
+     * @param engine      the engine
+     * @param input       the input channel
+     * @param output      the output channel
+     * @param granularity the checkpoints have to be a multiple of this number of plaintext
+     *                    bytes. When encrypting, this is the chunk size
+     */
+    private void run(final Job job, final ChunkEngine engine, final ReadableByteChannel input,
+                     final WritableByteChannel output, final int granularity) throws
+            IOException {
+        job.engine = engine;
+        if (job.cancelled) {
+            engine.cancel();
+        }
+        final long base = job.checkpoint;
+        // the engine only sees the compressed plaintext
+        final Compression.Progress compression = input instanceof Compression.Progress ?
+                (Compression.Progress) input : output instanceof Compression.Progress ?
+                (Compression.Progress) output : null;
+        engine.run(input, output, new ChunkEngine.ProgressListener() {
+            private long nextCheckpoint = CHECKPOINT_INTERVAL;
+
+            @Override
+            public void progress(final long bytes) {
+                if (compression != null) {
+                    job.processed = compression.plaintextBytes();
+                    return;
+                }
+                job.processed = base + bytes;
+                if (output instanceof FileChannel && bytes >= nextCheckpoint) {
+                    // the last written chunk is never part of the checkpoint: when encrypting,
+                    // it might be the final chunk, which has to be written again if more
+                    // input follows
+                    long checkpoint = job.encrypt ? (bytes - 1) / granularity * granularity :
+                            bytes;
+                    checkpoint(job, (FileChannel) output, base + checkpoint);
+                    nextCheckpoint = bytes + CHECKPOINT_INTERVAL;
+                }
+            }
+        });
+        job.engine = null;
+        Metrics.ENGINE_READ.record(engine.getReadTime());
+        Metrics.ENGINE_CIPHER.record(engine.getCipherTime());
+        Metrics.ENGINE_WRITE.record(engine.getWriteTime());
+        Metrics.ENGINE_READER_STALL.record(engine.getReaderStall());
+        Metrics.ENGINE_CIPHER_STALL.record(engine.getCipherStall());
+        Metrics.ENGINE_WRITER_STALL.record(engine.getWriterStall());
+        long[] depths = engine.getQueueDepths();
+        for (int i = 0; i < depths.length; i++) {
+            Metrics.ENGINE_QUEUE.record(i, depths[i]);
+        }
+    }
+
+    /**
+     * Makes the output written so far durable and stores the checkpoint of the job
+     *
+     * @param job        the job
+     * @param output     the output
+     * @param checkpoint the checkpoint
+     */
+    private void checkpoint(final Job job, final FileChannel output, final long checkpoint) {
+        try {
+            output.force(false);
+            db.updateCheckpoint(job, checkpoint);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @param job an encryption job
+     * @return the wrapped master key, which identifies the tree the source is part of, or null,
+     * if the source is not part of a tree
+     */
+    private static byte[] getBatch(final Job job) {
+        return job.source.path != null ? job.wrappedKey : null;
+    }
+
+    /**
+     * @param uri the uri of a document
+     * @return the size and the time of the last modification of the document or null, if its
+     * provider does not report them
+     */
+    private String getVersion(final Uri uri) {
+        if ("file".equals(uri.getScheme())) {
+            java.io.File file = new java.io.File(uri.getPath());
+            return file.exists() ? file.length() + "@" + file.lastModified() : null;
+        }
+        try (Cursor c = getContentResolver().query(uri, new String[]{
+                DocumentsContract.Document.COLUMN_SIZE,
+                DocumentsContract.Document.COLUMN_LAST_MODIFIED}, null, null, null)) {
+            if (c != null && c.moveToFirst() && !c.isNull(0) && !c.isNull(1)) {
+                return c.getLong(0) + "@" + c.getLong(1);
+            }
+        } catch (RuntimeException e) {
+            // e.g. a provider without these columns
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    private void deleteTarget(final Job job) {
+        if (job.encrypt && PackStore.isPack(job.target.uri)) {
+            // the other files of the batch are in the same pack. A member without an entry is
+            // removed the next time the pack is used, an unused pack once the job is removed
+            return;
+        }
+        if (job.encrypt) {
+            java.io.File f = new java.io.File(job.target.uri.getPath());
+            if (f.exists() && !f.delete()) {
+                f.deleteOnExit();
+            }
+            MerkleTree.getTreeFile(f).delete();
+        } else {
+            try {
+                DocumentsContract.deleteDocument(getContentResolver(), job.target.uri);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void jobDone(final Job job, final boolean success, final String result) {
+        if (success) {
+            JobEvents.publishCompleted(job);
+        }
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                results.add(result);
+                if (success) {
+                    succeeded++;
+                }
+                running.remove(job.id);
+                if (running.isEmpty()) {
+                    JobEvents.publishProgress(0, 0, 0);
+                    stopForeground(true);
+                    notificationManager.notify(NOTIFICATION_RESULT, buildResultNotification());
+                    results.clear();
+                    succeeded = 0;
+                    stopSelf();
+                }
+            }
+        });
+    }
+
+    private Notification buildProgressNotification() {
+        long size = 0, processed = 0;
+        for (Job job : running.values()) {
+            size += Math.max(0, job.source.size);
+            processed += job.processed;
+        }
+        // the app shows the same progress as the notification
+        JobEvents.publishProgress(running.size(), processed, size);
+        Notification.Builder builder = new Notification.Builder(this)
+                .setSmallIcon(R.drawable.ic_lock).setOngoing(true)
+                .setContentTitle(getResources()
+                        .getQuantityString(R.plurals.jobs_running, running.size(),
+                                running.size()))
+                .setContentIntent(getMainActivityIntent())
+                .addAction(new Notification.Action.Builder(
+                        Icon.createWithResource(this, R.drawable.ic_delete),
+                        getString(android.R.string.cancel),
+                        PendingIntent.getService(this, 0,
+                                new Intent(this, CryptoService.class).setAction(ACTION_CANCEL),
+                                PendingIntent.FLAG_UPDATE_CURRENT)).build());
+        if (size > 0) {
+            builder.setProgress(100, (int) (Math.min(processed, size) * 100 / size), false);
+        } else {
+            builder.setProgress(0, 0, true);
+        }
+        return builder.build();
+    }
+
+    private Notification buildResultNotification() {
+        Notification.InboxStyle style = new Notification.InboxStyle();
+        for (String result : results) {
+            style.addLine(result);
+        }
+        String title = getString(R.string.jobs_done, succeeded, results.size());
+        return new Notification.Builder(this).setSmallIcon(R.drawable.ic_lock)
+                .setContentTitle(title).setContentText(results.get(results.size() - 1))
+                .setStyle(style.setBigContentTitle(title))
+                .setContentIntent(getMainActivityIntent()).setAutoCancel(true).build();
+    }
+
+    private PendingIntent getMainActivityIntent() {
+        return PendingIntent.getActivity(this, 0, new Intent(this, MainActivity.class),
+                PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+
+    private static void skipFully(final InputStream in, long n) throws IOException {
+        while (n > 0) {
+            long skipped = in.skip(n);
+            if (skipped <= 0) {
+                if (in.read() < 0) {
+                    return;
+                }
+                skipped = 1;
+            }
+            n -= skipped;
+        }
+    }
+}
@@ -15,21 +15,34 @@
  */
 package de.j4velin.encrypter;
 
+import android.content.ActivityNotFoundException;
+import android.content.ContentResolver;
 import android.content.Context;
+import android.content.Intent;
 import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.DocumentsContract;
+import android.widget.Toast;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.FileOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.WritableByteChannel;
 import java.security.GeneralSecurityException;
-import java.security.spec.InvalidParameterSpecException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.crypto.Cipher;
-import javax.crypto.CipherInputStream;
-import javax.crypto.CipherOutputStream;
 import javax.crypto.spec.IvParameterSpec;
 
 /**
@@ -37,6 +50,11 @@ import javax.crypto.spec.IvParameterSpec;
  */
 class CryptoUtil {
 
+    /**
+     * The number of jobs, which may be submitted but not done yet while a tree is encrypted
+     */
+    private final static int MAX_TREE_JOBS = 4 * TreeWalker.BATCH_SIZE;
+
     private CryptoUtil() {
     }
 
@@ -48,44 +66,227 @@ class CryptoUtil {
      */
     static void encrypt(final Context context, final File plaintextFile) throws
             GeneralSecurityException, IOException {
-        java.io.File dir = context.getExternalFilesDir(null);
-        if (dir == null) {
-            dir = context.getFilesDir();
-        }
-        java.io.File encryptedFile = new java.io.File(dir, plaintextFile.name + ".enc");
-        if (encryptedFile.exists()) {
-            int index = plaintextFile.name.lastIndexOf(".");
-            String prefix = plaintextFile.name.substring(0, index) + "_";
-            String postfix = plaintextFile.name.substring(index) + ".enc";
-            int tries = 2;
-            while (encryptedFile.exists()) {
-                encryptedFile = new java.io.File(dir, prefix + tries + postfix);
-                tries++;
-            }
-        }
-        Uri uri = Uri.fromFile(encryptedFile);
-        final File resultFile =
-                new File(-1, plaintextFile.name, plaintextFile.mime, uri, plaintextFile.size, true);
-        final OutputStream output = new BufferedOutputStream(new FileOutputStream(encryptedFile), SaveTask.BUFFER_SIZE);
-        final InputStream input = new BufferedInputStream(
-                context.getContentResolver().openInputStream(plaintextFile.uri), SaveTask.BUFFER_SIZE);
+        encrypt(context, Collections.singletonList(plaintextFile));
+    }
+
+    /**
+     * Encrypts the given files after a single authentication
+     *
+     * @param context        the context
+     * @param plaintextFiles the plaintext files
+     */
+    static void encrypt(final Context context, final List<File> plaintextFiles) throws
+            GeneralSecurityException, IOException {
+        for (File file : plaintextFiles) {
+            takeUriPermission(context, file.uri, Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        }
         CipherUtil.getCipher(context, null, new CipherUtil.CipherResultCallback() {
             @Override
             public void cipherAvailable(final Cipher c) {
+                final Batch batch;
                 try {
-                    byte[] iv = c.getParameters().getParameterSpec(IvParameterSpec.class).getIV();
-                    output.write(iv.length);
-                    output.write(iv);
-                    CipherOutputStream outputStream = new CipherOutputStream(output, c);
-                    new SaveTask(context, plaintextFile, resultFile)
-                            .execute(new SaveTask.Streams(input, outputStream));
-                } catch (IOException | InvalidParameterSpecException e) {
-                    e.printStackTrace();
+                    batch = new Batch(context.getApplicationContext(), new MasterKey(c));
+                } catch (GeneralSecurityException e) {
+                    showError(context, e);
+                    return;
                 }
+                // creating the targets might wait for the migration, see BlobStore#create
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        List<Job> jobs = new ArrayList<>(plaintextFiles.size());
+                        try {
+                            for (File file : plaintextFiles) {
+                                jobs.add(batch.createJob(file));
+                            }
+                            CryptoService.submit(batch.context, jobs);
+                        } catch (IOException | GeneralSecurityException e) {
+                            Batch.discard(jobs);
+                            postError(batch.context, e);
+                        } finally {
+                            batch.close();
+                        }
+                    }
+                }, "Encrypt batch").start();
+            }
+
+            @Override
+            public void cipherCancelled() {
+                // nothing has been started yet
             }
         });
     }
 
+    /**
+     * Encrypts all files in the given document tree after a single authentication. The files
+     * are submitted in parts while the tree is still being listed and keep their path within
+     * the tree, so that {@link #decryptTree} can restore the folders later on
+     *
+     * @param context the context
+     * @param tree    the uri of the tree, as returned by
+     *                {@link Intent#ACTION_OPEN_DOCUMENT_TREE}
+     */
+    static void encryptTree(final Context context, final Uri tree) throws
+            GeneralSecurityException, IOException {
+        takeUriPermission(context, tree, Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        final Context appContext = context.getApplicationContext();
+        CipherUtil.getCipher(context, null, new CipherUtil.CipherResultCallback() {
+            @Override
+            public void cipherAvailable(final Cipher c) {
+                final Batch batch;
+                try {
+                    batch = new Batch(appContext, new MasterKey(c));
+                } catch (GeneralSecurityException e) {
+                    showError(context, e);
+                    return;
+                }
+                // the first jobs might be done before the last ones are submitted
+                batch.masterKey.retain();
+                new TreeWalker(appContext, tree, new TreeWalker.Listener() {
+                    /**
+                     * The number of files found, which could not be submitted
+                     */
+                    private int failed;
+
+                    @Override
+                    public void found(final List<File> files) {
+                        List<Job> jobs = new ArrayList<>(files.size());
+                        try {
+                            CryptoService.awaitCapacity(MAX_TREE_JOBS);
+                            for (File file : files) {
+                                jobs.add(batch.createJob(file));
+                            }
+                            CryptoService.submit(appContext, jobs);
+                        } catch (IOException | GeneralSecurityException |
+                                InterruptedException e) {
+                            Batch.discard(jobs);
+                            if (failed == 0) {
+                                // the later parts most likely fail the same way
+                                postError(appContext, e);
+                            } else {
+                                e.printStackTrace();
+                            }
+                            failed += files.size();
+                        }
+                    }
+
+                    @Override
+                    public void done(final int files, final Exception error) {
+                        batch.close();
+                        batch.masterKey.release();
+                        if (error != null || failed > 0 || files == 0) {
+                            final int encrypted = files - failed;
+                            final boolean incomplete = error != null || failed > 0;
+                            new Handler(Looper.getMainLooper()).post(new Runnable() {
+                                @Override
+                                public void run() {
+                                    Toast.makeText(appContext, incomplete ?
+                                            appContext.getString(R.string.tree_incomplete,
+                                                    encrypted) :
+                                            appContext.getString(R.string.tree_empty),
+                                            Toast.LENGTH_LONG).show();
+                                }
+                            });
+                        }
+                    }
+                }).start();
+            }
+
+            @Override
+            public void cipherCancelled() {
+                // nothing has been started yet
+            }
+        });
+    }
+
+    /**
+     * The jobs of files encrypted after one authentication. All small files of a batch share
+     * one pack
+     */
+    private static class Batch {
+        private final Context context;
+        private final MasterKey masterKey;
+        private Uri pack;
+
+        private Batch(final Context context, final MasterKey masterKey) {
+            this.context = context;
+            this.masterKey = masterKey;
+        }
+
+        /**
+         * Creates the job to encrypt the given file, together with its target. Must not be
+         * called on the main thread
+         *
+         * @param file the plaintext file
+         * @return the job
+         */
+        private synchronized Job createJob(final File file) throws IOException,
+                GeneralSecurityException {
+            Uri uri;
+            if (PackStore.accepts(context, file)) {
+                if (pack == null) {
+                    pack = PackStore.create(context, masterKey);
+                }
+                uri = pack;
+            } else {
+                uri = Uri.fromFile(BlobStore.create(context));
+            }
+            Job job = new Job(-1, true, file,
+                    new File(-1, file.name, file.mime, uri, file.size, true, file.path), 0,
+                    masterKey.iv, masterKey.wrapped);
+            job.masterKey = masterKey;
+            return job;
+        }
+
+        /**
+         * Deletes the targets of jobs, which could not be submitted
+         *
+         * @param jobs the jobs
+         */
+        private static void discard(final List<Job> jobs) {
+            for (Job job : jobs) {
+                if (!PackStore.isPack(job.target.uri)) {
+                    new java.io.File(job.target.uri.getPath()).delete();
+                }
+            }
+        }
+
+        /**
+         * Must be called once all jobs of the batch have been submitted
+         */
+        private synchronized void close() {
+            if (pack != null) {
+                Database db = new Database(context);
+                PackStore.unreserve(db, pack);
+                db.close();
+            }
+        }
+    }
+
+    /**
+     * Generates a new data key, writes the header to the given output and creates the engine to
+     * encrypt the content with
+     *
+     * @param masterKey   the master key to wrap the data key with
+     * @param output      the output channel, positioned at the beginning of the file
+     * @param compression the compression of the plaintext, see {@link Compression}
+     * @return the engine
+     */
+    static ChunkEngine createEncrypter(final MasterKey masterKey,
+                                       final WritableByteChannel output,
+                                       final int compression) throws
+            GeneralSecurityException, IOException {
+        byte[] dataKey = new byte[Container.KEY_LENGTH];
+        new SecureRandom().nextBytes(dataKey);
+        ChunkEngine.Config config = ChunkEngine.Config.defaults();
+        Container container = Container.create(config.blockSize, masterKey.iv, masterKey.wrapped,
+                masterKey.key, dataKey, compression);
+        container.write(output);
+        ChunkEngine engine = ChunkEngine.encrypter(container, dataKey, config);
+        Arrays.fill(dataKey, (byte) 0);
+        return engine;
+    }
+
     /**
      * Decrypts the given file
      *
@@ -96,23 +297,513 @@ class CryptoUtil {
      */
     static void decrypt(final Context context, final File encryptedFile, final Uri out, final String fileName) throws
             GeneralSecurityException, IOException {
-        final InputStream input = new BufferedInputStream(
-                context.getContentResolver().openInputStream(encryptedFile.uri), SaveTask.BUFFER_SIZE);
-        final OutputStream output =
-                new BufferedOutputStream(context.getContentResolver().openOutputStream(out), SaveTask.BUFFER_SIZE);
-        int ivLength = input.read();
-        byte[] iv = new byte[ivLength];
-        input.read(iv);
-        final File resultFile =
-                new File(-1, fileName, encryptedFile.mime, out, encryptedFile.size,
-                        false);
-        CipherUtil.getCipher(context, iv, new CipherUtil.CipherResultCallback() {
+        decrypt(context, encryptedFile, out, fileName, 0);
+    }
+
+    /**
+     * Decrypts the given file, starting at the given plaintext position.
+     * <p>
+     * For files in the {@link Container} format, decryption starts directly at the chunk
+     * containing the offset. Compressed files and files in the legacy format have to be
+     * decrypted from the beginning.
+     *
+     * @param context       the context
+     * @param encryptedFile the encrypted file
+     * @param out           the output uri to write the plaintext file to
+     * @param fileName      the (expected) result file name
+     * @param offset        the position in the plaintext to start at
+     */
+    static void decrypt(final Context context, final File encryptedFile, final Uri out,
+                        final String fileName, final long offset) throws
+            GeneralSecurityException, IOException {
+        final KeyInfo keyInfo = new KeyInfo(encryptedFile);
+        final Job job = new Job(-1, false, encryptedFile,
+                new File(-1, fileName, encryptedFile.mime, out, encryptedFile.size, false),
+                offset, keyInfo.iv, keyInfo.wrappedKey);
+        takeUriPermission(context, out, Intent.FLAG_GRANT_WRITE_URI_PERMISSION);
+        CipherUtil.getCipher(context, keyInfo.iv, new CipherUtil.CipherResultCallback() {
             @Override
             public void cipherAvailable(final Cipher c) {
-                CipherInputStream inputStream = new CipherInputStream(input, c);
-                new SaveTask(context, encryptedFile, resultFile)
-                        .execute(new SaveTask.Streams(inputStream, output));
+                try {
+                    authenticated(Collections.singletonList(job), c);
+                    CryptoService.submit(context, Collections.singletonList(job));
+                } catch (GeneralSecurityException e) {
+                    showError(context, e);
+                }
+            }
+
+            @Override
+            public void cipherCancelled() {
+                // nothing has been started yet
             }
         });
     }
+
+    /**
+     * Decrypts the given files into the given document tree. The folders of the files are
+     * created below the tree, see {@link File#path}. Nothing is created before the user has
+     * authenticated, so a cancelled authentication leaves the tree untouched
+     *
+     * @param context the context
+     * @param files   the encrypted files
+     * @param tree    the uri of the tree, as returned by
+     *                {@link Intent#ACTION_OPEN_DOCUMENT_TREE}
+     */
+    static void decryptTree(final Context context, final List<File> files, final Uri tree) {
+        takeUriPermission(context, tree, Intent.FLAG_GRANT_WRITE_URI_PERMISSION);
+        final Map<String, Uri> folders = new HashMap<>();
+        folders.put("", DocumentsContract.buildDocumentUriUsingTree(tree,
+                DocumentsContract.getTreeDocumentId(tree)));
+        final Handler handler = new Handler(Looper.getMainLooper());
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final List<Job> jobs = new ArrayList<>(files.size());
+                for (File file : files) {
+                    try {
+                        KeyInfo keyInfo = new KeyInfo(file);
+                        // the target has no uri yet, see createDocuments
+                        jobs.add(new Job(-1, false, file,
+                                new File(-1, file.name, file.mime, null, file.size, false,
+                                        file.path), 0, keyInfo.iv, keyInfo.wrappedKey));
+                    } catch (IOException | RuntimeException e) {
+                        e.printStackTrace();
+                    }
+                }
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        authenticate(context, jobs, new Authenticated() {
+                            @Override
+                            public void submit(final List<Job> group) {
+                                new Thread(new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        createDocuments(context, folders, group);
+                                    }
+                                }, "Create documents").start();
+                            }
+                        });
+                    }
+                });
+            }
+        }).start();
+    }
+
+    /**
+     * Creates the target documents of the given jobs and submits the jobs. Jobs, whose document
+     * can not be created, are dropped
+     *
+     * @param context the context
+     * @param folders the folders created so far, by path. The empty path is the tree itself
+     * @param jobs    the authenticated jobs of one master key, with targets without uri
+     */
+    private static void createDocuments(final Context context, final Map<String, Uri> folders,
+                                        final List<Job> jobs) {
+        ContentResolver resolver = context.getContentResolver();
+        List<Job> created = new ArrayList<>(jobs.size());
+        MasterKey masterKey = jobs.get(0).masterKey;
+        if (masterKey != null) {
+            // overwrites the key below, if no document could be created
+            masterKey.retain();
+        }
+        try {
+            // the groups of different keys share the folders
+            synchronized (folders) {
+                for (Job job : jobs) {
+                    File target = job.target;
+                    try {
+                        Uri folder = getFolder(resolver, folders,
+                                target.path == null ? "" : target.path);
+                        Uri out = DocumentsContract
+                                .createDocument(resolver, folder, target.mime, target.name);
+                        if (out == null) {
+                            throw new IOException("Can not create " + target.name);
+                        }
+                        job.target = new File(-1, target.name, target.mime, out, target.size,
+                                false, target.path);
+                        created.add(job);
+                    } catch (IOException | RuntimeException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+            if (!created.isEmpty()) {
+                CryptoService.submit(context, created);
+            }
+        } finally {
+            if (masterKey != null) {
+                masterKey.release();
+            }
+        }
+    }
+
+    /**
+     * Gets or creates a folder below a document tree
+     *
+     * @param resolver the content resolver
+     * @param folders  the folders created so far, by path. The empty path is the tree itself
+     * @param path     the path of the folder
+     * @return the uri of the folder
+     */
+    private static Uri getFolder(final ContentResolver resolver, final Map<String, Uri> folders,
+                                 final String path) throws IOException {
+        Uri folder = folders.get(path);
+        if (folder == null) {
+            int slash = path.lastIndexOf('/');
+            Uri parent = getFolder(resolver, folders, slash < 0 ? "" : path.substring(0, slash));
+            folder = DocumentsContract.createDocument(resolver, parent,
+                    DocumentsContract.Document.MIME_TYPE_DIR, path.substring(slash + 1));
+            if (folder == null) {
+                throw new IOException("Can not create " + path);
+            }
+            folders.put(path, folder);
+        }
+        return folder;
+    }
+
+    /**
+     * Opens the given file in a viewer app, without writing the plaintext to the storage
+     *
+     * @param context       the context
+     * @param encryptedFile the encrypted file
+     * @see DecryptProvider
+     */
+    static void view(final Context context, final File encryptedFile) throws
+            GeneralSecurityException, IOException {
+        final KeyInfo keyInfo = new KeyInfo(encryptedFile);
+        CipherUtil.getCipher(context, keyInfo.iv, new CipherUtil.CipherResultCallback() {
+            @Override
+            public void cipherAvailable(final Cipher c) {
+                try {
+                    Uri uri = keyInfo.wrappedKey == null ?
+                            DecryptProvider.register(encryptedFile, null, c) :
+                            DecryptProvider.register(encryptedFile,
+                                    new MasterKey(c, keyInfo.iv, keyInfo.wrappedKey), null);
+                    Intent intent = new Intent(Intent.ACTION_VIEW);
+                    intent.setDataAndType(uri, encryptedFile.mime);
+                    intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+                    context.startActivity(intent);
+                } catch (GeneralSecurityException e) {
+                    e.printStackTrace();
+                } catch (ActivityNotFoundException e) {
+                    Toast.makeText(context, context.getString(R.string.no_viewer,
+                            encryptedFile.name), Toast.LENGTH_LONG).show();
+                }
+            }
+
+            @Override
+            public void cipherCancelled() {
+                // nothing has been started yet
+            }
+        });
+    }
+
+    /**
+     * Plays the given audio or video file in the app. Only the parts of the file the player
+     * actually reads are decrypted, so seeking doesn't have to decrypt everything before it
+     *
+     * @param context       the context
+     * @param encryptedFile the encrypted file
+     * @see EncryptedMediaDataSource
+     */
+    static void play(final Context context, final File encryptedFile) throws
+            GeneralSecurityException, IOException {
+        final KeyInfo keyInfo = new KeyInfo(encryptedFile);
+        CipherUtil.getCipher(context, keyInfo.iv, new CipherUtil.CipherResultCallback() {
+            @Override
+            public void cipherAvailable(final Cipher c) {
+                try {
+                    if (keyInfo.wrappedKey == null) {
+                        PlayerActivity.start(context, encryptedFile, null, c);
+                    } else {
+                        PlayerActivity.start(context, encryptedFile,
+                                new MasterKey(c, keyInfo.iv, keyInfo.wrappedKey), null);
+                    }
+                } catch (GeneralSecurityException e) {
+                    e.printStackTrace();
+                }
+            }
+
+            @Override
+            public void cipherCancelled() {
+                // nothing has been started yet
+            }
+        });
+    }
+
+    /**
+     * Resumes jobs, which have been interrupted by the death of the process. Each job continues
+     * at its last checkpoint.
+     * <p>
+     * Jobs sharing the same master key, for example all files of one batch, need a single
+     * authentication together. If the jobs use different keys, the user is asked to authenticate
+     * once per key. Jobs, whose authentication is cancelled or fails, stay interrupted.
+     *
+     * @param context the context
+     * @param jobs    the interrupted jobs, as returned by
+     *                {@link CryptoService#getInterruptedJobs(Context,
+     *                CryptoService.InterruptedJobsCallback)}
+     */
+    static void resume(final Context context, final List<Job> jobs) {
+        authenticate(context, jobs);
+    }
+
+    /**
+     * Receives the jobs of one master key, once the user has authenticated
+     */
+    private interface Authenticated {
+        /**
+         * Called on the main thread
+         *
+         * @param jobs the jobs, with their keys set
+         */
+        void submit(final List<Job> jobs);
+    }
+
+    /**
+     * Authenticates the user once per master key of the given jobs and submits them
+     *
+     * @param context the context
+     * @param jobs    the jobs without keys
+     */
+    private static void authenticate(final Context context, final List<Job> jobs) {
+        authenticate(context, jobs, new Authenticated() {
+            @Override
+            public void submit(final List<Job> group) {
+                CryptoService.submit(context, group);
+            }
+        });
+    }
+
+    /**
+     * Authenticates the user once per master key of the given jobs. The keys are asked for one
+     * after the other, also if the user cancels the authentication of one of them
+     *
+     * @param context  the context
+     * @param jobs     the jobs without keys
+     * @param callback receives the jobs of each key, once authenticated. Jobs, whose
+     *                 authentication fails or is cancelled, are never handed on
+     */
+    private static void authenticate(final Context context, final List<Job> jobs,
+                                     final Authenticated callback) {
+        if (jobs.isEmpty()) {
+            return;
+        }
+        Job first = jobs.get(0);
+        final List<Job> group = new ArrayList<>();
+        final List<Job> remaining = new ArrayList<>();
+        for (Job job : jobs) {
+            if (job == first || (first.wrappedKey != null &&
+                    Arrays.equals(job.keyIv, first.keyIv) &&
+                    Arrays.equals(job.wrappedKey, first.wrappedKey))) {
+                group.add(job);
+            } else {
+                remaining.add(job);
+            }
+        }
+        try {
+            byte[] iv = first.keyIv;
+            if (first.wrappedKey == null && first.checkpoint > 0) {
+                // CBC: the ciphertext block before the checkpoint is the iv for the rest of the
+                // file
+                iv = new byte[CryptoService.LEGACY_BLOCK_SIZE];
+                try (RandomAccessFile file =
+                             new RandomAccessFile(first.source.uri.getPath(), "r")) {
+                    file.seek(1 + first.keyIv.length + first.checkpoint - iv.length);
+                    file.readFully(iv);
+                }
+            }
+            CipherUtil.getCipher(context, iv, new CipherUtil.CipherResultCallback() {
+                @Override
+                public void cipherAvailable(final Cipher c) {
+                    try {
+                        authenticated(group, c);
+                        callback.submit(group);
+                    } catch (GeneralSecurityException e) {
+                        // the jobs stay in the database, if they have been interrupted
+                        showError(context, e);
+                    }
+                    authenticate(context, remaining, callback);
+                }
+
+                @Override
+                public void cipherCancelled() {
+                    // the jobs stay in the database, if they have been interrupted
+                    authenticate(context, remaining, callback);
+                }
+            });
+        } catch (IOException | GeneralSecurityException e) {
+            // e.g. a deleted file: the jobs of the other keys might still run
+            showError(context, e);
+            authenticate(context, remaining, callback);
+        }
+    }
+
+    /**
+     * Makes the key of the given jobs available. The key in the Android Key Store needs a new
+     * authentication for every use of the cipher, so a master key shared by the jobs is
+     * unwrapped only once
+     *
+     * @param jobs the jobs, which all use the key of the first one
+     * @param c    the authenticated cipher, initialized with the iv of the jobs
+     */
+    private static void authenticated(final List<Job> jobs, final Cipher c) throws
+            GeneralSecurityException {
+        MasterKey masterKey = null;
+        for (Job job : jobs) {
+            if (job.wrappedKey == null) {
+                job.legacyCipher = c;
+            } else if (job.masterKey == null) {
+                if (masterKey == null) {
+                    masterKey = new MasterKey(c, job.keyIv, job.wrappedKey);
+                }
+                job.masterKey = masterKey;
+            }
+        }
+    }
+
+    /**
+     * Shows why jobs could not be started
+     *
+     * @param context the context
+     * @param e       the error
+     */
+    private static void showError(final Context context, final Exception e) {
+        e.printStackTrace();
+        Toast.makeText(context, context.getString(e instanceof GeneralSecurityException ?
+                R.string.error_security : R.string.error_io, e.getMessage()), Toast.LENGTH_LONG)
+                .show();
+    }
+
+    /**
+     * Shows why jobs could not be started, from any thread
+     *
+     * @param context the application context
+     * @param e       the error
+     */
+    private static void postError(final Context context, final Exception e) {
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                showError(context, e);
+            }
+        });
+    }
+
+    /**
+     * Keeps the access to the given uri beyond the lifetime of the current process, so that an
+     * interrupted job can still access it later on
+     *
+     * @param context the context
+     * @param uri     the uri
+     * @param flags   the access mode
+     */
+    private static void takeUriPermission(final Context context, final Uri uri, int flags) {
+        // document trees are no document uris
+        if (ContentResolver.SCHEME_CONTENT.equals(uri.getScheme())) {
+            try {
+                context.getContentResolver().takePersistableUriPermission(uri, flags);
+            } catch (SecurityException e) {
+                // not persistable, only usable while this process lives
+            }
+        }
+    }
+
+    /**
+     * Releases an uri permission taken by {@link #takeUriPermission(Context, Uri, int)}
+     *
+     * @param context the context
+     * @param uri     the uri
+     */
+    static void releaseUriPermission(final Context context, final Uri uri) {
+        if (DocumentsContract.isDocumentUri(context, uri)) {
+            try {
+                context.getContentResolver().releasePersistableUriPermission(uri,
+                        Intent.FLAG_GRANT_READ_URI_PERMISSION |
+                                Intent.FLAG_GRANT_WRITE_URI_PERMISSION);
+            } catch (SecurityException e) {
+                // never taken
+            }
+        }
+    }
+
+    /**
+     * The key information from the header of an encrypted file: the iv and the wrapped master key
+     * or, for legacy files, the iv of the content and no wrapped key
+     */
+    private static class KeyInfo {
+        private final byte[] iv, wrappedKey;
+
+        private KeyInfo(final File encryptedFile) throws IOException {
+            try (InputStream inputStream = new BufferedInputStream(
+                    new FileInputStream(encryptedFile.uri.getPath()))) {
+                Container container = Container.read(inputStream);
+                if (container == null) {
+                    iv = new byte[inputStream.read()];
+                    if (inputStream.read(iv) != iv.length) {
+                        throw new EOFException("Encrypted file is truncated");
+                    }
+                    wrappedKey = null;
+                } else {
+                    iv = container.keyIv;
+                    wrappedKey = container.wrappedKey;
+                }
+            }
+        }
+    }
+
+    /**
+     * A random master key, together with its wrapped form as stored in the file headers. The
+     * master key wraps the data keys of all files encrypted after one authentication.
+     * <p>
+     * The key is shared by all jobs of one authentication and overwritten once the last of them
+     * is done.
+     */
+    static class MasterKey {
+        final byte[] iv, wrapped, key;
+        private final AtomicInteger references = new AtomicInteger();
+
+        /**
+         * Creates a new master key
+         *
+         * @param c the authenticated cipher of the Android Key Store to wrap the key with
+         */
+        MasterKey(final Cipher c) throws GeneralSecurityException {
+            key = new byte[Container.KEY_LENGTH];
+            new SecureRandom().nextBytes(key);
+            iv = c.getParameters().getParameterSpec(IvParameterSpec.class).getIV();
+            wrapped = c.doFinal(key);
+        }
+
+        /**
+         * Unwraps an existing master key
+         *
+         * @param c       the authenticated cipher of the Android Key Store to unwrap the key with
+         * @param iv      the iv, the key has been wrapped with
+         * @param wrapped the wrapped key
+         */
+        MasterKey(final Cipher c, final byte[] iv, final byte[] wrapped) throws
+                GeneralSecurityException {
+            this.iv = iv;
+            this.wrapped = wrapped;
+            key = c.doFinal(wrapped);
+        }
+
+        /**
+         * Marks the key as used by one more job
+         */
+        void retain() {
+            references.incrementAndGet();
+        }
+
+        /**
+         * Marks the key as no longer used by a job and overwrites it, if no other job uses it
+         */
+        void release() {
+            if (references.decrementAndGet() == 0) {
+                Arrays.fill(key, (byte) 0);
+            }
+        }
+    }
 }
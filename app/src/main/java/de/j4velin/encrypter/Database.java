@@ -18,27 +18,96 @@ package de.j4velin.encrypter;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.provider.BaseColumns;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 class Database extends SQLiteOpenHelper {
 
     private final static String DB_NAME = "db";
-    private final static int DB_VERSION = 1;
+    private final static int DB_VERSION = 12;
 
     static class EncryptedFilesContract implements BaseColumns {
-        private final static String TABLE_NAME = "encrypted_files";
-        private final static String COLUMN_FILENAME = "name";
-        private final static String COLUMN_MIME = "mime";
+        private final static String TABLE_NAME = CatalogSql.TABLE_FILES;
+        private final static String COLUMN_FILENAME = CatalogSql.COLUMN_NAME;
+        private final static String COLUMN_MIME = CatalogSql.COLUMN_MIME;
+        private final static String COLUMN_URI = "uri";
+        private final static String COLUMN_SIZE = CatalogSql.COLUMN_SIZE;
+        /**
+         * The SHA-256 hash of the plaintext or null, if unknown. Entries with the same hash
+         * share one encrypted file
+         */
+        private final static String COLUMN_HASH = "hash";
+        private final static String INDEX_HASH = "encrypted_files_hash";
+        /**
+         * The folder the file has been encrypted from, see {@link File#path}
+         */
+        private final static String COLUMN_PATH = "path";
+        /**
+         * The master key of the batch, as wrapped by the Android Key Store, for files encrypted
+         * as part of a tree. Every encrypted tree has its own master key, so its files can be
+         * told apart from those of another tree with the same name
+         */
+        private final static String COLUMN_BATCH = "batch";
+        private final static String[] ALL_COLUMNS =
+                new String[]{_ID, COLUMN_FILENAME, COLUMN_MIME, COLUMN_URI, COLUMN_SIZE,
+                        COLUMN_PATH};
+    }
+
+    /**
+     * The ids of the files in the {@link BlobStore}. Only the last allocated id is kept
+     */
+    static class BlobIdsContract implements BaseColumns {
+        private final static String TABLE_NAME = "blob_ids";
+    }
+
+    /**
+     * The root hashes of the {@link MerkleTree}s of the encrypted files
+     */
+    static class TreesContract {
+        private final static String TABLE_NAME = "trees";
         private final static String COLUMN_URI = "uri";
+        private final static String COLUMN_ROOT = "root";
+    }
+
+    /**
+     * The encrypted thumbnails of the encrypted files, see {@link Thumbnails}
+     */
+    static class ThumbnailsContract {
+        private final static String TABLE_NAME = "thumbnails";
+        private final static String COLUMN_URI = "uri";
+        private final static String COLUMN_DATA = "data";
+    }
+
+    static class JobsContract implements BaseColumns {
+        private final static String TABLE_NAME = "jobs";
+        private final static String COLUMN_ENCRYPT = "encrypt";
+        private final static String COLUMN_MIME = "mime";
         private final static String COLUMN_SIZE = "size";
+        private final static String COLUMN_SOURCE_NAME = "source_name";
+        private final static String COLUMN_SOURCE_URI = "source_uri";
+        private final static String COLUMN_TARGET_NAME = "target_name";
+        private final static String COLUMN_TARGET_URI = "target_uri";
+        private final static String COLUMN_OFFSET = "offset";
+        private final static String COLUMN_KEY_IV = "key_iv";
+        private final static String COLUMN_WRAPPED_KEY = "wrapped_key";
+        private final static String COLUMN_CHECKPOINT = "checkpoint";
+        private final static String COLUMN_PATH = "path";
+        private final static String COLUMN_SOURCE_VERSION = "source_version";
         private final static String[] ALL_COLUMNS =
-                new String[]{_ID, COLUMN_FILENAME, COLUMN_MIME, COLUMN_URI, COLUMN_SIZE};
+                new String[]{_ID, COLUMN_ENCRYPT, COLUMN_MIME, COLUMN_SIZE, COLUMN_SOURCE_NAME,
+                        COLUMN_SOURCE_URI, COLUMN_TARGET_NAME, COLUMN_TARGET_URI, COLUMN_OFFSET,
+                        COLUMN_KEY_IV, COLUMN_WRAPPED_KEY, COLUMN_CHECKPOINT, COLUMN_PATH,
+                        COLUMN_SOURCE_VERSION};
     }
 
     Database(final Context context) {
@@ -52,65 +121,638 @@ class Database extends SQLiteOpenHelper {
                 EncryptedFilesContract.COLUMN_FILENAME +
                 " TEXT, " + EncryptedFilesContract.COLUMN_MIME + " TEXT, " +
                 EncryptedFilesContract.COLUMN_URI +
-                " TEXT, " + EncryptedFilesContract.COLUMN_SIZE + " INTEGER)");
+                " TEXT, " + EncryptedFilesContract.COLUMN_SIZE + " INTEGER, " +
+                EncryptedFilesContract.COLUMN_HASH + " BLOB, " +
+                EncryptedFilesContract.COLUMN_PATH + " TEXT, " +
+                EncryptedFilesContract.COLUMN_BATCH + " BLOB)");
+        createHashIndex(db);
+        createJobsTable(db);
+        createBlobIdsTable(db);
+        createTreesTable(db);
+        createCatalogIndexes(db);
+        createThumbnailsTable(db);
+    }
+
+    private static void createThumbnailsTable(final SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + ThumbnailsContract.TABLE_NAME + " (" +
+                ThumbnailsContract.COLUMN_URI + " TEXT PRIMARY KEY, " +
+                ThumbnailsContract.COLUMN_DATA + " BLOB)");
+    }
+
+    private static void createCatalogIndexes(final SQLiteDatabase db) {
+        for (String sql : CatalogSql.createSortIndexes()) {
+            db.execSQL(sql);
+        }
+        for (String sql : CatalogSql.createSearch()) {
+            db.execSQL(sql);
+        }
+    }
+
+    private static void createTreesTable(final SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TreesContract.TABLE_NAME + " (" + TreesContract.COLUMN_URI +
+                " TEXT PRIMARY KEY, " + TreesContract.COLUMN_ROOT + " BLOB)");
+    }
+
+    private static void createBlobIdsTable(final SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + BlobIdsContract.TABLE_NAME + " (" + BlobIdsContract._ID +
+                " INTEGER PRIMARY KEY AUTOINCREMENT)");
+    }
+
+    private static void createHashIndex(final SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX " + EncryptedFilesContract.INDEX_HASH + " ON " +
+                EncryptedFilesContract.TABLE_NAME + " (" + EncryptedFilesContract.COLUMN_HASH +
+                ")");
+    }
+
+    /**
+     * Creates the jobs table as it has been in version 2. Upgrades add the later columns one
+     * version after the other, see {@link #onUpgrade}
+     */
+    private static void createJobsTableV2(final SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + JobsContract.TABLE_NAME + " (" + JobsContract._ID +
+                " INTEGER PRIMARY KEY," + JobsContract.COLUMN_ENCRYPT + " INTEGER, " +
+                JobsContract.COLUMN_MIME + " TEXT, " + JobsContract.COLUMN_SIZE + " INTEGER, " +
+                JobsContract.COLUMN_SOURCE_NAME + " TEXT, " + JobsContract.COLUMN_SOURCE_URI +
+                " TEXT, " + JobsContract.COLUMN_TARGET_NAME + " TEXT, " +
+                JobsContract.COLUMN_TARGET_URI + " TEXT, " + JobsContract.COLUMN_OFFSET +
+                " INTEGER, " + JobsContract.COLUMN_KEY_IV + " BLOB, " +
+                JobsContract.COLUMN_WRAPPED_KEY + " BLOB)");
+    }
+
+    private static void createJobsTable(final SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + JobsContract.TABLE_NAME + " (" + JobsContract._ID +
+                " INTEGER PRIMARY KEY," + JobsContract.COLUMN_ENCRYPT + " INTEGER, " +
+                JobsContract.COLUMN_MIME + " TEXT, " + JobsContract.COLUMN_SIZE + " INTEGER, " +
+                JobsContract.COLUMN_SOURCE_NAME + " TEXT, " + JobsContract.COLUMN_SOURCE_URI +
+                " TEXT, " + JobsContract.COLUMN_TARGET_NAME + " TEXT, " +
+                JobsContract.COLUMN_TARGET_URI + " TEXT, " + JobsContract.COLUMN_OFFSET +
+                " INTEGER, " + JobsContract.COLUMN_KEY_IV + " BLOB, " +
+                JobsContract.COLUMN_WRAPPED_KEY + " BLOB, " + JobsContract.COLUMN_CHECKPOINT +
+                " INTEGER DEFAULT 0, " + JobsContract.COLUMN_PATH + " TEXT, " +
+                JobsContract.COLUMN_SOURCE_VERSION + " TEXT)");
+    }
+
+    /**
+     * Adds the given file to the database of encrypted files.
+     * <p>
+     * If a file with the same plaintext hash exists already, the new entry references that
+     * encrypted file instead and the caller should delete the given one.
+     *
+     * @param file the encrypted file, its id is set to the id of the new entry
+     * @param hash the SHA-256 hash of the plaintext or null, if unknown
+     * @param root  the root hash of the {@link MerkleTree} of the encrypted file or null, if it
+     *              has none
+     * @param batch the wrapped master key of the tree the file has been encrypted from or null,
+     *              if it is not part of a tree
+     * @return the given file or, if the content has been encrypted before, a new file object
+     * for the entry, which references the existing encrypted file
+     */
+    File addFile(final File file, final byte[] hash, final byte[] root, final byte[] batch) {
+        long start = System.nanoTime();
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            File stored = file;
+            Uri existing = hash != null ? getUri(db, hash) : null;
+            if (existing != null) {
+                stored = new File(-1, file.name, file.mime, existing, file.size, true,
+                        file.path);
+            }
+            ContentValues values = new ContentValues();
+            values.put(EncryptedFilesContract.COLUMN_FILENAME, stored.name);
+            values.put(EncryptedFilesContract.COLUMN_MIME, stored.mime);
+            values.put(EncryptedFilesContract.COLUMN_URI, stored.uri.toString());
+            values.put(EncryptedFilesContract.COLUMN_SIZE, stored.size);
+            values.put(EncryptedFilesContract.COLUMN_HASH, hash);
+            values.put(EncryptedFilesContract.COLUMN_PATH, stored.path);
+            values.put(EncryptedFilesContract.COLUMN_BATCH, batch);
+            stored.id = db.insert(EncryptedFilesContract.TABLE_NAME, null, values);
+            if (stored == file && root != null) {
+                setTreeRoot(db, file.uri, root);
+            }
+            db.setTransactionSuccessful();
+            return stored;
+        } finally {
+            db.endTransaction();
+            Metrics.DB_ADD_FILE.recordSince(start);
+        }
     }
 
     /**
-     * Adds the given file to the database of isEncrypted files
+     * Adds an entry for the given file, if its content has been encrypted before
      *
-     * @param file the isEncrypted file
+     * @param file  the encrypted file
+     * @param hash  the SHA-256 hash of the plaintext
+     * @param batch the wrapped master key of the tree the file has been encrypted from or null,
+     *              see {@link #addFile}
+     * @return a new file object for the entry, which references the existing encrypted file, or
+     * null if the content is new. No entry is added then
+     */
+    File addDuplicate(final File file, final byte[] hash, final byte[] batch) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            if (getUri(db, hash) == null) {
+                return null;
+            }
+            File stored = addFile(file, hash, null, batch);
+            db.setTransactionSuccessful();
+            return stored;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * @param db   the database
+     * @param hash the SHA-256 hash of the plaintext
+     * @return the uri of the encrypted file with that content or null, if there is none
+     */
+    private static Uri getUri(final SQLiteDatabase db, final byte[] hash) {
+        // hashes are blobs, which can only be bound to a compiled statement
+        SQLiteStatement statement = db.compileStatement(
+                "SELECT " + EncryptedFilesContract.COLUMN_URI + " FROM " +
+                        EncryptedFilesContract.TABLE_NAME + " WHERE " +
+                        EncryptedFilesContract.COLUMN_HASH + " = ? LIMIT 1");
+        try {
+            statement.bindBlob(1, hash);
+            return Uri.parse(statement.simpleQueryForString());
+        } catch (SQLiteDoneException e) {
+            return null;
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * Deletes a file from the database. The encrypted file itself is deleted as well, unless
+     * other entries with the same content still reference it.
+     *
+     * @param file the entry to delete
+     * @return false, if the encrypted file could not be deleted. The entry is kept then
+     */
+    boolean deleteFile(final File file) {
+        long start = System.nanoTime();
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            long references = DatabaseUtils.queryNumEntries(db,
+                    EncryptedFilesContract.TABLE_NAME, EncryptedFilesContract.COLUMN_URI + " = ?",
+                    new String[]{file.uri.toString()});
+            if (references <= 1) {
+                if (!PackStore.isMember(file.uri)) {
+                    java.io.File f = new java.io.File(file.uri.getPath());
+                    if (f.exists() && !f.delete()) {
+                        return false;
+                    }
+                    MerkleTree.getTreeFile(f).delete();
+                }
+                // a member stays in its pack until the pack is used with its key again
+                db.delete(TreesContract.TABLE_NAME, TreesContract.COLUMN_URI + " = ?",
+                        new String[]{file.uri.toString()});
+                db.delete(ThumbnailsContract.TABLE_NAME, ThumbnailsContract.COLUMN_URI + " = ?",
+                        new String[]{file.uri.toString()});
+            }
+            db.delete(EncryptedFilesContract.TABLE_NAME, EncryptedFilesContract._ID + " = ?",
+                    new String[]{String.valueOf(file.id)});
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            Metrics.DB_DELETE_FILE.recordSince(start);
+        }
+        if (PackStore.isMember(file.uri)) {
+            PackStore.deleteIfUnused(this, file.uri);
+        }
+        return true;
+    }
+
+    /**
+     * @param uri the uri of an encrypted file
+     * @return the root hash of the {@link MerkleTree} of the file or null, if it has none
+     */
+    byte[] getTreeRoot(final Uri uri) {
+        try (Cursor c = getReadableDatabase()
+                .query(TreesContract.TABLE_NAME, new String[]{TreesContract.COLUMN_ROOT},
+                        TreesContract.COLUMN_URI + " = ?", new String[]{uri.toString()}, null,
+                        null, null)) {
+            return c != null && c.moveToFirst() ? c.getBlob(0) : null;
+        }
+    }
+
+    /**
+     * Stores the root hash of the {@link MerkleTree} of an encrypted file
+     *
+     * @param uri  the uri of the encrypted file
+     * @param root the root hash
+     */
+    void setTreeRoot(final Uri uri, final byte[] root) {
+        setTreeRoot(getWritableDatabase(), uri, root);
+    }
+
+    private static void setTreeRoot(final SQLiteDatabase db, final Uri uri, final byte[] root) {
+        ContentValues values = new ContentValues();
+        values.put(TreesContract.COLUMN_URI, uri.toString());
+        values.put(TreesContract.COLUMN_ROOT, root);
+        db.insertWithOnConflict(TreesContract.TABLE_NAME, null, values,
+                SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    /**
+     * @param uri the uri of an encrypted file
+     * @return the encrypted thumbnail of the file or null, if it has none
+     */
+    byte[] getThumbnail(final Uri uri) {
+        try (Cursor c = getReadableDatabase().query(ThumbnailsContract.TABLE_NAME,
+                new String[]{ThumbnailsContract.COLUMN_DATA},
+                ThumbnailsContract.COLUMN_URI + " = ?", new String[]{uri.toString()}, null, null,
+                null)) {
+            return c != null && c.moveToFirst() ? c.getBlob(0) : null;
+        }
+    }
+
+    /**
+     * Stores the thumbnail of an encrypted file, unless it has one already
+     *
+     * @param uri       the uri of the encrypted file
+     * @param thumbnail the encrypted thumbnail
+     */
+    void addThumbnail(final Uri uri, final byte[] thumbnail) {
+        ContentValues values = new ContentValues();
+        values.put(ThumbnailsContract.COLUMN_URI, uri.toString());
+        values.put(ThumbnailsContract.COLUMN_DATA, thumbnail);
+        getWritableDatabase().insertWithOnConflict(ThumbnailsContract.TABLE_NAME, null, values,
+                SQLiteDatabase.CONFLICT_IGNORE);
+    }
+
+    /**
+     * Queries the ids of the encrypted files
+     *
+     * @param query the words, which the name or mime type of the files must start with, or
+     *              null for all files
+     * @param order the order of the files
+     * @return the ids, in the given order
+     */
+    long[] getIds(final String query, final CatalogSql.Order order) {
+        SQLiteDatabase db = getReadableDatabase();
+        String match = CatalogSql.toMatch(query);
+        if (match == null) {
+            return getIds(db, CatalogSql.selectIds(order), null);
+        }
+        long[] matches = getIds(db, CatalogSql.selectMatches(), new String[]{match});
+        if (order == CatalogSql.Order.DATE || matches.length == 0) {
+            return matches;
+        } else if (CatalogSql.sortInDatabase(matches.length)) {
+            return getIds(db, CatalogSql.selectIds(matches, order), null);
+        } else {
+            return CatalogSql.retain(getIds(db, CatalogSql.selectIds(order), null), matches);
+        }
+    }
+
+    private static long[] getIds(final SQLiteDatabase db, final String sql,
+                                 final String[] args) {
+        try (Cursor c = db.rawQuery(sql, args)) {
+            long[] ids = new long[c.getCount()];
+            for (int i = 0; i < ids.length && c.moveToPosition(i); i++) {
+                ids[i] = c.getLong(0);
+            }
+            return ids;
+        }
+    }
+
+    /**
+     * @param ids  the ids of encrypted files
+     * @param from the first index in ids to get
+     * @param to   the index after the last one to get
+     * @return the files, at the same indexes as their ids minus from. Files not in the database
+     * (anymore) are null
+     */
+    File[] getFiles(final long[] ids, final int from, final int to) {
+        File[] files = new File[to - from];
+        try (Cursor c = getReadableDatabase()
+                .rawQuery(CatalogSql.selectFiles(EncryptedFilesContract.ALL_COLUMNS, ids, from, to),
+                        null)) {
+            while (c.moveToNext()) {
+                File file = getFile(c);
+                for (int i = from; i < to; i++) {
+                    if (ids[i] == file.id) {
+                        files[i - from] = file;
+                        break;
+                    }
+                }
+            }
+        }
+        return files;
+    }
+
+    /**
+     * @param c a cursor positioned at a row of the encrypted files table
+     * @return the encrypted file of the current row
+     */
+    private static File getFile(final Cursor c) {
+        return new File(c.getLong(c.getColumnIndex(EncryptedFilesContract._ID)),
+                c.getString(c.getColumnIndex(EncryptedFilesContract.COLUMN_FILENAME)),
+                c.getString(c.getColumnIndex(EncryptedFilesContract.COLUMN_MIME)),
+                Uri.parse(c.getString(c.getColumnIndex(EncryptedFilesContract.COLUMN_URI))),
+                c.getLong(c.getColumnIndex(EncryptedFilesContract.COLUMN_SIZE)), true,
+                c.getString(c.getColumnIndex(EncryptedFilesContract.COLUMN_PATH)));
+    }
+
+    /**
+     * Gets all encrypted files, which have been encrypted together with the given file from one
+     * document tree, see {@link CryptoUtil#encryptTree}
+     *
+     * @param file an encrypted file with a path, see {@link File#path}
+     * @return the files, in the order they have been added
+     */
+    List<File> getFilesInTree(final File file) {
+        String folder = file.path.split("/")[0];
+        // trees encrypted before their batch has been stored can only be told apart by name
+        try (Cursor c = getReadableDatabase()
+                .query(EncryptedFilesContract.TABLE_NAME, EncryptedFilesContract.ALL_COLUMNS,
+                        "(" + EncryptedFilesContract.COLUMN_PATH + " = ? OR substr(" +
+                                EncryptedFilesContract.COLUMN_PATH + ", 1, " +
+                                (folder.length() + 1) + ") = ?) AND " +
+                                EncryptedFilesContract.COLUMN_BATCH + " IS (SELECT " +
+                                EncryptedFilesContract.COLUMN_BATCH + " FROM " +
+                                EncryptedFilesContract.TABLE_NAME + " WHERE " +
+                                EncryptedFilesContract._ID + " = ?)",
+                        new String[]{folder, folder + "/", String.valueOf(file.id)}, null, null,
+                        EncryptedFilesContract._ID)) {
+            List<File> re = new ArrayList<>(c != null ? c.getCount() : 0);
+            while (c != null && c.moveToNext()) {
+                re.add(getFile(c));
+            }
+            return re;
+        }
+    }
+
+    /**
+     * Gets the uris of all encrypted files, in the order they have been added
+     *
+     * @return the distinct uris
+     */
+    List<Uri> getFileUris() {
+        try (Cursor c = getReadableDatabase()
+                .query(EncryptedFilesContract.TABLE_NAME,
+                        new String[]{EncryptedFilesContract.COLUMN_URI}, null, null,
+                        EncryptedFilesContract.COLUMN_URI, null,
+                        "MIN(" + EncryptedFilesContract._ID + ")")) {
+            List<Uri> re = new ArrayList<>(c != null ? c.getCount() : 0);
+            while (c != null && c.moveToNext()) {
+                re.add(Uri.parse(c.getString(0)));
+            }
+            return re;
+        }
+    }
+
+    /**
+     * @param pack the uri of a pack
+     * @return the ids of the members of the pack, which have an entry
+     */
+    Set<Long> getPackMembers(final Uri pack) {
+        String prefix = pack.toString() + "#";
+        try (Cursor c = getReadableDatabase()
+                .query(EncryptedFilesContract.TABLE_NAME,
+                        new String[]{EncryptedFilesContract.COLUMN_URI},
+                        "substr(" + EncryptedFilesContract.COLUMN_URI + ", 1, " +
+                                prefix.length() + ") = ?", new String[]{prefix}, null, null,
+                        null)) {
+            Set<Long> re = new HashSet<>();
+            while (c != null && c.moveToNext()) {
+                try {
+                    re.add(Long.parseLong(c.getString(0).substring(prefix.length())));
+                } catch (NumberFormatException e) {
+                    e.printStackTrace();
+                }
+            }
+            return re;
+        }
+    }
+
+    /**
+     * @param target the uri of an encrypted file
+     * @return true, if a job in the job queue encrypts into the given file
+     */
+    boolean hasJobs(final Uri target) {
+        return DatabaseUtils.queryNumEntries(getReadableDatabase(), JobsContract.TABLE_NAME,
+                JobsContract.COLUMN_TARGET_URI + " = ?", new String[]{target.toString()}) > 0;
+    }
+
+    /**
+     * Replaces the uri of an encrypted file, which has been moved, in all entries, jobs and trees
+     *
+     * @param from the old uri
+     * @param to   the new uri
+     */
+    void replaceUri(final Uri from, final Uri to) {
+        SQLiteDatabase db = getWritableDatabase();
+        String[] args = new String[]{from.toString()};
+        ContentValues values = new ContentValues();
+        values.put(EncryptedFilesContract.COLUMN_URI, to.toString());
+        db.update(EncryptedFilesContract.TABLE_NAME, values,
+                EncryptedFilesContract.COLUMN_URI + " = ?", args);
+        values = new ContentValues();
+        values.put(JobsContract.COLUMN_SOURCE_URI, to.toString());
+        db.update(JobsContract.TABLE_NAME, values, JobsContract.COLUMN_SOURCE_URI + " = ?", args);
+        values = new ContentValues();
+        values.put(JobsContract.COLUMN_TARGET_URI, to.toString());
+        db.update(JobsContract.TABLE_NAME, values, JobsContract.COLUMN_TARGET_URI + " = ?", args);
+        values = new ContentValues();
+        values.put(TreesContract.COLUMN_URI, to.toString());
+        db.update(TreesContract.TABLE_NAME, values, TreesContract.COLUMN_URI + " = ?", args);
+        values = new ContentValues();
+        values.put(ThumbnailsContract.COLUMN_URI, to.toString());
+        db.update(ThumbnailsContract.TABLE_NAME, values, ThumbnailsContract.COLUMN_URI + " = ?",
+                args);
+    }
+
+    /**
+     * Allocates a new, unique id for a file in the {@link BlobStore}. Ids are never reused, even
+     * after the file has been deleted
+     *
+     * @return the id
+     */
+    long allocateBlobId() {
+        SQLiteDatabase db = getWritableDatabase();
+        long id = db.insertOrThrow(BlobIdsContract.TABLE_NAME, BlobIdsContract._ID, null);
+        // the sequence of an AUTOINCREMENT column survives the deletion of all rows
+        db.delete(BlobIdsContract.TABLE_NAME, BlobIdsContract._ID + " < ?",
+                new String[]{String.valueOf(id)});
+        return id;
+    }
+
+    /**
+     * Adds the given job to the job queue
+     *
+     * @param job the job
      * @return the entry id
      */
-    long addFile(final File file) {
+    long addJob(final Job job) {
+        ContentValues values = new ContentValues();
+        values.put(JobsContract.COLUMN_ENCRYPT, job.encrypt ? 1 : 0);
+        values.put(JobsContract.COLUMN_MIME, job.source.mime);
+        values.put(JobsContract.COLUMN_SIZE, job.source.size);
+        values.put(JobsContract.COLUMN_SOURCE_NAME, job.source.name);
+        values.put(JobsContract.COLUMN_SOURCE_URI, job.source.uri.toString());
+        values.put(JobsContract.COLUMN_TARGET_NAME, job.target.name);
+        values.put(JobsContract.COLUMN_TARGET_URI, job.target.uri.toString());
+        values.put(JobsContract.COLUMN_OFFSET, job.offset);
+        values.put(JobsContract.COLUMN_KEY_IV, job.keyIv);
+        values.put(JobsContract.COLUMN_WRAPPED_KEY, job.wrappedKey);
+        values.put(JobsContract.COLUMN_CHECKPOINT, job.checkpoint);
+        values.put(JobsContract.COLUMN_PATH, job.source.path);
+        values.put(JobsContract.COLUMN_SOURCE_VERSION, job.sourceVersion);
+        return getWritableDatabase().insert(JobsContract.TABLE_NAME, null, values);
+    }
+
+    /**
+     * Stores the checkpoint of a job, up to which its output has been durably written
+     *
+     * @param job        the job
+     * @param checkpoint the checkpoint, see {@link Job#checkpoint}
+     */
+    void updateCheckpoint(final Job job, final long checkpoint) {
+        long start = System.nanoTime();
         ContentValues values = new ContentValues();
-        values.put(EncryptedFilesContract.COLUMN_FILENAME, file.name);
-        values.put(EncryptedFilesContract.COLUMN_MIME, file.mime);
-        values.put(EncryptedFilesContract.COLUMN_URI, file.uri.toString());
-        values.put(EncryptedFilesContract.COLUMN_SIZE, file.size);
-        return getWritableDatabase().insert(EncryptedFilesContract.TABLE_NAME, null, values);
+        values.put(JobsContract.COLUMN_CHECKPOINT, checkpoint);
+        values.put(JobsContract.COLUMN_SOURCE_VERSION, job.sourceVersion);
+        getWritableDatabase().update(JobsContract.TABLE_NAME, values, JobsContract._ID + " = ?",
+                new String[]{String.valueOf(job.id)});
+        Metrics.DB_CHECKPOINT.recordSince(start);
     }
 
     /**
-     * Deletes a file from the database
+     * Removes a job from the job queue
      *
-     * @param id the id of the entry to delete
+     * @param id the id of the job to remove
      */
-    void deleteFile(final long id) {
-        getWritableDatabase()
-                .delete(EncryptedFilesContract.TABLE_NAME, EncryptedFilesContract._ID + " = ?",
-                        new String[]{String.valueOf(id)});
+    void deleteJob(final long id) {
+        getWritableDatabase().delete(JobsContract.TABLE_NAME, JobsContract._ID + " = ?",
+                new String[]{String.valueOf(id)});
     }
 
     /**
-     * Gets all encrypted files in the database
+     * Gets all jobs in the job queue
      *
-     * @return the list of encrypted files
+     * @return the list of jobs, without their unwrapped keys
      */
-    List<File> getFiles() {
+    List<Job> getJobs() {
+        long start = System.nanoTime();
         try (Cursor c = getReadableDatabase()
-                .query(EncryptedFilesContract.TABLE_NAME, EncryptedFilesContract.ALL_COLUMNS, null,
-                        null, null, null, null)) {
+                .query(JobsContract.TABLE_NAME, JobsContract.ALL_COLUMNS, null, null, null, null,
+                        JobsContract._ID)) {
             if (c != null && c.moveToFirst()) {
-                int indexId = c.getColumnIndex(EncryptedFilesContract._ID);
-                int indexName = c.getColumnIndex(EncryptedFilesContract.COLUMN_FILENAME);
-                int indexMime = c.getColumnIndex(EncryptedFilesContract.COLUMN_MIME);
-                int indexUri = c.getColumnIndex(EncryptedFilesContract.COLUMN_URI);
-                int indexSize = c.getColumnIndex(EncryptedFilesContract.COLUMN_SIZE);
-                List<File> re = new ArrayList<>(c.getCount());
+                int indexId = c.getColumnIndex(JobsContract._ID);
+                int indexEncrypt = c.getColumnIndex(JobsContract.COLUMN_ENCRYPT);
+                int indexMime = c.getColumnIndex(JobsContract.COLUMN_MIME);
+                int indexSize = c.getColumnIndex(JobsContract.COLUMN_SIZE);
+                int indexSourceName = c.getColumnIndex(JobsContract.COLUMN_SOURCE_NAME);
+                int indexSourceUri = c.getColumnIndex(JobsContract.COLUMN_SOURCE_URI);
+                int indexTargetName = c.getColumnIndex(JobsContract.COLUMN_TARGET_NAME);
+                int indexTargetUri = c.getColumnIndex(JobsContract.COLUMN_TARGET_URI);
+                int indexOffset = c.getColumnIndex(JobsContract.COLUMN_OFFSET);
+                int indexKeyIv = c.getColumnIndex(JobsContract.COLUMN_KEY_IV);
+                int indexWrappedKey = c.getColumnIndex(JobsContract.COLUMN_WRAPPED_KEY);
+                int indexCheckpoint = c.getColumnIndex(JobsContract.COLUMN_CHECKPOINT);
+                int indexPath = c.getColumnIndex(JobsContract.COLUMN_PATH);
+                int indexSourceVersion = c.getColumnIndex(JobsContract.COLUMN_SOURCE_VERSION);
+                List<Job> re = new ArrayList<>(c.getCount());
                 while (!c.isAfterLast()) {
-                    re.add(new File(c.getInt(indexId), c.getString(indexName),
-                            c.getString(indexMime), Uri.parse(c.getString(indexUri)),
-                            c.getInt(indexSize), true));
+                    boolean encrypt = c.getInt(indexEncrypt) != 0;
+                    String mime = c.getString(indexMime);
+                    long size = c.getLong(indexSize);
+                    String path = c.getString(indexPath);
+                    File source = new File(-1, c.getString(indexSourceName), mime,
+                            Uri.parse(c.getString(indexSourceUri)), size, !encrypt, path);
+                    File target = new File(-1, c.getString(indexTargetName), mime,
+                            Uri.parse(c.getString(indexTargetUri)), size, encrypt,
+                            encrypt ? path : null);
+                    Job job = new Job(c.getLong(indexId), encrypt, source, target,
+                            c.getLong(indexOffset), c.getBlob(indexKeyIv),
+                            c.isNull(indexWrappedKey) ? null : c.getBlob(indexWrappedKey));
+                    job.checkpoint = c.getLong(indexCheckpoint);
+                    job.sourceVersion = c.getString(indexSourceVersion);
+                    re.add(job);
                     c.moveToNext();
                 }
                 return re;
             }
+        } finally {
+            Metrics.DB_JOBS.recordSince(start);
         }
         return new ArrayList<>(0);
     }
 
     @Override
     public void onUpgrade(final SQLiteDatabase db, int from, int to) {
+        if (from < 2) {
+            createJobsTableV2(db);
+        }
+        if (from < 3) {
+            db.execSQL("ALTER TABLE " + JobsContract.TABLE_NAME + " ADD COLUMN " +
+                    JobsContract.COLUMN_CHECKPOINT + " INTEGER DEFAULT 0");
+        }
+        if (from < 4) {
+            db.execSQL("ALTER TABLE " + EncryptedFilesContract.TABLE_NAME + " ADD COLUMN " +
+                    EncryptedFilesContract.COLUMN_HASH + " BLOB");
+            createHashIndex(db);
+        }
+        if (from < 5) {
+            createBlobIdsTable(db);
+        }
+        if (from < 6) {
+            repairSizes(db);
+        }
+        if (from < 7) {
+            createTreesTable(db);
+        }
+        if (from < 8) {
+            createCatalogIndexes(db);
+        }
+        if (from < 9) {
+            createThumbnailsTable(db);
+        }
+        if (from < 10) {
+            db.execSQL("ALTER TABLE " + EncryptedFilesContract.TABLE_NAME + " ADD COLUMN " +
+                    EncryptedFilesContract.COLUMN_PATH + " TEXT");
+            db.execSQL("ALTER TABLE " + JobsContract.TABLE_NAME + " ADD COLUMN " +
+                    JobsContract.COLUMN_PATH + " TEXT");
+        }
+        if (from < 11) {
+            db.execSQL("ALTER TABLE " + JobsContract.TABLE_NAME + " ADD COLUMN " +
+                    JobsContract.COLUMN_SOURCE_VERSION + " TEXT");
+        }
+        if (from < 12) {
+            db.execSQL("ALTER TABLE " + EncryptedFilesContract.TABLE_NAME + " ADD COLUMN " +
+                    EncryptedFilesContract.COLUMN_BATCH + " BLOB");
+        }
+    }
 
+    /**
+     * Older versions read the size of the selected files as an int, so the size of files larger
+     * than 2 GB has been stored truncated to 32 bit. As the ciphertext is never much smaller
+     * than the plaintext, the actual size is the value with the same lower 32 bit, which is
+     * closest to the size of the encrypted file.
+     *
+     * @param db the database
+     */
+    private static void repairSizes(final SQLiteDatabase db) {
+        try (Cursor c = db.query(EncryptedFilesContract.TABLE_NAME,
+                new String[]{EncryptedFilesContract._ID, EncryptedFilesContract.COLUMN_URI,
+                        EncryptedFilesContract.COLUMN_SIZE}, null, null, null, null, null)) {
+            while (c != null && c.moveToNext()) {
+                long stored = c.getLong(2);
+                long size = Sizes.repair(stored,
+                        new java.io.File(Uri.parse(c.getString(1)).getPath()).length());
+                if (size == stored) {
+                    continue;
+                }
+                ContentValues values = new ContentValues();
+                values.put(EncryptedFilesContract.COLUMN_SIZE, size);
+                db.update(EncryptedFilesContract.TABLE_NAME, values,
+                        EncryptedFilesContract._ID + " = ?",
+                        new String[]{String.valueOf(c.getLong(0))});
+            }
+        }
     }
 }
@@ -0,0 +1,301 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.provider.OpenableColumns;
+import android.util.Base64;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+
+/**
+ * ContentProvider which serves the plaintext of encrypted files to other apps without ever
+ * writing it to the storage.
+ * <p>
+ * After the user has authenticated, {@link #register} returns an uri with a random token for
+ * the file. Reading that uri returns one end of a pipe, the other end is fed by a writer thread
+ * which decrypts the file on the fly, so the viewer can start reading as soon as the first chunk
+ * is decrypted. Tokens only live in memory and expire after {@link #TOKEN_LIFETIME}.
+ */
+public class DecryptProvider extends ContentProvider {
+
+    private final static String AUTHORITY = BuildConfig.APPLICATION_ID + ".decrypt";
+    private final static long TOKEN_LIFETIME = 30 * 60 * 1000;
+    private final static String[] COLUMNS =
+            new String[]{OpenableColumns.DISPLAY_NAME, OpenableColumns.SIZE};
+
+    private final static Map<String, Entry> ENTRIES = new ConcurrentHashMap<>();
+    private final static SecureRandom RANDOM = new SecureRandom();
+
+    private static class Entry {
+        private final File file;
+        private final CryptoUtil.MasterKey masterKey;
+        /**
+         * A legacy cipher can only decrypt the file once
+         */
+        private final AtomicReference<Cipher> legacyCipher;
+        private final long expires;
+
+        private Entry(final File file, final CryptoUtil.MasterKey masterKey,
+                      final Cipher legacyCipher) {
+            this.file = file;
+            this.masterKey = masterKey;
+            this.legacyCipher = new AtomicReference<>(legacyCipher);
+            this.expires = System.currentTimeMillis() + TOKEN_LIFETIME;
+        }
+    }
+
+    /**
+     * Makes the given file readable through this provider
+     *
+     * @param file         the encrypted file
+     * @param masterKey    the unwrapped master key of the file or null, if it is a legacy file
+     * @param legacyCipher the authenticated cipher to decrypt a legacy file with
+     * @return the uri to read the plaintext from
+     */
+    static Uri register(final File file, final CryptoUtil.MasterKey masterKey,
+                        final Cipher legacyCipher) {
+        purge();
+        byte[] bytes = new byte[16];
+        RANDOM.nextBytes(bytes);
+        String token = Base64.encodeToString(bytes,
+                Base64.URL_SAFE | Base64.NO_WRAP | Base64.NO_PADDING);
+        if (masterKey != null) {
+            masterKey.retain();
+        }
+        ENTRIES.put(token, new Entry(file, masterKey, legacyCipher));
+        // the name is only appended for viewers, which derive the file type from the uri
+        return new Uri.Builder().scheme("content").authority(AUTHORITY).appendPath(token)
+                .appendPath(file.name != null ? file.name : token).build();
+    }
+
+    /**
+     * Removes all expired tokens
+     */
+    private static void purge() {
+        long now = System.currentTimeMillis();
+        Iterator<Entry> iterator = ENTRIES.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.expires < now) {
+                iterator.remove();
+                if (entry.masterKey != null) {
+                    entry.masterKey.release();
+                }
+            }
+        }
+    }
+
+    private static Entry getEntry(final Uri uri) {
+        List<String> segments = uri.getPathSegments();
+        Entry entry = segments.isEmpty() ? null : ENTRIES.get(segments.get(0));
+        return entry != null && entry.expires >= System.currentTimeMillis() ? entry : null;
+    }
+
+    @Override
+    public boolean onCreate() {
+        return true;
+    }
+
+    @Override
+    public Cursor query(final Uri uri, String[] projection, final String selection,
+                        final String[] selectionArgs, final String sortOrder) {
+        Entry entry = getEntry(uri);
+        if (entry == null) {
+            return null;
+        }
+        if (projection == null) {
+            projection = COLUMNS;
+        }
+        MatrixCursor cursor = new MatrixCursor(projection, 1);
+        MatrixCursor.RowBuilder row = cursor.newRow();
+        for (String column : projection) {
+            if (OpenableColumns.DISPLAY_NAME.equals(column)) {
+                row.add(entry.file.name);
+            } else if (OpenableColumns.SIZE.equals(column)) {
+                row.add(entry.file.size >= 0 ? entry.file.size : null);
+            } else {
+                row.add(null);
+            }
+        }
+        return cursor;
+    }
+
+    @Override
+    public String getType(final Uri uri) {
+        Entry entry = getEntry(uri);
+        return entry != null ? entry.file.mime : null;
+    }
+
+    @Override
+    public ParcelFileDescriptor openFile(final Uri uri, final String mode) throws
+            FileNotFoundException {
+        if (!"r".equals(mode)) {
+            throw new FileNotFoundException("Read only: " + uri);
+        }
+        purge();
+        final Entry entry = getEntry(uri);
+        if (entry == null) {
+            throw new FileNotFoundException("Unknown or expired uri: " + uri);
+        }
+        final ParcelFileDescriptor[] pipe;
+        try {
+            pipe = ParcelFileDescriptor.createReliablePipe();
+        } catch (IOException e) {
+            throw new FileNotFoundException(e.getMessage());
+        }
+        final long start = System.nanoTime();
+        final Context context = getContext();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                write(context, entry, pipe[1], start);
+            }
+        }, "DecryptProvider writer").start();
+        return pipe[0];
+    }
+
+    /**
+     * Decrypts the file of the given entry into the write side of a pipe
+     *
+     * @param context   the context
+     * @param entry     the entry
+     * @param writeSide the write side of the pipe
+     * @param start     the time the file has been opened, in ns
+     */
+    private static void write(final Context context, final Entry entry,
+                              final ParcelFileDescriptor writeSide, final long start) {
+        ParcelFileDescriptor.AutoCloseOutputStream out =
+                new ParcelFileDescriptor.AutoCloseOutputStream(writeSide);
+        try (FileChannel input = new FileInputStream(entry.file.uri.getPath()).getChannel()) {
+            InputStream inputStream = new BufferedInputStream(Channels.newInputStream(input),
+                    CryptoService.BUFFER_SIZE);
+            Container container = Container.read(inputStream);
+            if (PackStore.isMember(entry.file.uri)) {
+                if (entry.masterKey == null) {
+                    throw new GeneralSecurityException("Not authenticated");
+                }
+                // small enough to be decrypted at once
+                out.write(PackStore.read(context, entry.file, entry.masterKey));
+                logFirstByte(start);
+            } else if (container != null) {
+                if (entry.masterKey == null) {
+                    throw new GeneralSecurityException("Not authenticated");
+                }
+                input.position(container.headerLength());
+                byte[] key = container.dataKey(entry.masterKey.key);
+                ChunkEngine engine = ChunkEngine.decrypter(container, key, input.size(), 0,
+                        ChunkEngine.Config.defaults());
+                Arrays.fill(key, (byte) 0);
+                WritableByteChannel output = out.getChannel();
+                if (container.compression != Container.COMPRESSION_NONE) {
+                    output = new Compression.InflatingChannel(output, 0);
+                }
+                engine.run(input, output, new ChunkEngine.ProgressListener() {
+                    private boolean first = true;
+
+                    @Override
+                    public void progress(final long bytes) {
+                        if (first) {
+                            first = false;
+                            logFirstByte(start);
+                        }
+                    }
+                });
+                if (output instanceof Compression.InflatingChannel) {
+                    ((Compression.InflatingChannel) output).finish();
+                }
+            } else {
+                Cipher c = entry.legacyCipher.getAndSet(null);
+                if (c == null) {
+                    throw new GeneralSecurityException("Legacy file can only be read once");
+                }
+                int ivLength = inputStream.read();
+                if (inputStream.skip(ivLength) != ivLength) {
+                    throw new IOException("Encrypted file is truncated");
+                }
+                InputStream in = new CipherInputStream(inputStream, c);
+                byte[] buffer = new byte[CryptoService.BUFFER_SIZE];
+                int read;
+                boolean first = true;
+                while ((read = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, read);
+                    if (first) {
+                        first = false;
+                        logFirstByte(start);
+                    }
+                }
+            }
+            out.close();
+        } catch (IOException | GeneralSecurityException e) {
+            // also happens if the reader closes its side early, e.g. after reading the metadata
+            if (BuildConfig.DEBUG)
+                android.util.Log.d(MainActivity.TAG, "DecryptProvider: " + e.getMessage());
+            try {
+                writeSide.closeWithError(String.valueOf(e.getMessage()));
+            } catch (IOException ignored) {
+            }
+        }
+        if (BuildConfig.DEBUG) android.util.Log.d(MainActivity.TAG,
+                "DecryptProvider done after " + (System.nanoTime() - start) / 1000000 + " ms");
+    }
+
+    private static void logFirstByte(final long start) {
+        if (BuildConfig.DEBUG) android.util.Log.d(MainActivity.TAG,
+                "DecryptProvider first byte after " + (System.nanoTime() - start) / 1000000 +
+                        " ms");
+    }
+
+    @Override
+    public Uri insert(final Uri uri, final ContentValues values) {
+        throw new UnsupportedOperationException("Read only");
+    }
+
+    @Override
+    public int delete(final Uri uri, final String selection, final String[] selectionArgs) {
+        throw new UnsupportedOperationException("Read only");
+    }
+
+    @Override
+    public int update(final Uri uri, final ContentValues values, final String selection,
+                      final String[] selectionArgs) {
+        throw new UnsupportedOperationException("Read only");
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter;
+
+import android.content.Intent;
+import android.os.Build;
+import android.os.Bundle;
+import android.support.v7.app.AppCompatActivity;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Shows the collected {@link Metrics} and exports them as JSON, to compare different devices
+ */
+public class DiagnosticsActivity extends AppCompatActivity {
+
+    private final static int REQUEST_EXPORT = 1;
+
+    private TextView text;
+
+    @Override
+    protected void onCreate(final Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_diagnostics);
+        text = (TextView) findViewById(R.id.metrics);
+        if (getSupportActionBar() != null) {
+            getSupportActionBar().setDisplayHomeAsUpEnabled(true);
+        }
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        text.setText(Metrics.format());
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(final Menu menu) {
+        getMenuInflater().inflate(R.menu.diagnostics, menu);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(final MenuItem item) {
+        switch (item.getItemId()) {
+            case R.id.action_export:
+                Intent intent = new Intent(Intent.ACTION_CREATE_DOCUMENT);
+                intent.addCategory(Intent.CATEGORY_OPENABLE);
+                intent.setType("application/json");
+                intent.putExtra(Intent.EXTRA_TITLE,
+                        "metrics-" + Build.MODEL.replaceAll("\\W+", "_") + ".json");
+                startActivityForResult(intent, REQUEST_EXPORT);
+                return true;
+            case R.id.action_reset:
+                Metrics.reset();
+                text.setText(Metrics.format());
+                return true;
+            default:
+                return super.onOptionsItemSelected(item);
+        }
+    }
+
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, final Intent data) {
+        if (requestCode == REQUEST_EXPORT && resultCode == RESULT_OK && data != null) {
+            try (OutputStream out = getContentResolver().openOutputStream(data.getData())) {
+                if (out == null) {
+                    throw new IOException("Can not open " + data.getData());
+                }
+                out.write(Metrics.toJson().toString(2).getBytes(StandardCharsets.UTF_8));
+                Toast.makeText(this, R.string.metrics_exported, Toast.LENGTH_SHORT).show();
+            } catch (IOException | JSONException e) {
+                e.printStackTrace();
+                Toast.makeText(this, getString(R.string.error_io, e.getMessage()),
+                        Toast.LENGTH_LONG).show();
+            }
+        } else {
+            super.onActivityResult(requestCode, resultCode, data);
+        }
+    }
+}
@@ -16,22 +16,33 @@
 package de.j4velin.encrypter;
 
 import android.app.Activity;
-import android.content.BroadcastReceiver;
+import android.app.AlertDialog;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
-import android.content.IntentFilter;
+import android.net.Uri;
 import android.os.Bundle;
 import android.support.design.widget.Snackbar;
 import android.support.v4.app.Fragment;
+import android.support.v4.app.LoaderManager;
+import android.support.v4.content.Loader;
+import android.support.v4.view.MenuItemCompat;
 import android.support.v7.widget.LinearLayoutManager;
 import android.support.v7.widget.RecyclerView;
+import android.support.v7.widget.SearchView;
 import android.view.LayoutInflater;
+import android.view.Menu;
+import android.view.MenuInflater;
+import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * Fragment showing the list of encrypted files
@@ -40,68 +51,325 @@ public class EncryptedFragment extends Fragment {
 
     private FileAdapter adapter;
     private final static int REQUEST_OUTPUT = 1;
-    private final BroadcastReceiver cryptoCompleteReceiver = new BroadcastReceiver() {
+    private final static int REQUEST_OUTPUT_TREE = 2;
+    private final static int LOADER_CATALOG = 0;
+    private final static String STATE_QUERY = "query";
+    private final static String STATE_ORDER = "order";
+    private final LoaderManager.LoaderCallbacks<Catalog> catalogCallbacks =
+            new LoaderManager.LoaderCallbacks<Catalog>() {
+                @Override
+                public Loader<Catalog> onCreateLoader(final int id, final Bundle args) {
+                    return new Catalog.Loader(getContext(), query, order);
+                }
+
+                @Override
+                public void onLoadFinished(final Loader<Catalog> loader, final Catalog catalog) {
+                    // files encrypted while the query was running might not be part of it
+                    if (catalog.acceptsNewFiles()) {
+                        for (File file : encryptedSinceLoad) {
+                            if (!catalog.includes(file)) {
+                                catalog.add(file);
+                            }
+                        }
+                    } else if (!encryptedSinceLoad.isEmpty()) {
+                        reload();
+                        return;
+                    }
+                    EncryptedFragment.this.catalog = catalog;
+                    adapter.setFiles(catalog);
+                }
+
+                @Override
+                public void onLoaderReset(final Loader<Catalog> loader) {
+                    catalog = null;
+                    adapter.setFiles(new ArrayList<File>(0));
+                }
+            };
+    private final JobEvents.Listener jobListener = new JobEvents.Listener() {
         @Override
-        public void onReceive(final Context context, final Intent intent) {
-            if (intent.getAction().equals(MainActivity.CRYPTO_COMPLETE_ACTION)) {
-                File resultFile = intent.getParcelableExtra(MainActivity.EXTRA_RESULT_FILE);
-                if (resultFile.isEncrypted) {
-                    adapter.add(resultFile);
+        void onCompleted(final JobEvents.Completed event) {
+            if (event.encrypt) {
+                encryptedSinceLoad.add(event.target);
+                if (catalog != null && !catalog.acceptsNewFiles()) {
+                    // might match the search or belong somewhere in the middle of the list
+                    reload();
+                } else if (catalog != null && !catalog.includes(event.target)) {
+                    adapter.add(event.target);
                 }
             }
         }
+
+        @Override
+        void onEventsLost() {
+            reload();
+        }
     };
+    /**
+     * The currently shown catalog or null, while it is loaded for the first time
+     */
+    private Catalog catalog;
+    /**
+     * The files encrypted since the current catalog query has been started
+     */
+    private final List<File> encryptedSinceLoad = new ArrayList<>();
+    /**
+     * The words searched for or null, if all files are shown
+     */
+    private String query;
+    private CatalogSql.Order order = CatalogSql.Order.DATE;
 
     private File selectedFile;
 
+    @Override
+    public void onCreate(final Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setHasOptionsMenu(true);
+        if (savedInstanceState != null) {
+            query = savedInstanceState.getString(STATE_QUERY);
+            order = CatalogSql.Order.valueOf(savedInstanceState.getString(STATE_ORDER));
+        }
+    }
+
+    @Override
+    public void onSaveInstanceState(final Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putString(STATE_QUERY, query);
+        outState.putString(STATE_ORDER, order.name());
+    }
+
+    @Override
+    public void onCreateOptionsMenu(final Menu menu, final MenuInflater inflater) {
+        inflater.inflate(R.menu.encrypted, menu);
+        switch (order) {
+            case DATE:
+                menu.findItem(R.id.sort_date).setChecked(true);
+                break;
+            case NAME:
+                menu.findItem(R.id.sort_name).setChecked(true);
+                break;
+            case SIZE:
+                menu.findItem(R.id.sort_size).setChecked(true);
+                break;
+        }
+        MenuItem searchItem = menu.findItem(R.id.action_search);
+        SearchView searchView = (SearchView) MenuItemCompat.getActionView(searchItem);
+        if (query != null) {
+            MenuItemCompat.expandActionView(searchItem);
+            searchView.setQuery(query, false);
+            searchView.clearFocus();
+        }
+        searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            @Override
+            public boolean onQueryTextSubmit(final String text) {
+                return false;
+            }
+
+            @Override
+            public boolean onQueryTextChange(final String text) {
+                // every change is searched, the query only takes a few milliseconds
+                String newQuery = CatalogSql.toMatch(text) != null ? text : null;
+                if (newQuery == null ? query != null : !newQuery.equals(query)) {
+                    query = newQuery;
+                    reload();
+                }
+                return true;
+            }
+        });
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(final MenuItem item) {
+        CatalogSql.Order selected;
+        switch (item.getItemId()) {
+            case R.id.sort_date:
+                selected = CatalogSql.Order.DATE;
+                break;
+            case R.id.sort_name:
+                selected = CatalogSql.Order.NAME;
+                break;
+            case R.id.sort_size:
+                selected = CatalogSql.Order.SIZE;
+                break;
+            default:
+                return super.onOptionsItemSelected(item);
+        }
+        item.setChecked(true);
+        if (selected != order) {
+            order = selected;
+            reload();
+        }
+        return true;
+    }
+
     @Override
     public View onCreateView(final LayoutInflater inflater, final ViewGroup container,
                              final Bundle savedInstanceState) {
         RecyclerView recyclerView =
                 (RecyclerView) inflater.inflate(R.layout.fragment_filelist, container, false);
-        Database db = new Database(getContext());
         adapter = new FileAdapter(getContext(), new FileAdapter.ClickListener() {
             @Override
             public void click(final File file) {
                 selectedFile = file;
-                Intent intent = new Intent(Intent.ACTION_CREATE_DOCUMENT);
-                intent.addCategory(Intent.CATEGORY_OPENABLE);
-                intent.setType(selectedFile.mime);
-                intent.putExtra(Intent.EXTRA_TITLE, selectedFile.name);
-                EncryptedFragment.this.startActivityForResult(intent, REQUEST_OUTPUT);
+                boolean playable = file.mime != null &&
+                        (file.mime.startsWith("video/") || file.mime.startsWith("audio/"));
+                int[] available = playable ?
+                        new int[]{R.string.action_open, R.string.action_play,
+                                R.string.action_save_copy, R.string.action_verify} :
+                        PackStore.isMember(file.uri) ?
+                                // every read of a member verifies it, there is no tree
+                                new int[]{R.string.action_open, R.string.action_save_copy} :
+                                new int[]{R.string.action_open, R.string.action_save_copy,
+                                        R.string.action_verify};
+                if (file.path != null) {
+                    // encrypted with its folder
+                    available = Arrays.copyOf(available, available.length + 1);
+                    available[available.length - 1] = R.string.action_save_folder;
+                }
+                final int[] actions = available;
+                String[] labels = new String[actions.length];
+                for (int i = 0; i < actions.length; i++) {
+                    labels[i] = getString(actions[i]);
+                }
+                new AlertDialog.Builder(getContext()).setTitle(file.name)
+                        .setItems(labels,
+                                new DialogInterface.OnClickListener() {
+                                    @Override
+                                    public void onClick(final DialogInterface dialogInterface,
+                                                        int which) {
+                                        switch (actions[which]) {
+                                            case R.string.action_open:
+                                                view(file, false);
+                                                break;
+                                            case R.string.action_play:
+                                                view(file, true);
+                                                break;
+                                            case R.string.action_save_copy:
+                                                Intent intent =
+                                                        new Intent(Intent.ACTION_CREATE_DOCUMENT);
+                                                intent.addCategory(Intent.CATEGORY_OPENABLE);
+                                                intent.setType(file.mime);
+                                                intent.putExtra(Intent.EXTRA_TITLE, file.name);
+                                                EncryptedFragment.this
+                                                        .startActivityForResult(intent,
+                                                                REQUEST_OUTPUT);
+                                                break;
+                                            case R.string.action_verify:
+                                                verify(file);
+                                                break;
+                                            case R.string.action_save_folder:
+                                                EncryptedFragment.this.startActivityForResult(
+                                                        new Intent(
+                                                                Intent.ACTION_OPEN_DOCUMENT_TREE),
+                                                        REQUEST_OUTPUT_TREE);
+                                                break;
+                                        }
+                                    }
+                                }).create().show();
             }
         }, new FileAdapter.DeleteListener() {
             @Override
             public boolean delete(final File file) {
-                java.io.File f = new java.io.File(file.uri.getPath());
-                if (!f.exists() || f.delete()) {
-                    Database db = new Database(getContext());
-                    db.deleteFile(file.id);
-                    db.close();
-                    return true;
-                } else {
-                    return false;
-                }
+                Database db = new Database(getContext());
+                boolean deleted = db.deleteFile(file);
+                db.close();
+                return deleted;
             }
-        }, db.getFiles());
-        db.close();
+        });
         recyclerView.setHasFixedSize(true);
         recyclerView.setLayoutManager(new LinearLayoutManager(getContext()));
         recyclerView.setAdapter(adapter);
+        encryptedSinceLoad.clear();
+        getLoaderManager().initLoader(LOADER_CATALOG, null, catalogCallbacks);
         return recyclerView;
     }
 
+    private void view(final File file, final boolean play) {
+        try {
+            if (play) {
+                CryptoUtil.play(getContext(), file);
+            } else {
+                CryptoUtil.view(getContext(), file);
+            }
+        } catch (GeneralSecurityException e) {
+            Snackbar.make(((MainActivity) getActivity()).getCoordinatorLayout(),
+                    getString(R.string.error_security, e.getMessage()),
+                    Snackbar.LENGTH_LONG).show();
+        } catch (FileNotFoundException e) {
+            Snackbar.make(((MainActivity) getActivity()).getCoordinatorLayout(),
+                    R.string.error_file_not_found, Snackbar.LENGTH_LONG).show();
+        } catch (IOException e) {
+            Snackbar.make(((MainActivity) getActivity()).getCoordinatorLayout(),
+                    getString(R.string.error_io, e.getMessage()), Snackbar.LENGTH_LONG)
+                    .show();
+        }
+    }
+
+    /**
+     * Checks the integrity of an encrypted file in the background. Files without a
+     * {@link MerkleTree} get one, so that later changes are detected
+     *
+     * @param file the encrypted file
+     */
+    private void verify(final File file) {
+        final Context context = getContext().getApplicationContext();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                String message;
+                Database db = new Database(context);
+                try {
+                    java.io.File data = new java.io.File(file.uri.getPath());
+                    byte[] root = db.getTreeRoot(file.uri);
+                    if (root == null) {
+                        db.setTreeRoot(file.uri, MerkleTree.build(data));
+                        message = context.getString(R.string.verify_created, file.name);
+                    } else if (MerkleTree.verify(data, root)) {
+                        message = context.getString(R.string.verify_ok, file.name);
+                    } else {
+                        message = context.getString(R.string.verify_corrupt, file.name);
+                    }
+                } catch (FileNotFoundException e) {
+                    message = context.getString(R.string.error_file_not_found);
+                } catch (IOException e) {
+                    message = context.getString(R.string.error_io, e.getMessage());
+                } finally {
+                    db.close();
+                }
+                final String result = message;
+                if (getActivity() != null) {
+                    getActivity().runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (getActivity() != null) {
+                                Snackbar.make(((MainActivity) getActivity())
+                                        .getCoordinatorLayout(), result, Snackbar.LENGTH_LONG)
+                                        .show();
+                            }
+                        }
+                    });
+                }
+            }
+        }, "MerkleTree verify").start();
+    }
+
+    /**
+     * Reloads the list of encrypted files from the database, with the current search and order
+     */
+    void reload() {
+        encryptedSinceLoad.clear();
+        getLoaderManager().restartLoader(LOADER_CATALOG, null, catalogCallbacks);
+    }
+
     @Override
     public void onResume() {
         super.onResume();
-        getActivity()
-                .registerReceiver(cryptoCompleteReceiver, new IntentFilter(MainActivity.CRYPTO_COMPLETE_ACTION));
+        JobEvents.register(jobListener);
     }
 
     @Override
     public void onPause() {
         super.onPause();
-        getActivity().unregisterReceiver(cryptoCompleteReceiver);
+        JobEvents.unregister(jobListener);
     }
 
     @Override
@@ -128,6 +396,20 @@ public class EncryptedFragment extends Fragment {
                             getString(R.string.error_io, e.getMessage()), Snackbar.LENGTH_LONG)
                             .show();
                 }
+            } else if (requestCode == REQUEST_OUTPUT_TREE) {
+                // the whole tree the file has been encrypted with, not just its sub-folder
+                final Context context = getContext();
+                final File file = selectedFile;
+                final Uri tree = data.getData();
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Database db = new Database(context);
+                        List<File> files = db.getFilesInTree(file);
+                        db.close();
+                        CryptoUtil.decryptTree(context, files, tree);
+                    }
+                }, "Restore tree").start();
             }
         }
     }
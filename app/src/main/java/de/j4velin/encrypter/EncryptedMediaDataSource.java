@@ -0,0 +1,375 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter;
+
+import android.media.MediaDataSource;
+import android.util.LruCache;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+
+/**
+ * MediaDataSource which decrypts only the parts of an encrypted file, which the media player
+ * actually reads, so that seeking within an encrypted video is immediate.
+ * <p>
+ * The plaintext is decrypted in pages, the most recently used pages are kept in a small cache.
+ * For files in the {@link Container} format, a page is a chunk. Legacy files are decrypted
+ * block by block with a single authenticated CBC cipher, see {@link LegacySource}. As CBC does not
+ * detect changes of the ciphertext, legacy files are checked against their {@link MerkleTree}
+ * instead, if they have one.
+ */
+abstract class EncryptedMediaDataSource extends MediaDataSource {
+
+    private final static int CACHE_SIZE = 2 * 1024 * 1024;
+
+    final FileChannel file;
+    private final int pageSize;
+    private final LruCache<Long, byte[]> cache = new LruCache<Long, byte[]>(CACHE_SIZE) {
+        @Override
+        protected int sizeOf(final Long key, final byte[] value) {
+            return value.length;
+        }
+    };
+
+    private EncryptedMediaDataSource(final FileChannel file, final int pageSize) {
+        this.file = file;
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Opens the given file
+     *
+     * @param encryptedFile the encrypted file
+     * @param masterKey     the unwrapped master key or null, if it is a legacy file
+     * @param legacyCipher  the authenticated cipher for legacy files, initialized with the iv of
+     *                      the file
+     * @param treeRoot      the root hash of the {@link MerkleTree} of the file or null, if it
+     *                      has none
+     * @return the data source
+     */
+    static EncryptedMediaDataSource open(final File encryptedFile,
+                                         final CryptoUtil.MasterKey masterKey,
+                                         final Cipher legacyCipher, final byte[] treeRoot) throws
+            IOException, GeneralSecurityException {
+        FileChannel file = new FileInputStream(encryptedFile.uri.getPath()).getChannel();
+        MerkleTree tree = null;
+        try {
+            Container container = Container.read(new BufferedInputStream(
+                    Channels.newInputStream(file), CryptoService.BUFFER_SIZE));
+            if (container != null) {
+                if (masterKey == null) {
+                    throw new GeneralSecurityException("Not authenticated");
+                } else if (container.compression != Container.COMPRESSION_NONE) {
+                    // media types are never compressed, see Compression#isCompressedType
+                    throw new IOException("Compressed files can not be read at random positions");
+                }
+                byte[] key = container.dataKey(masterKey.key);
+                ChunkCipher cipher = new ChunkCipher(container, key);
+                Arrays.fill(key, (byte) 0);
+                return new ContainerSource(file, cipher);
+            } else if (legacyCipher != null) {
+                if (treeRoot != null) {
+                    tree = MerkleTree.open(new java.io.File(encryptedFile.uri.getPath()), treeRoot);
+                    if (tree == null) {
+                        throw new IOException("Encrypted file is corrupt");
+                    }
+                }
+                return new LegacySource(file, legacyCipher, tree);
+            } else {
+                throw new GeneralSecurityException("Not authenticated");
+            }
+        } catch (IOException | GeneralSecurityException e) {
+            if (tree != null) {
+                tree.close();
+            }
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Decrypts a single page
+     *
+     * @param page the page index
+     * @return the plaintext of the page
+     */
+    abstract byte[] readPage(final long page) throws IOException;
+
+    @Override
+    public synchronized int readAt(final long position, final byte[] buffer, final int offset,
+                                   final int size) throws IOException {
+        long length = getSize();
+        if (position >= length) {
+            return -1;
+        }
+        int n = (int) Math.min(size, length - position);
+        int read = 0;
+        while (read < n) {
+            long page = (position + read) / pageSize;
+            byte[] plaintext = cache.get(page);
+            if (plaintext == null) {
+                plaintext = readPage(page);
+                cache.put(page, plaintext);
+            }
+            int pageOffset = (int) (position + read - page * pageSize);
+            int count = Math.min(n - read, plaintext.length - pageOffset);
+            if (count <= 0) {
+                break;
+            }
+            System.arraycopy(plaintext, pageOffset, buffer, offset + read, count);
+            read += count;
+        }
+        return read;
+    }
+
+    @Override
+    public void close() throws IOException {
+        cache.evictAll();
+        file.close();
+    }
+
+    /**
+     * Reads exactly buffer.remaining() bytes at the given position of the file
+     */
+    void readFully(final ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = file.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException("Encrypted file is truncated");
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * Source for files in the {@link Container} format: every chunk can be decrypted on its own
+     */
+    private static class ContainerSource extends EncryptedMediaDataSource {
+        private final ChunkCipher cipher;
+        private final Container container;
+        private final long chunks, size;
+        private final int lastFrameLength;
+        private final byte[] frame;
+
+        private ContainerSource(final FileChannel file, final ChunkCipher cipher) throws
+                IOException {
+            super(file, cipher.container.chunkSize);
+            this.cipher = cipher;
+            container = cipher.container;
+            long payload = file.size() - container.headerLength();
+            int frameLength = container.frameLength();
+            chunks = (payload + frameLength - 1) / frameLength;
+            lastFrameLength = (int) (payload - (chunks - 1) * frameLength);
+            if (chunks < 1 || lastFrameLength < Container.TAG_LENGTH) {
+                throw new EOFException("Encrypted file is truncated");
+            }
+            size = payload - chunks * Container.TAG_LENGTH;
+            frame = new byte[frameLength];
+        }
+
+        @Override
+        byte[] readPage(final long page) throws IOException {
+            boolean last = page == chunks - 1;
+            int length = last ? lastFrameLength : frame.length;
+            readFully(ByteBuffer.wrap(frame, 0, length), container.chunkOffset(page));
+            byte[] plaintext = new byte[length - Container.TAG_LENGTH];
+            try {
+                cipher.open(page, last, frame, length, plaintext);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Chunk " + page + " is corrupt", e);
+            }
+            return plaintext;
+        }
+
+        @Override
+        public long getSize() {
+            return size;
+        }
+    }
+
+    /**
+     * Source for legacy files: [iv length][iv][AES/CBC/PKCS7 stream].
+     * <p>
+     * In CBC, block i is D(C[i]) xor C[i - 1], so any block can be decrypted given the previous
+     * ciphertext block. The key in the Android Key Store needs a new authentication for every
+     * initialization of a cipher though, so instead of re-initializing the cipher with
+     * C[i - 1] as iv for every seek, the one authenticated cipher is never finished and fed with
+     * the blocks in the order they are needed. Its output for a block X is D(X) xor the block
+     * fed right before X, which is corrected to the actual previous ciphertext block where
+     * necessary. As the cipher may hold back the last block (it could contain the padding),
+     * outputs are matched to their blocks in the order they were fed.
+     */
+    private static class LegacySource extends EncryptedMediaDataSource {
+        private final static int BLOCK_SIZE = 16;
+        private final static int PAGE_SIZE = 64 * 1024;
+        private final static int MAX_FLUSH_BLOCKS = 4;
+
+        private final Cipher cipher;
+        private final MerkleTree tree;
+        private final long contentOffset, blocks, size;
+        private final ArrayDeque<Pending> pending = new ArrayDeque<>();
+        /**
+         * The iv of the file, which is the "previous ciphertext block" of block 0
+         */
+        private final byte[] iv;
+        /**
+         * The block which has been fed to the cipher last, initially the iv
+         */
+        private byte[] lastFed;
+
+        /**
+         * A block which has been fed to the cipher, but whose output has not been returned yet
+         */
+        private static class Pending {
+            private final byte[] page;
+            private final int offset;
+            private final byte[] correction;
+
+            /**
+             * @param page       the page to write the plaintext to or null to discard it
+             * @param offset     the offset within the page
+             * @param correction the value to xor the output with or null, if the previously
+             *                   fed block is the previous ciphertext block
+             */
+            private Pending(final byte[] page, final int offset, final byte[] correction) {
+                this.page = page;
+                this.offset = offset;
+                this.correction = correction;
+            }
+        }
+
+        private LegacySource(final FileChannel file, final Cipher cipher, final MerkleTree tree)
+                throws IOException {
+            super(file, PAGE_SIZE);
+            this.cipher = cipher;
+            this.tree = tree;
+            verify(0, 1 + BLOCK_SIZE);
+            ByteBuffer ivLength = ByteBuffer.allocate(1);
+            readFully(ivLength, 0);
+            iv = new byte[ivLength.get(0) & 0xff];
+            readFully(ByteBuffer.wrap(iv), 1);
+            if (iv.length != BLOCK_SIZE) {
+                throw new IOException("Invalid legacy file");
+            }
+            lastFed = iv;
+            contentOffset = 1 + iv.length;
+            long contentLength = file.size() - contentOffset;
+            if (contentLength <= 0 || contentLength % BLOCK_SIZE != 0) {
+                throw new IOException("Invalid legacy file");
+            }
+            blocks = contentLength / BLOCK_SIZE;
+            // the padding in the last block tells the actual plaintext size
+            byte[] last = readPage((contentLength - 1) / PAGE_SIZE);
+            int padding = last[last.length - 1] & 0xff;
+            if (padding < 1 || padding > BLOCK_SIZE) {
+                throw new IOException("Invalid padding, wrong key?");
+            }
+            size = contentLength - padding;
+        }
+
+        @Override
+        byte[] readPage(final long page) throws IOException {
+            long first = page * (PAGE_SIZE / BLOCK_SIZE);
+            int count = (int) Math.min(PAGE_SIZE / BLOCK_SIZE, blocks - first);
+            // the previous ciphertext block (or the iv for the first one), followed by the page
+            byte[] ciphertext = new byte[(count + 1) * BLOCK_SIZE];
+            verify(contentOffset + (first - 1) * BLOCK_SIZE, ciphertext.length);
+            if (first == 0) {
+                System.arraycopy(iv, 0, ciphertext, 0, BLOCK_SIZE);
+                readFully(ByteBuffer.wrap(ciphertext, BLOCK_SIZE, count * BLOCK_SIZE),
+                        contentOffset);
+            } else {
+                readFully(ByteBuffer.wrap(ciphertext),
+                        contentOffset + (first - 1) * BLOCK_SIZE);
+            }
+            byte[] plaintext = new byte[count * BLOCK_SIZE];
+            byte[] correction = new byte[BLOCK_SIZE];
+            for (int i = 0; i < BLOCK_SIZE; i++) {
+                correction[i] = (byte) (lastFed[i] ^ ciphertext[i]);
+            }
+            pending.add(new Pending(plaintext, 0, correction));
+            for (int i = 1; i < count; i++) {
+                pending.add(new Pending(plaintext, i * BLOCK_SIZE, null));
+            }
+            int outstanding = count;
+            outstanding -= consume(cipher.update(ciphertext, BLOCK_SIZE, count * BLOCK_SIZE));
+            lastFed = Arrays.copyOfRange(ciphertext, count * BLOCK_SIZE, ciphertext.length);
+            for (int i = 0; outstanding > 0; i++) {
+                if (i == MAX_FLUSH_BLOCKS) {
+                    throw new IOException("Cipher does not return the decrypted blocks");
+                }
+                // feed the last block again to push out the blocks held back by the cipher
+                pending.add(new Pending(null, 0, null));
+                outstanding -= consume(cipher.update(lastFed));
+            }
+            return plaintext;
+        }
+
+        /**
+         * Checks a range of the file against its tree, if it has one
+         */
+        private void verify(final long position, final long length) throws IOException {
+            if (tree != null && !tree.verify(file, position, length)) {
+                throw new IOException("Encrypted file is corrupt");
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (tree != null) {
+                tree.close();
+            }
+            super.close();
+        }
+
+        /**
+         * Matches the output of the cipher to the pending blocks
+         *
+         * @param output the output of the cipher
+         * @return the number of plaintext blocks written to a page
+         */
+        private int consume(final byte[] output) {
+            int written = 0;
+            for (int i = 0; output != null && i + BLOCK_SIZE <= output.length; i += BLOCK_SIZE) {
+                Pending block = pending.poll();
+                if (block.page == null) {
+                    continue;
+                }
+                for (int j = 0; j < BLOCK_SIZE; j++) {
+                    block.page[block.offset + j] = (byte) (output[i + j] ^
+                            (block.correction != null ? block.correction[j] : 0));
+                }
+                written++;
+            }
+            return written;
+        }
+
+        @Override
+        public long getSize() {
+            return size;
+        }
+    }
+}
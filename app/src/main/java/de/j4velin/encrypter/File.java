@@ -39,9 +39,15 @@ class File implements Parcelable {
      */
     final Uri uri;
     /**
-     * The original file size
+     * The original file size in bytes or -1, if unknown
      */
-    final int size;
+    final long size;
+    /**
+     * The folder of the original file, relative to the encrypted document tree and starting
+     * with the name of the tree, for example "Receipts/2016". Null, if the file has not been
+     * encrypted as part of a tree
+     */
+    final String path;
     /**
      * The id of the entry in the database or -1, if no such exists (yet)
      */
@@ -52,22 +58,29 @@ class File implements Parcelable {
     final boolean isEncrypted;
 
     protected File(final long id, final String name, final String mime, final Uri uri,
-                   final int size, final boolean isEncrypted) {
+                   final long size, final boolean isEncrypted) {
+        this(id, name, mime, uri, size, isEncrypted, null);
+    }
+
+    protected File(final long id, final String name, final String mime, final Uri uri,
+                   final long size, final boolean isEncrypted, final String path) {
         this.id = id;
         this.name = name;
         this.mime = mime;
         this.uri = uri;
         this.size = size;
         this.isEncrypted = isEncrypted;
+        this.path = path;
     }
 
     private File(final Parcel in) {
         name = in.readString();
         mime = in.readString();
         uri = Uri.parse(in.readString());
-        size = in.readInt();
+        size = in.readLong();
         id = in.readLong();
         isEncrypted = in.readByte() != 0;
+        path = in.readString();
     }
 
     @Override
@@ -75,9 +88,10 @@ class File implements Parcelable {
         parcel.writeString(name);
         parcel.writeString(mime);
         parcel.writeString(uri.toString());
-        parcel.writeInt(size);
+        parcel.writeLong(size);
         parcel.writeLong(id);
         parcel.writeByte((byte) (isEncrypted ? 1 : 0));
+        parcel.writeString(path);
     }
 
     public static final Creator<File> CREATOR = new Creator<File>() {
@@ -94,15 +108,12 @@ class File implements Parcelable {
 
     @Override
     public String toString() {
-        return id + "," + name + "," + mime + "," + formatSize(size) + "," + uri + "," +
+        return id + "," + (path != null ? path + "/" : "") + name + "," + mime + "," + formatSize(size) + "," + uri + "," +
                 (isEncrypted ? "enc" : "plain");
     }
 
-    public static String formatSize(int size) {
-        if (size < 1024) return size + " Bytes";
-        int kb = size / 1024;
-        if (kb < 1024) return kb + " KB";
-        else return (kb / 1024) + " MB";
+    public static String formatSize(long size) {
+        return Sizes.format(size);
     }
 
     @Override
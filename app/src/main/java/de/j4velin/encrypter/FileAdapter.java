@@ -18,6 +18,9 @@ package de.j4velin.encrypter;
 import android.app.AlertDialog;
 import android.content.Context;
 import android.content.DialogInterface;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v7.util.DiffUtil;
 import android.support.v7.widget.RecyclerView;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -26,12 +29,37 @@ import android.widget.ImageView;
 import android.widget.TextView;
 
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+/**
+ * Adapter for a list of files with stable ids: the database id of encrypted files, a negative id
+ * per object for files, which are not in the database.
+ * <p>
+ * Clicks and deletes find their file by the position of the view holder at the time of the
+ * action, never by a position stored when the view has been bound. Replacing the list computes
+ * the changes on a background thread, so only the changed rows are bound again.
+ */
 class FileAdapter extends RecyclerView.Adapter<FileAdapter.ViewHolder> {
 
+    private final static ExecutorService DIFF_EXECUTOR = Executors.newSingleThreadExecutor();
+
     private final Context context;
-    private final List<File> files;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private List<File> files;
+    /**
+     * The list, which replaces the shown one once the changes are computed, or null
+     */
+    private List<File> pendingFiles;
+    /**
+     * Incremented with every change, so that outdated computations are discarded
+     */
+    private int generation;
+    private final Map<File, Long> localIds = new IdentityHashMap<>();
+    private long nextLocalId = -2;
     private final DeleteListener deleteListenerImpl;
     private final ClickListener clickListenerImpl;
 
@@ -43,43 +71,6 @@ class FileAdapter extends RecyclerView.Adapter<FileAdapter.ViewHolder> {
         void click(final File file);
     }
 
-    private final View.OnClickListener deleteListener = new View.OnClickListener() {
-        @Override
-        public void onClick(final View view) {
-            final int position = (int) view.getTag();
-            final File file = files.get(position);
-            new AlertDialog.Builder(context)
-                    .setMessage(context.getString(R.string.ask_delete, file.name))
-                    .setNegativeButton(android.R.string.no,
-                            new DialogInterface.OnClickListener() {
-                                @Override
-                                public void onClick(final DialogInterface dialogInterface,
-                                                    int i) {
-                                    dialogInterface.dismiss();
-                                }
-                            }).setPositiveButton(android.R.string.yes,
-                    new DialogInterface.OnClickListener() {
-                        @Override
-                        public void onClick(final DialogInterface dialogInterface, int i) {
-                            dialogInterface.dismiss();
-                            if (deleteListenerImpl.delete(file)) {
-                                files.remove(position);
-                                notifyDataSetChanged(); // invalid all views to have the correct position put in the views
-                            }
-                        }
-                    }).create().show();
-        }
-    };
-
-    private final View.OnClickListener viewListener = new View.OnClickListener() {
-        @Override
-        public void onClick(final View view) {
-            int position = (int) view.getTag();
-            File selectedFile = files.get(position);
-            clickListenerImpl.click(selectedFile);
-        }
-    };
-
     FileAdapter(final Context context, final ClickListener clickListener, final DeleteListener deleteListener) {
         this(context, clickListener, deleteListener, new ArrayList<File>());
     }
@@ -89,33 +80,223 @@ class FileAdapter extends RecyclerView.Adapter<FileAdapter.ViewHolder> {
         this.clickListenerImpl = clickListener;
         this.deleteListenerImpl = deleteListener;
         this.files = files;
+        setHasStableIds(true);
+    }
+
+    void add(final File file) {
+        if (pendingFiles != null) {
+            // shown together with the other changes
+            pendingFiles.add(file);
+            computeUpdate();
+        } else {
+            files.add(file);
+            notifyItemInserted(files.size() - 1);
+        }
+    }
+
+    /**
+     * Replaces the list. The changes to the current list are computed in the background, the
+     * new list is shown once they are known.
+     *
+     * @param files the new list
+     */
+    void setFiles(final List<File> files) {
+        pendingFiles = files;
+        computeUpdate();
+    }
+
+    private void computeUpdate() {
+        final long[] oldIds = getIds(files);
+        final long[] newIds = getIds(pendingFiles);
+        final int expected = ++generation;
+        DIFF_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                final DiffUtil.DiffResult result = DiffUtil.calculateDiff(new DiffUtil.Callback() {
+                    @Override
+                    public int getOldListSize() {
+                        return oldIds.length;
+                    }
+
+                    @Override
+                    public int getNewListSize() {
+                        return newIds.length;
+                    }
+
+                    @Override
+                    public boolean areItemsTheSame(final int oldPosition, final int newPosition) {
+                        return oldIds[oldPosition] == newIds[newPosition];
+                    }
+
+                    @Override
+                    public boolean areContentsTheSame(final int oldPosition,
+                                                      final int newPosition) {
+                        // files are never changed, only added or removed
+                        return true;
+                    }
+                }, false);
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (expected != generation) {
+                            return;
+                        }
+                        files = pendingFiles;
+                        pendingFiles = null;
+                        if (files instanceof Catalog) {
+                            final Catalog catalog = (Catalog) files;
+                            catalog.setPageListener(new Catalog.PageListener() {
+                                @Override
+                                public void pageLoaded(final int index, final int count) {
+                                    if (files == catalog) {
+                                        notifyItemRangeChanged(index, count);
+                                    }
+                                }
+                            });
+                        }
+                        result.dispatchUpdatesTo(FileAdapter.this);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * @return the ids of the given files, without reading the rows of a {@link Catalog}
+     */
+    private long[] getIds(final List<File> list) {
+        if (list instanceof Catalog) {
+            return ((Catalog) list).getIds();
+        }
+        long[] ids = new long[list.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = getId(list.get(i));
+        }
+        return ids;
+    }
+
+    private long getId(final File file) {
+        if (file.id >= 0) {
+            return file.id;
+        }
+        Long id = localIds.get(file);
+        if (id == null) {
+            id = nextLocalId--;
+            localIds.put(file, id);
+        }
+        return id;
+    }
+
+    /**
+     * @param list the list to search
+     * @param id   the id of a file
+     * @return the position of the file in the list or -1
+     */
+    private int indexOf(final List<File> list, final long id) {
+        long[] ids = getIds(list);
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] == id) {
+                return i;
+            }
+        }
+        return -1;
     }
 
-    void add(File file) {
-        files.add(file);
-        notifyItemInserted(files.size());
+    /**
+     * Removes a file, which has been deleted
+     *
+     * @param holder the view holder of the file
+     * @param file   the file
+     */
+    private void remove(final ViewHolder holder, final File file) {
+        long id = getId(file);
+        int position = holder.getAdapterPosition();
+        if (position == RecyclerView.NO_POSITION || getItemId(position) != id) {
+            // the list has changed while the user has been asked
+            position = indexOf(files, id);
+        }
+        if (position >= 0) {
+            files.remove(position);
+            notifyItemRemoved(position);
+        }
+        if (pendingFiles != null) {
+            int pendingPosition = indexOf(pendingFiles, id);
+            if (pendingPosition >= 0) {
+                pendingFiles.remove(pendingPosition);
+            }
+            computeUpdate();
+        }
+        localIds.remove(file);
     }
 
     int getSize() {
         return files.size();
     }
 
+    @Override
+    public long getItemId(final int position) {
+        return getId(files.get(position));
+    }
+
     @Override
     public ViewHolder onCreateViewHolder(final ViewGroup parent, int viewType) {
         View v = LayoutInflater.from(parent.getContext())
                 .inflate(R.layout.listitem, parent, false);
-        v.findViewById(R.id.delete).setOnClickListener(deleteListener);
-        v.setOnClickListener(viewListener);
-        return new ViewHolder(v);
+        final ViewHolder holder = new ViewHolder(v);
+        v.findViewById(R.id.delete).setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(final View view) {
+                int position = holder.getAdapterPosition();
+                if (position == RecyclerView.NO_POSITION) {
+                    return;
+                }
+                final File file = files.get(position);
+                if (Catalog.isPlaceholder(file)) {
+                    return;
+                }
+                new AlertDialog.Builder(context)
+                        .setMessage(context.getString(R.string.ask_delete, file.name))
+                        .setNegativeButton(android.R.string.no,
+                                new DialogInterface.OnClickListener() {
+                                    @Override
+                                    public void onClick(final DialogInterface dialogInterface,
+                                                        int i) {
+                                        dialogInterface.dismiss();
+                                    }
+                                }).setPositiveButton(android.R.string.yes,
+                        new DialogInterface.OnClickListener() {
+                            @Override
+                            public void onClick(final DialogInterface dialogInterface, int i) {
+                                dialogInterface.dismiss();
+                                if (deleteListenerImpl.delete(file)) {
+                                    remove(holder, file);
+                                }
+                            }
+                        }).create().show();
+            }
+        });
+        v.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(final View view) {
+                int position = holder.getAdapterPosition();
+                if (position != RecyclerView.NO_POSITION &&
+                        !Catalog.isPlaceholder(files.get(position))) {
+                    clickListenerImpl.click(files.get(position));
+                }
+            }
+        });
+        return holder;
     }
 
     @Override
     public void onBindViewHolder(final ViewHolder holder, int position) {
         File f = files.get(position);
         holder.name.setText(f.name);
-        holder.size.setText(File.formatSize(f.size));
+        // a row of a catalog, which is still being read, is bound again once it is available
+        holder.size.setText(Catalog.isPlaceholder(f) ? "" : File.formatSize(f.size));
         if (f.isEncrypted) {
             holder.mime.setImageResource(R.drawable.ic_lock);
+            Thumbnails.show(context, f, holder.mime);
         } else {
             if (f.mime.contains("/")) {
                 holder.mime.setContentDescription(f.mime.substring(0, f.mime.indexOf("/")));
@@ -134,8 +315,6 @@ class FileAdapter extends RecyclerView.Adapter<FileAdapter.ViewHolder> {
             }
             holder.mime.setImageResource(icon);
         }
-        holder.delete.setTag(position);
-        holder.card.setTag(position);
     }
 
     @Override
@@ -146,16 +325,12 @@ class FileAdapter extends RecyclerView.Adapter<FileAdapter.ViewHolder> {
     public class ViewHolder extends RecyclerView.ViewHolder {
         private final ImageView mime;
         private final TextView name, size;
-        private final View delete;
-        private final View card;
 
         public ViewHolder(final View itemView) {
             super(itemView);
-            card = itemView;
             mime = (ImageView) itemView.findViewById(R.id.mime);
             name = (TextView) itemView.findViewById(R.id.name);
             size = (TextView) itemView.findViewById(R.id.size);
-            delete = itemView.findViewById(R.id.delete);
         }
     }
 }
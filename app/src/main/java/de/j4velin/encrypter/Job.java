@@ -0,0 +1,123 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter;
+
+import javax.crypto.Cipher;
+
+/**
+ * An encryption or decryption job of the {@link CryptoService}.
+ * <p>
+ * Jobs are persisted in the database until they are done. Only the key as wrapped by the
+ * Android Key Store is persisted: the unwrapped key is only kept in memory, so jobs interrupted
+ * by the death of the process need a new authentication before they can continue.
+ */
+class Job {
+
+    /**
+     * The id of the entry in the database or -1, if no such exists (yet)
+     */
+    long id;
+    /**
+     * True to encrypt the source file, false to decrypt it
+     */
+    final boolean encrypt;
+    /**
+     * The input: the plaintext file when encrypting, the encrypted file when decrypting
+     */
+    final File source;
+    /**
+     * The output: the encrypted file when encrypting, the plaintext file when decrypting. If the
+     * content has been encrypted before, this is replaced by an entry referencing the existing
+     * encrypted file once the job is done
+     */
+    File target;
+    /**
+     * The position in the plaintext to start decrypting at
+     */
+    final long offset;
+    /**
+     * The iv and the master key, as wrapped by the Android Key Store. For legacy files, the
+     * wrapped key is null and the iv is the one of the file content
+     */
+    final byte[] keyIv, wrappedKey;
+
+    /**
+     * The unwrapped master key, only available once the user has authenticated
+     */
+    CryptoUtil.MasterKey masterKey;
+    /**
+     * The authenticated cipher to decrypt a legacy file with
+     */
+    Cipher legacyCipher;
+    /**
+     * The number of plaintext bytes, which have been durably written by an earlier, interrupted
+     * run of this job and which don't have to be processed again
+     */
+    long checkpoint;
+    /**
+     * The size and the time of the last modification of the source of an encryption job, when
+     * its checkpoint has been stored, or null, if unknown. The chunks after the checkpoint are
+     * sealed again with the same key and nonces, so the checkpoint is only continued if the
+     * source is still the same
+     */
+    String sourceVersion;
+    /**
+     * The number of bytes processed so far, including the checkpoint
+     */
+    volatile long processed;
+    /**
+     * True, if the user cancelled this job
+     */
+    volatile boolean cancelled;
+    /**
+     * The engine currently running this job, if any
+     */
+    volatile ChunkEngine engine;
+
+    Job(final long id, final boolean encrypt, final File source, final File target,
+        final long offset, final byte[] keyIv, final byte[] wrappedKey) {
+        this.id = id;
+        this.encrypt = encrypt;
+        this.source = source;
+        this.target = target;
+        this.offset = offset;
+        this.keyIv = keyIv;
+        this.wrappedKey = wrappedKey;
+    }
+
+    /**
+     * @return true, if the key to run this job is available
+     */
+    boolean isAuthenticated() {
+        return masterKey != null || legacyCipher != null;
+    }
+
+    /**
+     * Cancels this job. A running job stops before it writes its next chunk
+     */
+    void cancel() {
+        cancelled = true;
+        ChunkEngine running = engine;
+        if (running != null) {
+            running.cancel();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return id + "," + (encrypt ? "encrypt " : "decrypt ") + source + " -> " + target;
+    }
+}
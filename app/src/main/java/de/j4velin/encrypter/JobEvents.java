@@ -0,0 +1,233 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * In-process stream of the events of the {@link CryptoService} jobs.
+ * <p>
+ * Events are passed to the listeners as objects on the main thread, nothing is parceled or sent
+ * through the system. The stream keeps the last {@link #HISTORY} completed jobs: a listener,
+ * which has been unregistered while paused, gets the events it missed when it registers again.
+ * <p>
+ * Events published in quick succession are delivered together in one pass over the listeners.
+ * Of the progress, only the latest state is kept and delivered.
+ */
+class JobEvents {
+
+    private final static int HISTORY = 512;
+
+    private final static Handler HANDLER = new Handler(Looper.getMainLooper());
+    private final static Object LOCK = new Object();
+    /**
+     * The most recently completed jobs, guarded by {@link #LOCK}
+     */
+    private final static ArrayDeque<Completed> completed = new ArrayDeque<>(HISTORY);
+    /**
+     * Only accessed on the main thread
+     */
+    private final static List<Listener> listeners = new ArrayList<>();
+    private static long sequence;
+    private static Progress progress = new Progress(0, 0, 0);
+    private static boolean dispatchPending;
+
+    private final static Runnable DISPATCH = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (LOCK) {
+                dispatchPending = false;
+            }
+            for (Listener listener : new ArrayList<>(listeners)) {
+                if (listeners.contains(listener)) {
+                    deliver(listener);
+                }
+            }
+        }
+    };
+
+    private JobEvents() {
+    }
+
+    /**
+     * A job, which has completed successfully
+     */
+    static class Completed {
+        final long sequence;
+        final boolean encrypt;
+        final File source, target;
+
+        private Completed(final long sequence, final boolean encrypt, final File source,
+                          final File target) {
+            this.sequence = sequence;
+            this.encrypt = encrypt;
+            this.source = source;
+            this.target = target;
+        }
+    }
+
+    /**
+     * The progress of all running jobs
+     */
+    static class Progress {
+        final int running;
+        final long processed, size;
+
+        private Progress(final int running, final long processed, final long size) {
+            this.running = running;
+            this.processed = processed;
+            this.size = size;
+        }
+
+        /**
+         * @return the progress in percent or -1, if the size of the jobs is unknown
+         */
+        int percent() {
+            return size > 0 ? (int) (Math.min(processed, size) * 100 / size) : -1;
+        }
+    }
+
+    /**
+     * Receives the events on the main thread. A listener remembers which events it has seen,
+     * so the same object has to be registered again to catch up after a pause.
+     */
+    abstract static class Listener {
+        private long seen;
+        private Progress seenProgress;
+
+        Listener() {
+            synchronized (LOCK) {
+                seen = sequence;
+            }
+        }
+
+        /**
+         * A job has completed
+         *
+         * @param event the event
+         */
+        void onCompleted(final Completed event) {
+        }
+
+        /**
+         * The progress of the running jobs has changed
+         *
+         * @param progress the current progress
+         */
+        void onProgress(final Progress progress) {
+        }
+
+        /**
+         * More jobs have completed while this listener was not registered, than the stream
+         * keeps. Their events are skipped.
+         */
+        void onEventsLost() {
+        }
+    }
+
+    /**
+     * Registers a listener and delivers the events it has missed. Must be called on the main
+     * thread
+     *
+     * @param listener the listener
+     */
+    static void register(final Listener listener) {
+        if (!listeners.contains(listener)) {
+            listeners.add(listener);
+        }
+        deliver(listener);
+    }
+
+    /**
+     * Must be called on the main thread
+     *
+     * @param listener the listener to remove
+     */
+    static void unregister(final Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Publishes a successfully completed job. May be called from any thread
+     *
+     * @param job the job
+     */
+    static void publishCompleted(final Job job) {
+        synchronized (LOCK) {
+            if (completed.size() == HISTORY) {
+                completed.removeFirst();
+            }
+            completed.addLast(new Completed(++sequence, job.encrypt, job.source, job.target));
+            scheduleDispatch();
+        }
+    }
+
+    /**
+     * Publishes the progress of all running jobs. May be called from any thread
+     *
+     * @param running   the number of running jobs
+     * @param processed the number of bytes processed
+     * @param size      the number of bytes to process or 0, if unknown
+     */
+    static void publishProgress(final int running, final long processed, final long size) {
+        synchronized (LOCK) {
+            progress = new Progress(running, processed, size);
+            scheduleDispatch();
+        }
+    }
+
+    private static void scheduleDispatch() {
+        if (!dispatchPending) {
+            dispatchPending = true;
+            HANDLER.post(DISPATCH);
+        }
+    }
+
+    /**
+     * Delivers all events the listener has not seen yet
+     */
+    private static void deliver(final Listener listener) {
+        List<Completed> missed = new ArrayList<>();
+        Progress current;
+        boolean lost;
+        synchronized (LOCK) {
+            current = progress;
+            Completed oldest = completed.peekFirst();
+            lost = oldest != null && oldest.sequence > listener.seen + 1;
+            for (Completed event : completed) {
+                if (event.sequence > listener.seen) {
+                    missed.add(event);
+                }
+            }
+            listener.seen = sequence;
+        }
+        if (lost) {
+            listener.onEventsLost();
+        }
+        for (Completed event : missed) {
+            listener.onCompleted(event);
+        }
+        if (current != listener.seenProgress) {
+            listener.seenProgress = current;
+            listener.onProgress(current);
+        }
+    }
+}
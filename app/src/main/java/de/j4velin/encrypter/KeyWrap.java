@@ -0,0 +1,88 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter;
+
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * Stores a key in a file, wrapped with another key. The file contains the length of the IV, the
+ * IV and the wrapped key.
+ * <p>
+ * Contains no Android classes, so it is tested on the plain JVM by the benchmark module.
+ */
+class KeyWrap {
+
+    private final static String GCM = "AES/GCM/NoPadding";
+    private final static int GCM_TAG_BITS = 128;
+
+    private KeyWrap() {
+    }
+
+    /**
+     * Wraps the given key and replaces the file with it
+     *
+     * @param file        the file
+     * @param wrappingKey the wrapping key, which chooses its own IV
+     * @param key         the key to wrap
+     */
+    static void write(final java.io.File file, final SecretKey wrappingKey, final byte[] key)
+            throws GeneralSecurityException, IOException {
+        Cipher c = Cipher.getInstance(GCM);
+        c.init(Cipher.ENCRYPT_MODE, wrappingKey);
+        byte[] wrapped = c.doFinal(key);
+        java.io.File tmp = new java.io.File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(c.getIV().length);
+            out.write(c.getIV());
+            out.write(wrapped);
+            out.getFD().sync();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Can not write " + file);
+        }
+    }
+
+    /**
+     * @param file        a file written by {@link #write(java.io.File, SecretKey, byte[])}
+     * @param wrappingKey the wrapping key
+     * @return the unwrapped key
+     * @throws GeneralSecurityException if the file has been wrapped with another key or has
+     *                                  been modified
+     */
+    static byte[] read(final java.io.File file, final SecretKey wrappingKey)
+            throws GeneralSecurityException, IOException {
+        byte[] wrapped = new byte[(int) file.length()];
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            in.readFully(wrapped);
+        }
+        int ivLength = wrapped.length > 0 ? wrapped[0] & 0xff : 0;
+        if (ivLength == 0 || 1 + ivLength > wrapped.length) {
+            throw new IOException("Invalid key file " + file);
+        }
+        Cipher c = Cipher.getInstance(GCM);
+        c.init(Cipher.DECRYPT_MODE, wrappingKey,
+                new GCMParameterSpec(GCM_TAG_BITS, wrapped, 1, ivLength));
+        return c.doFinal(wrapped, 1 + ivLength, wrapped.length - 1 - ivLength);
+    }
+}
@@ -18,16 +18,17 @@ package de.j4velin.encrypter;
 import android.Manifest;
 import android.app.AlertDialog;
 import android.app.KeyguardManager;
-import android.content.BroadcastReceiver;
-import android.content.Context;
+import android.content.ClipData;
 import android.content.DialogInterface;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.pm.PackageManager;
 import android.database.Cursor;
 import android.hardware.fingerprint.FingerprintManager;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.Process;
+import android.os.SystemClock;
 import android.provider.OpenableColumns;
 import android.provider.Settings;
 import android.support.annotation.NonNull;
@@ -36,26 +37,40 @@ import android.support.design.widget.FloatingActionButton;
 import android.support.design.widget.Snackbar;
 import android.support.v4.app.ActivityCompat;
 import android.support.v7.app.AppCompatActivity;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
+import android.view.ViewTreeObserver;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
 
 public class MainActivity extends AppCompatActivity {
 
     public final static String TAG = "Encrypter";
 
-    public final static String CRYPTO_COMPLETE_ACTION = "crypto_complete";
-    public final static String EXTRA_RESULT_FILE = "result_file";
-    public final static String EXTRA_ORIGINAL_FILE = "original_file";
-
     private final static int REQUEST_INPUT = 1;
     private final static int REQUEST_PERMISSION = 2;
+    private final static int REQUEST_TREE = 3;
 
     private CoordinatorLayout coordinatorLayout;
     private View plaintextHeadline, plaintextView;
 
+    /**
+     * True once the first activity of the process has been created
+     */
+    private static boolean launched;
+    /**
+     * The start of this launch in {@link SystemClock#elapsedRealtime()}: the start of the process
+     * for a cold start, if known, otherwise the creation of this activity
+     */
+    private long started;
+    private boolean coldStart;
+    private boolean resumed;
+
     private enum Requirement {
         FINGERPRINT_PERMISSION,
         FINGERPRINT_SENSOR,
@@ -63,26 +78,42 @@ public class MainActivity extends AppCompatActivity {
         DEVICE_SECURE
     }
 
-    private final BroadcastReceiver cryptoCompleteReceiver = new BroadcastReceiver() {
+    private final JobEvents.Listener jobListener = new JobEvents.Listener() {
         @Override
-        public void onReceive(final Context context, final Intent intent) {
-            if (intent.getAction().equals(CRYPTO_COMPLETE_ACTION)) {
-                final File resultFile = intent.getParcelableExtra(EXTRA_RESULT_FILE);
-                if (!resultFile.isEncrypted) {
-                    Snackbar.make(coordinatorLayout,
-                            getString(R.string.file_decrypted, resultFile.name),
-                            Snackbar.LENGTH_LONG)
-                            .setActionTextColor(getResources().getColor(R.color.colorPrimary, null))
-                            .setAction(R.string.open_file, new View.OnClickListener() {
-                                @Override
-                                public void onClick(final View view) {
-                                    Intent intent = new Intent(Intent.ACTION_VIEW);
-                                    intent.setDataAndType(resultFile.uri, resultFile.mime);
-                                    intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
-                                    startActivity(intent);
-                                }
-                            }).show();
+        void onCompleted(final JobEvents.Completed event) {
+            if (!event.encrypt) {
+                final File resultFile = event.target;
+                Snackbar.make(coordinatorLayout,
+                        getString(R.string.file_decrypted, resultFile.name),
+                        Snackbar.LENGTH_LONG)
+                        .setActionTextColor(getResources().getColor(R.color.colorPrimary, null))
+                        .setAction(R.string.open_file, new View.OnClickListener() {
+                            @Override
+                            public void onClick(final View view) {
+                                Intent intent = new Intent(Intent.ACTION_VIEW);
+                                intent.setDataAndType(resultFile.uri, resultFile.mime);
+                                intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+                                startActivity(intent);
+                            }
+                        }).show();
+            }
+        }
+
+        @Override
+        void onProgress(final JobEvents.Progress progress) {
+            if (getSupportActionBar() == null) {
+                return;
+            }
+            if (progress.running == 0) {
+                getSupportActionBar().setSubtitle(null);
+            } else {
+                String subtitle = getResources()
+                        .getQuantityString(R.plurals.jobs_running, progress.running,
+                                progress.running);
+                if (progress.percent() >= 0) {
+                    subtitle = getString(R.string.jobs_progress, subtitle, progress.percent());
                 }
+                getSupportActionBar().setSubtitle(subtitle);
             }
         }
     };
@@ -117,86 +148,129 @@ public class MainActivity extends AppCompatActivity {
 
     private void init() {
         Requirement error = getMissingRequirement();
-        String exception = null;
         if (error == null) {
-            try {
-                if (CipherUtil.init()) {
-                    new AlertDialog.Builder(this).setTitle(R.string.key_generated)
-                            .setMessage(R.string.new_key_warning)
-                            .setPositiveButton(android.R.string.ok,
-                                    new DialogInterface.OnClickListener() {
-                                        @Override
-                                        public void onClick(final DialogInterface dialogInterface,
-                                                            int i) {
-                                            dialogInterface.dismiss();
-                                        }
-                                    }).create().show();
-                }
-            } catch (GeneralSecurityException | IOException e) {
-                e.printStackTrace();
-                exception = e.getMessage();
-            }
-        } else if (error.equals(Requirement.FINGERPRINT_PERMISSION)) {
-            // ignore
-            return;
-        }
-        if (error != null || exception != null) {
-            AlertDialog.Builder builder = new AlertDialog.Builder(this);
-            if (exception != null) {
-                builder.setMessage(getString(R.string.error_load_key, exception));
-            } else {
-                switch (error) {
-                    case FINGERPRINT_SENSOR:
-                        builder.setMessage(R.string.error_no_fingerprint_hardware);
-                        break;
-                    case FINGERPRINT_SETUP:
-                        builder.setMessage(R.string.error_no_fingerprints);
-                        builder.setPositiveButton(R.string.register_finger,
-                                new DialogInterface.OnClickListener() {
-                                    @Override
-                                    public void onClick(final DialogInterface dialogInterface,
-                                                        int i) {
-                                        startActivity(
-                                                new Intent(Settings.ACTION_SECURITY_SETTINGS));
-                                        dialogInterface.cancel();
-                                    }
-                                });
-                        break;
-                    case DEVICE_SECURE:
-                        builder.setMessage(R.string.error_no_lockscreen);
-                        builder.setPositiveButton(R.string.setup_lockscreen,
-                                new DialogInterface.OnClickListener() {
-                                    @Override
-                                    public void onClick(final DialogInterface dialogInterface,
-                                                        int i) {
-                                        startActivity(
-                                                new Intent(Settings.ACTION_SECURITY_SETTINGS));
-                                        dialogInterface.cancel();
-                                    }
-                                });
-                        break;
+            CipherUtil.init(new CipherUtil.InitCallback() {
+                @Override
+                public void keyReady(final boolean generated) {
+                    if (coldStart) {
+                        Metrics.STARTUP_KEY_READY.record(SystemClock.elapsedRealtime() - started);
+                    }
+                    if (isDestroyed()) {
+                        return;
+                    }
+                    if (generated) {
+                        new AlertDialog.Builder(MainActivity.this).setTitle(R.string.key_generated)
+                                .setMessage(R.string.new_key_warning)
+                                .setPositiveButton(android.R.string.ok,
+                                        new DialogInterface.OnClickListener() {
+                                            @Override
+                                            public void onClick(
+                                                    final DialogInterface dialogInterface, int i) {
+                                                dialogInterface.dismiss();
+                                            }
+                                        }).create().show();
+                    }
+                    if (resumed) {
+                        // skipped by onResume, as the key was not ready yet
+                        checkInterruptedJobs();
+                    }
                 }
-            }
-            builder.setNegativeButton(android.R.string.cancel,
-                    new DialogInterface.OnClickListener() {
-                        @Override
-                        public void onClick(final DialogInterface dialogInterface, int i) {
-                            dialogInterface.cancel();
-                        }
-                    }).setOnCancelListener(new DialogInterface.OnCancelListener() {
+
                 @Override
-                public void onCancel(final DialogInterface dialogInterface) {
-                    dialogInterface.dismiss();
-                    finish();
+                public void keyFailed(final Exception e) {
+                    if (!isDestroyed()) {
+                        showError(null, e.getMessage());
+                    }
                 }
-            }).create().show();
+            });
+        } else if (!error.equals(Requirement.FINGERPRINT_PERMISSION)) {
+            showError(error, null);
         }
     }
 
+    /**
+     * Shows why the app can not be used and closes it, once the error is dismissed
+     *
+     * @param error     the missing requirement or null
+     * @param exception the message of the exception, if the key could not be loaded
+     */
+    private void showError(final Requirement error, final String exception) {
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        if (exception != null) {
+            builder.setMessage(getString(R.string.error_load_key, exception));
+        } else {
+            switch (error) {
+                case FINGERPRINT_SENSOR:
+                    builder.setMessage(R.string.error_no_fingerprint_hardware);
+                    break;
+                case FINGERPRINT_SETUP:
+                    builder.setMessage(R.string.error_no_fingerprints);
+                    builder.setPositiveButton(R.string.register_finger,
+                            new DialogInterface.OnClickListener() {
+                                @Override
+                                public void onClick(final DialogInterface dialogInterface,
+                                                    int i) {
+                                    startActivity(
+                                            new Intent(Settings.ACTION_SECURITY_SETTINGS));
+                                    dialogInterface.cancel();
+                                }
+                            });
+                    break;
+                case DEVICE_SECURE:
+                    builder.setMessage(R.string.error_no_lockscreen);
+                    builder.setPositiveButton(R.string.setup_lockscreen,
+                            new DialogInterface.OnClickListener() {
+                                @Override
+                                public void onClick(final DialogInterface dialogInterface,
+                                                    int i) {
+                                    startActivity(
+                                            new Intent(Settings.ACTION_SECURITY_SETTINGS));
+                                    dialogInterface.cancel();
+                                }
+                            });
+                    break;
+            }
+        }
+        builder.setNegativeButton(android.R.string.cancel,
+                new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(final DialogInterface dialogInterface, int i) {
+                        dialogInterface.cancel();
+                    }
+                }).setOnCancelListener(new DialogInterface.OnCancelListener() {
+            @Override
+            public void onCancel(final DialogInterface dialogInterface) {
+                dialogInterface.dismiss();
+                finish();
+            }
+        }).create().show();
+    }
+
     @Override
     protected void onCreate(final Bundle savedInstanceState) {
+        // runs in parallel to inflating the layout
+        CipherUtil.warmUp();
+        coldStart = !launched;
+        launched = true;
+        started = SystemClock.elapsedRealtime();
+        if (coldStart && Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            started = Process.getStartElapsedRealtime();
+        }
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
+        if (coldStart) {
+            final View content = getWindow().getDecorView();
+            content.getViewTreeObserver()
+                    .addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+                        @Override
+                        public boolean onPreDraw() {
+                            content.getViewTreeObserver().removeOnPreDrawListener(this);
+                            Metrics.STARTUP_FIRST_FRAME
+                                    .record(SystemClock.elapsedRealtime() - started);
+                            return true;
+                        }
+                    });
+        }
         coordinatorLayout = (CoordinatorLayout) findViewById(R.id.coordinatorLayout);
         FloatingActionButton fab = (FloatingActionButton) findViewById(R.id.fab);
         assert fab != null;
@@ -206,6 +280,7 @@ public class MainActivity extends AppCompatActivity {
                 Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
                 intent.addCategory(Intent.CATEGORY_OPENABLE);
                 intent.setType("*/*");
+                intent.putExtra(Intent.EXTRA_ALLOW_MULTIPLE, true);
                 startActivityForResult(intent, REQUEST_INPUT);
             }
         });
@@ -213,18 +288,73 @@ public class MainActivity extends AppCompatActivity {
         plaintextView = findViewById(R.id.plain);
         showPlaintextLayout(false);
         init();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                if (BlobStore.migrate(getApplicationContext())) {
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            EncryptedFragment fragment = (EncryptedFragment)
+                                    getSupportFragmentManager().findFragmentById(R.id.encrypted);
+                            if (fragment != null && !isDestroyed()) {
+                                fragment.reload();
+                            }
+                        }
+                    });
+                }
+            }
+        }, "BlobStore migration").start();
+    }
+
+    /**
+     * Looks up the jobs, which have been interrupted by the death of the process, in the
+     * background and asks the user to resume or discard them
+     */
+    private void checkInterruptedJobs() {
+        CryptoService.getInterruptedJobs(this, new CryptoService.InterruptedJobsCallback() {
+            @Override
+            public void found(final List<Job> jobs) {
+                if (!jobs.isEmpty() && resumed && !isDestroyed()) {
+                    askResume(jobs);
+                }
+            }
+        });
+    }
+
+    private void askResume(final List<Job> jobs) {
+        new AlertDialog.Builder(this).setTitle(getResources()
+                .getQuantityString(R.plurals.jobs_interrupted, jobs.size(), jobs.size()))
+                .setPositiveButton(R.string.resume, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(final DialogInterface dialogInterface, int i) {
+                        dialogInterface.dismiss();
+                        CryptoUtil.resume(MainActivity.this, jobs);
+                    }
+                }).setNegativeButton(R.string.discard, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(final DialogInterface dialogInterface, int i) {
+                        dialogInterface.dismiss();
+                        CryptoService.discard(MainActivity.this, jobs);
+                    }
+                }).create().show();
     }
 
     @Override
     protected void onResume() {
         super.onResume();
-        registerReceiver(cryptoCompleteReceiver, new IntentFilter(MainActivity.CRYPTO_COMPLETE_ACTION));
+        resumed = true;
+        JobEvents.register(jobListener);
+        if (CipherUtil.isInitialized()) {
+            checkInterruptedJobs();
+        }
     }
 
     @Override
     protected void onPause() {
         super.onPause();
-        unregisterReceiver(cryptoCompleteReceiver);
+        resumed = false;
+        JobEvents.unregister(jobListener);
     }
 
     @Override
@@ -235,24 +365,72 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
+    /**
+     * Queries name, type and size of a file selected as input
+     *
+     * @param uri the uri of the file
+     * @return the plaintext file
+     */
+    private File getInputFile(final Uri uri) {
+        String inputName = null;
+        long inputSize = -1;
+        String inputType = getContentResolver().getType(uri);
+        try (Cursor cursor = getContentResolver().query(uri, null, null, null, null, null)) {
+            if (cursor != null && cursor.moveToFirst()) {
+                inputName = cursor.getString(cursor.getColumnIndex(OpenableColumns.DISPLAY_NAME));
+                int sizeIndex = cursor.getColumnIndex(OpenableColumns.SIZE);
+                if (!cursor.isNull(sizeIndex)) {
+                    inputSize = cursor.getLong(sizeIndex);
+                }
+            }
+        }
+        return new File(-1, inputName, inputType, uri, inputSize, false);
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (level >= TRIM_MEMORY_UI_HIDDEN) {
+            // decrypted previews should not stay in memory while the app is not used
+            Thumbnails.clearCache();
+        }
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(final Menu menu) {
+        getMenuInflater().inflate(R.menu.main, menu);
+        menu.findItem(R.id.action_pack).setChecked(PackStore.isEnabled(this));
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(final MenuItem item) {
+        if (item.getItemId() == R.id.action_diagnostics) {
+            startActivity(new Intent(this, DiagnosticsActivity.class));
+            return true;
+        } else if (item.getItemId() == R.id.action_encrypt_folder) {
+            startActivityForResult(new Intent(Intent.ACTION_OPEN_DOCUMENT_TREE), REQUEST_TREE);
+            return true;
+        } else if (item.getItemId() == R.id.action_pack) {
+            item.setChecked(!item.isChecked());
+            PackStore.setEnabled(this, item.isChecked());
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
     @Override
     protected void onActivityResult(int requestCode, int resultCode, final Intent data) {
         if (requestCode == REQUEST_INPUT && resultCode == RESULT_OK && data != null) {
-            Uri uri = data.getData();
-            String inputName = null;
-            int inputSize = -1;
-            String inputType = getContentResolver().getType(uri);
-            try (Cursor cursor = getContentResolver().query(uri, null, null, null, null, null)) {
-                if (cursor != null && cursor.moveToFirst()) {
-                    inputName =
-                            cursor.getString(cursor.getColumnIndex(OpenableColumns.DISPLAY_NAME));
-                    int sizeIndex = cursor.getColumnIndex(OpenableColumns.SIZE);
-                    if (!cursor.isNull(sizeIndex)) {
-                        inputSize = cursor.getInt(sizeIndex);
-                    }
+            List<File> input = new ArrayList<>();
+            ClipData clipData = data.getClipData();
+            if (clipData != null) {
+                for (int i = 0; i < clipData.getItemCount(); i++) {
+                    input.add(getInputFile(clipData.getItemAt(i).getUri()));
                 }
+            } else {
+                input.add(getInputFile(data.getData()));
             }
-            File input = new File(-1, inputName, inputType, uri, inputSize, false);
             try {
                 CryptoUtil.encrypt(MainActivity.this, input);
             } catch (GeneralSecurityException e) {
@@ -265,6 +443,16 @@ public class MainActivity extends AppCompatActivity {
                 Snackbar.make(coordinatorLayout, getString(R.string.error_io, e.getMessage()),
                         Snackbar.LENGTH_LONG).show();
             }
+        } else if (requestCode == REQUEST_TREE && resultCode == RESULT_OK && data != null) {
+            try {
+                CryptoUtil.encryptTree(MainActivity.this, data.getData());
+            } catch (GeneralSecurityException e) {
+                Snackbar.make(coordinatorLayout, getString(R.string.error_security, e.getMessage()),
+                        Snackbar.LENGTH_LONG).show();
+            } catch (IOException e) {
+                Snackbar.make(coordinatorLayout, getString(R.string.error_io, e.getMessage()),
+                        Snackbar.LENGTH_LONG).show();
+            }
         } else
 
         {
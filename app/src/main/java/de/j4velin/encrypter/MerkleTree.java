@@ -0,0 +1,487 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hash tree over the blocks of an encrypted file, to detect corruption without the key.
+ * <p>
+ * The leaves are the hashes of the {@link #BLOCK_SIZE} blocks of the encrypted file, every inner
+ * node is the hash of its two children. A node without a sibling is moved up unchanged. Leaves
+ * and inner nodes are hashed with different prefixes, so neither can be passed off as the other.
+ * <p>
+ * The tree is stored in a file next to the encrypted file, level by level starting with the
+ * leaves, while its root is kept in the database. Any range of the encrypted file can therefore
+ * be checked by hashing the blocks in the range and reading one sibling per level. Checking the
+ * complete file hashes the blocks on all cores in parallel.
+ * <p>
+ * New files get their tree from a {@link Builder}, which hashes the blocks while they are
+ * written, so the file is not read again.
+ */
+class MerkleTree implements Closeable {
+
+    final static int BLOCK_SIZE = 64 * 1024;
+    final static int HASH_LENGTH = 32;
+
+    private final static String ALGORITHM = "SHA-256";
+    private final static String EXTENSION = ".merkle";
+    private final static byte PREFIX_LEAF = 0;
+    private final static byte PREFIX_NODE = 1;
+
+    private final FileChannel tree;
+    private final byte[] root;
+    private final int leaves;
+    /**
+     * The index of the first node of every level within the tree file
+     */
+    private final long[] levelOffsets;
+    private final int[] levelSizes;
+    private final MessageDigest digest;
+    private final ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+    private final ByteBuffer sibling = ByteBuffer.allocate(HASH_LENGTH);
+    /**
+     * The leaves, which have been checked already
+     */
+    private final BitSet verified = new BitSet();
+
+    private MerkleTree(final FileChannel tree, final byte[] root, final int leaves) throws
+            IOException {
+        this.tree = tree;
+        this.root = root;
+        this.leaves = leaves;
+        levelSizes = getLevelSizes(leaves);
+        levelOffsets = new long[levelSizes.length];
+        for (int level = 1; level < levelSizes.length; level++) {
+            levelOffsets[level] = levelOffsets[level - 1] + levelSizes[level - 1];
+        }
+        digest = newDigest();
+    }
+
+    /**
+     * @param data the encrypted file
+     * @return the file the tree of the given file is stored in
+     */
+    static java.io.File getTreeFile(final java.io.File data) {
+        return new java.io.File(data.getPath() + EXTENSION);
+    }
+
+    /**
+     * Builds the tree of the given file and stores it next to it
+     *
+     * @param data the encrypted file
+     * @return the root hash, which has to be stored to check the file later
+     */
+    static byte[] build(final java.io.File data) throws IOException {
+        try (FileChannel channel = new FileInputStream(data).getChannel()) {
+            return store(data, hashLevels(hashLeaves(channel)));
+        }
+    }
+
+    /**
+     * Stores the tree of the given file next to it
+     *
+     * @param data   the encrypted file
+     * @param levels all levels of the tree
+     * @return the root hash
+     */
+    private static byte[] store(final java.io.File data, final byte[][] levels) throws
+            IOException {
+        // written to a temporary file first, so that an interrupted write leaves no broken tree
+        java.io.File file = getTreeFile(data);
+        java.io.File temp = new java.io.File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            for (byte[] level : levels) {
+                out.write(level);
+            }
+            out.getFD().sync();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Can not write " + file);
+        }
+        return levels[levels.length - 1];
+    }
+
+    /**
+     * Checks the complete file. The stored tree is not needed for this, so this also detects
+     * files whose tree got lost
+     *
+     * @param data the encrypted file
+     * @param root the root hash, as returned by {@link #build}
+     * @return true, if the file is unchanged
+     */
+    static boolean verify(final java.io.File data, final byte[] root) throws IOException {
+        byte[][] levels;
+        try (FileChannel channel = new FileInputStream(data).getChannel()) {
+            levels = hashLevels(hashLeaves(channel));
+        }
+        return MessageDigest.isEqual(levels[levels.length - 1], root);
+    }
+
+    /**
+     * Opens the tree of the given file to check ranges of it
+     *
+     * @param data the encrypted file
+     * @param root the root hash, as returned by {@link #build}
+     * @return the tree or null, if the file has no (valid) tree
+     */
+    static MerkleTree open(final java.io.File data, final byte[] root) throws IOException {
+        java.io.File file = getTreeFile(data);
+        if (!file.exists()) {
+            return null;
+        }
+        FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+        MerkleTree tree = new MerkleTree(channel, root, getLeafCount(data.length()));
+        long nodes = tree.levelOffsets[tree.levelOffsets.length - 1] + 1;
+        ByteBuffer stored = ByteBuffer.allocate(HASH_LENGTH);
+        if (channel.size() != nodes * HASH_LENGTH ||
+                !tree.readNode(tree.levelSizes.length - 1, 0, stored) ||
+                !MessageDigest.isEqual(stored.array(), root)) {
+            // either the encrypted file or its tree has changed
+            tree.close();
+            return null;
+        }
+        return tree;
+    }
+
+    /**
+     * Checks a range of the encrypted file. Only the blocks in the range are read, in addition to
+     * one hash per level of the tree for every block. Blocks, which have been checked before, are
+     * not checked again.
+     *
+     * @param data     the encrypted file
+     * @param position the start of the range
+     * @param length   the length of the range
+     * @return true, if the range is unchanged
+     */
+    synchronized boolean verify(final FileChannel data, final long position,
+                                final long length) throws IOException {
+        if (length <= 0) {
+            return true;
+        }
+        if (getLeafCount(data.size()) != leaves) {
+            return false;
+        }
+        int first = (int) (position / BLOCK_SIZE);
+        int last = (int) Math.min(leaves - 1, (position + length - 1) / BLOCK_SIZE);
+        for (int leaf = first; leaf <= last; leaf++) {
+            if (verified.get(leaf)) {
+                continue;
+            }
+            if (!readBlock(data, leaf, block)) {
+                return false;
+            }
+            byte[] hash = hashLeaf(digest, block);
+            int index = leaf;
+            for (int level = 0; level < levelSizes.length - 1; level++) {
+                boolean left = index % 2 == 0;
+                if (!left || index + 1 < levelSizes[level]) {
+                    if (!readNode(level, left ? index + 1 : index - 1, sibling)) {
+                        return false;
+                    }
+                    byte[] other = sibling.array();
+                    hash = left ? hashNode(digest, hash, 0, other, 0) :
+                            hashNode(digest, other, 0, hash, 0);
+                }
+                index /= 2;
+            }
+            if (!MessageDigest.isEqual(hash, root)) {
+                return false;
+            }
+            verified.set(leaf);
+        }
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        tree.close();
+    }
+
+    /**
+     * Reads a node of the stored tree
+     *
+     * @return false, if the tree file is too short
+     */
+    private boolean readNode(final int level, final int index, final ByteBuffer buffer) throws
+            IOException {
+        buffer.clear();
+        long position = (levelOffsets[level] + index) * HASH_LENGTH;
+        while (buffer.hasRemaining()) {
+            int read = tree.read(buffer, position + buffer.position());
+            if (read < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads a block of the encrypted file into the buffer
+     *
+     * @return false, if the file is shorter than expected
+     */
+    private static boolean readBlock(final FileChannel data, final int leaf,
+                                     final ByteBuffer buffer) throws IOException {
+        long position = (long) leaf * BLOCK_SIZE;
+        buffer.clear();
+        buffer.limit((int) Math.min(BLOCK_SIZE, Math.max(0, data.size() - position)));
+        while (buffer.hasRemaining()) {
+            int read = data.read(buffer, position + buffer.position());
+            if (read < 0) {
+                return false;
+            }
+        }
+        buffer.flip();
+        return true;
+    }
+
+    /**
+     * Hashes all blocks of the given file, using one thread per core
+     *
+     * @param data the encrypted file
+     * @return the hashes of all blocks, one after the other
+     */
+    private static byte[] hashLeaves(final FileChannel data) throws IOException {
+        final int count = getLeafCount(data.size());
+        final byte[] leaves = new byte[count * HASH_LENGTH];
+        final AtomicInteger next = new AtomicInteger();
+        final IOException[] error = new IOException[1];
+        Thread[] threads =
+                new Thread[Math.min(count, Runtime.getRuntime().availableProcessors())];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    ByteBuffer buffer = ByteBuffer.allocate(BLOCK_SIZE);
+                    try {
+                        MessageDigest digest = newDigest();
+                        int leaf;
+                        while ((leaf = next.getAndIncrement()) < count) {
+                            if (!readBlock(data, leaf, buffer)) {
+                                throw new EOFException("File changed while hashing it");
+                            }
+                            System.arraycopy(hashLeaf(digest, buffer), 0, leaves,
+                                    leaf * HASH_LENGTH, HASH_LENGTH);
+                        }
+                    } catch (IOException e) {
+                        synchronized (error) {
+                            error[0] = e;
+                        }
+                        // let the other threads stop as well
+                        next.set(count);
+                    }
+                }
+            }, "MerkleTree hasher " + i);
+            threads[i].start();
+        }
+        try {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            next.set(count);
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", e);
+        }
+        synchronized (error) {
+            if (error[0] != null) {
+                throw error[0];
+            }
+        }
+        return leaves;
+    }
+
+    /**
+     * Computes the inner nodes of the tree
+     *
+     * @param leaves the hashes of all blocks
+     * @return all levels of the tree, the last one contains only the root
+     */
+    private static byte[][] hashLevels(final byte[] leaves) throws IOException {
+        MessageDigest digest = newDigest();
+        int[] sizes = getLevelSizes(leaves.length / HASH_LENGTH);
+        byte[][] levels = new byte[sizes.length][];
+        levels[0] = leaves;
+        for (int level = 1; level < sizes.length; level++) {
+            byte[] below = levels[level - 1];
+            byte[] nodes = new byte[sizes[level] * HASH_LENGTH];
+            for (int i = 0; i < sizes[level]; i++) {
+                int left = 2 * i * HASH_LENGTH;
+                byte[] hash = left + HASH_LENGTH < below.length ?
+                        hashNode(digest, below, left, below, left + HASH_LENGTH) :
+                        Arrays.copyOfRange(below, left, left + HASH_LENGTH);
+                System.arraycopy(hash, 0, nodes, i * HASH_LENGTH, HASH_LENGTH);
+            }
+            levels[level] = nodes;
+        }
+        return levels;
+    }
+
+    /**
+     * @param length the size of the encrypted file
+     * @return the number of leaves of its tree. An empty file has a single, empty block
+     */
+    private static int getLeafCount(final long length) throws IOException {
+        long count = Math.max(1, (length + BLOCK_SIZE - 1) / BLOCK_SIZE);
+        if (count > Integer.MAX_VALUE / HASH_LENGTH) {
+            throw new IOException("File too large");
+        }
+        return (int) count;
+    }
+
+    /**
+     * @param leaves the number of leaves
+     * @return the number of nodes on every level, starting with the leaves
+     */
+    private static int[] getLevelSizes(final int leaves) {
+        int height = 1;
+        for (int n = leaves; n > 1; n = (n + 1) / 2) {
+            height++;
+        }
+        int[] sizes = new int[height];
+        sizes[0] = leaves;
+        for (int level = 1; level < height; level++) {
+            sizes[level] = (sizes[level - 1] + 1) / 2;
+        }
+        return sizes;
+    }
+
+    private static byte[] hashLeaf(final MessageDigest digest, final ByteBuffer block) {
+        digest.update(PREFIX_LEAF);
+        digest.update(block);
+        return digest.digest();
+    }
+
+    private static byte[] hashNode(final MessageDigest digest, final byte[] left,
+                                   final int leftOffset, final byte[] right,
+                                   final int rightOffset) {
+        digest.update(PREFIX_NODE);
+        digest.update(left, leftOffset, HASH_LENGTH);
+        digest.update(right, rightOffset, HASH_LENGTH);
+        return digest.digest();
+    }
+
+    /**
+     * Builds the tree of a file while the file is written. All bytes of the file have to be
+     * passed to {@link #write}, in order
+     */
+    static class Builder implements WritableByteChannel {
+        private final MessageDigest digest;
+        private final ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+        private final ByteArrayOutputStream leaves = new ByteArrayOutputStream();
+        private long length;
+
+        Builder() throws IOException {
+            digest = newDigest();
+        }
+
+        /**
+         * Passes bytes which are already in the file, like a header or the part written by an
+         * interrupted run
+         *
+         * @param file     the file
+         * @param position the position of the first byte to pass
+         * @param end      the position after the last byte to pass
+         */
+        void update(final FileChannel file, long position, final long end) throws
+                IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(BLOCK_SIZE);
+            while (position < end) {
+                buffer.clear();
+                buffer.limit((int) Math.min(BLOCK_SIZE, end - position));
+                if (file.read(buffer, position) < 0) {
+                    throw new EOFException("File is shorter than expected");
+                }
+                buffer.flip();
+                position += buffer.remaining();
+                write(buffer);
+            }
+        }
+
+        @Override
+        public int write(final ByteBuffer src) {
+            int written = src.remaining();
+            while (src.hasRemaining()) {
+                ByteBuffer part = src.duplicate();
+                part.limit(part.position() + Math.min(block.remaining(), src.remaining()));
+                src.position(part.limit());
+                block.put(part);
+                if (!block.hasRemaining()) {
+                    addLeaf();
+                }
+            }
+            length += written;
+            return written;
+        }
+
+        private void addLeaf() {
+            block.flip();
+            byte[] hash = hashLeaf(digest, block);
+            leaves.write(hash, 0, hash.length);
+            block.clear();
+        }
+
+        /**
+         * Computes the inner nodes and stores the tree next to the file
+         *
+         * @param data the file, which must have been written completely
+         * @return the root hash, which has to be stored to check the file later
+         */
+        byte[] finish(final java.io.File data) throws IOException {
+            if (data.length() != length) {
+                throw new IOException("File changed while hashing it");
+            }
+            // the last block might be partial, an empty file has a single, empty block
+            if (block.position() > 0 || leaves.size() == 0) {
+                addLeaf();
+            }
+            return store(data, hashLevels(leaves.toByteArray()));
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static MessageDigest newDigest() throws IOException {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+}
@@ -0,0 +1,390 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter;
+
+import android.os.Build;
+import android.os.SystemClock;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * In-memory registry of the throughput and latency metrics of the app, since the process started.
+ * <p>
+ * Recording a value only updates a few atomic counters, so the metrics are always collected, in
+ * release builds as well. Histograms count the values in buckets of powers of two, so their
+ * percentiles are upper bounds within a factor of two.
+ *
+ * @see DiagnosticsActivity
+ */
+class Metrics {
+
+    final static String UNIT_BYTES = "bytes";
+    final static String UNIT_BYTES_PER_SECOND = "bytes/s";
+    final static String UNIT_MS = "ms";
+    final static String UNIT_US = "us";
+    final static String UNIT_BLOCKS = "blocks";
+
+    private final static Map<String, Metric> METRICS = new LinkedHashMap<>();
+    private final static int RECENT_JOBS = 20;
+    private final static ArrayDeque<JSONObject> recentJobs = new ArrayDeque<>(RECENT_JOBS);
+    private static volatile long since = SystemClock.elapsedRealtime();
+
+    final static Counter ENCRYPTED_BYTES = counter("job.encrypt.bytes", UNIT_BYTES);
+    final static Counter DECRYPTED_BYTES = counter("job.decrypt.bytes", UNIT_BYTES);
+    final static Counter FAILED_JOBS = counter("job.failed", null);
+    final static Histogram ENCRYPT_THROUGHPUT =
+            histogram("job.encrypt.throughput", UNIT_BYTES_PER_SECOND);
+    final static Histogram DECRYPT_THROUGHPUT =
+            histogram("job.decrypt.throughput", UNIT_BYTES_PER_SECOND);
+    final static Histogram JOB_QUEUE = histogram("job.queue", null);
+    /**
+     * Time from showing the fingerprint dialog until the cipher is authenticated
+     */
+    final static Histogram AUTH_WAIT = histogram("auth.wait", UNIT_MS);
+    /**
+     * Time from requesting a cipher until the fingerprint dialog is shown
+     */
+    final static Histogram AUTH_PROMPT = histogram("auth.prompt", UNIT_MS);
+    /**
+     * Time to load the keystore and the key in the background at launch
+     */
+    final static Histogram KEYSTORE_WARM_UP = histogram("keystore.warm_up", UNIT_MS);
+    /**
+     * Time from the start of the process (or the creation of the main activity, if the start is
+     * not known) until its first frame is drawn, and until the key is ready
+     */
+    final static Histogram STARTUP_FIRST_FRAME = histogram("startup.first_frame", UNIT_MS);
+    final static Histogram STARTUP_KEY_READY = histogram("startup.key_ready", UNIT_MS);
+    /**
+     * Time per job spent in reading the input, in the cipher and in writing the output
+     */
+    final static Histogram ENGINE_READ = histogram("engine.read", UNIT_MS);
+    final static Histogram ENGINE_CIPHER = histogram("engine.cipher", UNIT_MS);
+    final static Histogram ENGINE_WRITE = histogram("engine.write", UNIT_MS);
+    /**
+     * Time per job the stages of the engine waited for each other, see {@link ChunkEngine}
+     */
+    final static Histogram ENGINE_READER_STALL = histogram("engine.reader_stall", UNIT_MS);
+    final static Histogram ENGINE_CIPHER_STALL = histogram("engine.cipher_stall", UNIT_MS);
+    final static Histogram ENGINE_WRITER_STALL = histogram("engine.writer_stall", UNIT_MS);
+    /**
+     * The number of processed chunks waiting for the writer, sampled once per chunk
+     */
+    final static Histogram ENGINE_QUEUE = histogram("engine.queue", UNIT_BLOCKS);
+    /**
+     * Time to create the thumbnail of a file while it is encrypted
+     */
+    final static Histogram THUMBNAIL_CREATE = histogram("thumbnail.create", UNIT_MS);
+    /**
+     * Time to read, decrypt and decode a thumbnail, which is not in memory
+     */
+    final static Histogram THUMBNAIL_LOAD = histogram("thumbnail.load", UNIT_US);
+    /**
+     * Time to append a small file to a {@link Pack} and commit it, and to compact a pack
+     */
+    final static Histogram PACK_APPEND = histogram("pack.append", UNIT_US);
+    final static Histogram PACK_COMPACT = histogram("pack.compact", UNIT_MS);
+    /**
+     * Time to list one directory of a document tree, see {@link TreeWalker}
+     */
+    final static Histogram TREE_LIST = histogram("tree.list", UNIT_MS);
+    final static Histogram DB_CATALOG = histogram("db.catalog", UNIT_US);
+    final static Histogram DB_ADD_FILE = histogram("db.add_file", UNIT_US);
+    final static Histogram DB_DELETE_FILE = histogram("db.delete_file", UNIT_US);
+    final static Histogram DB_JOBS = histogram("db.jobs", UNIT_US);
+    final static Histogram DB_CHECKPOINT = histogram("db.checkpoint", UNIT_US);
+
+    private Metrics() {
+    }
+
+    private static synchronized Counter counter(final String name, final String unit) {
+        Counter counter = new Counter(name, unit);
+        METRICS.put(name, counter);
+        return counter;
+    }
+
+    private static synchronized Histogram histogram(final String name, final String unit) {
+        Histogram histogram = new Histogram(name, unit);
+        METRICS.put(name, histogram);
+        return histogram;
+    }
+
+    /**
+     * Records a finished job
+     *
+     * @param encrypt true, if the file has been encrypted
+     * @param bytes   the number of plaintext bytes processed
+     * @param nanos   the duration of the job
+     * @param success false, if the job failed or has been cancelled
+     */
+    static void recordJob(final boolean encrypt, final long bytes, final long nanos,
+                          final boolean success) {
+        if (!success) {
+            FAILED_JOBS.add(1);
+        }
+        long throughput = nanos > 0 ? (long) (bytes * 1e9 / nanos) : 0;
+        if (success && bytes > 0) {
+            (encrypt ? ENCRYPTED_BYTES : DECRYPTED_BYTES).add(bytes);
+            (encrypt ? ENCRYPT_THROUGHPUT : DECRYPT_THROUGHPUT).record(throughput);
+        }
+        try {
+            JSONObject job = new JSONObject().put("encrypt", encrypt).put("bytes", bytes)
+                    .put("ms", nanos / 1000000).put(UNIT_BYTES_PER_SECOND, throughput)
+                    .put("success", success);
+            synchronized (recentJobs) {
+                if (recentJobs.size() == RECENT_JOBS) {
+                    recentJobs.removeFirst();
+                }
+                recentJobs.addLast(job);
+            }
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Resets all metrics
+     */
+    static void reset() {
+        for (Metric metric : getAll()) {
+            metric.reset();
+        }
+        synchronized (recentJobs) {
+            recentJobs.clear();
+        }
+        since = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * @return all metrics, in the order they have been registered
+     */
+    static synchronized Collection<Metric> getAll() {
+        return METRICS.values();
+    }
+
+    /**
+     * @return a human readable summary of all metrics, which have any values
+     */
+    static String format() {
+        StringBuilder text = new StringBuilder();
+        text.append(Build.MANUFACTURER).append(' ').append(Build.MODEL).append(", Android ")
+                .append(Build.VERSION.RELEASE).append(", ")
+                .append(Runtime.getRuntime().availableProcessors()).append(" cores\n");
+        text.append("Since ").append((SystemClock.elapsedRealtime() - since) / 1000)
+                .append(" s\n\n");
+        for (Metric metric : getAll()) {
+            String line = metric.format();
+            if (line != null) {
+                text.append(metric.name).append(": ").append(line).append('\n');
+            }
+        }
+        return text.toString();
+    }
+
+    /**
+     * @return all metrics together with the device they have been recorded on
+     */
+    static JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("device", new JSONObject().put("manufacturer", Build.MANUFACTURER)
+                .put("model", Build.MODEL).put("sdk", Build.VERSION.SDK_INT)
+                .put("abi", Build.SUPPORTED_ABIS.length > 0 ? Build.SUPPORTED_ABIS[0] : null)
+                .put("cores", Runtime.getRuntime().availableProcessors()));
+        json.put("app", new JSONObject().put("version", BuildConfig.VERSION_NAME)
+                .put("debug", BuildConfig.DEBUG));
+        json.put("duration_ms", SystemClock.elapsedRealtime() - since);
+        JSONObject metrics = new JSONObject();
+        for (Metric metric : getAll()) {
+            metrics.put(metric.name, metric.toJson());
+        }
+        json.put("metrics", metrics);
+        JSONArray jobs = new JSONArray();
+        synchronized (recentJobs) {
+            for (JSONObject job : recentJobs) {
+                jobs.put(job);
+            }
+        }
+        json.put("recent_jobs", jobs);
+        return json;
+    }
+
+    abstract static class Metric {
+        final String name;
+        /**
+         * The unit of the values or null, if they are plain numbers
+         */
+        final String unit;
+
+        private Metric(final String name, final String unit) {
+            this.name = name;
+            this.unit = unit;
+        }
+
+        abstract void reset();
+
+        /**
+         * @return the summary of this metric or null, if nothing has been recorded yet
+         */
+        abstract String format();
+
+        abstract JSONObject toJson() throws JSONException;
+
+        String withUnit(final long value) {
+            return unit != null ? value + " " + unit : String.valueOf(value);
+        }
+    }
+
+    /**
+     * A sum, which only grows
+     */
+    static class Counter extends Metric {
+        private final AtomicLong value = new AtomicLong();
+
+        private Counter(final String name, final String unit) {
+            super(name, unit);
+        }
+
+        void add(final long n) {
+            value.addAndGet(n);
+        }
+
+        long get() {
+            return value.get();
+        }
+
+        @Override
+        void reset() {
+            value.set(0);
+        }
+
+        @Override
+        String format() {
+            long v = value.get();
+            return v > 0 ? withUnit(v) : null;
+        }
+
+        @Override
+        JSONObject toJson() throws JSONException {
+            return new JSONObject().put("unit", unit).put("value", value.get());
+        }
+    }
+
+    /**
+     * The distribution of a value, which is never negative
+     */
+    static class Histogram extends Metric {
+        /**
+         * Bucket i counts the values v with 2^(i-1) <= v < 2^i, bucket 0 counts 0
+         */
+        private final AtomicLongArray buckets = new AtomicLongArray(64);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        private Histogram(final String name, final String unit) {
+            super(name, unit);
+        }
+
+        void record(final long value) {
+            record(value, 1);
+        }
+
+        /**
+         * Records the same value several times
+         *
+         * @param value the value
+         * @param times the number of times
+         */
+        void record(final long value, final long times) {
+            if (times <= 0) {
+                return;
+            }
+            long v = Math.max(0, value);
+            buckets.addAndGet(64 - Long.numberOfLeadingZeros(v), times);
+            count.addAndGet(times);
+            sum.addAndGet(v * times);
+            long m;
+            while ((m = max.get()) < v && !max.compareAndSet(m, v)) ;
+        }
+
+        /**
+         * Records the time passed since the given start, in the unit of this histogram
+         *
+         * @param start the start, as returned by {@link System#nanoTime()}
+         */
+        void recordSince(final long start) {
+            long nanos = System.nanoTime() - start;
+            record(UNIT_US.equals(unit) ? nanos / 1000 : nanos / 1000000);
+        }
+
+        /**
+         * @param percentile the percentile, between 0 and 100
+         * @return an upper bound of the given percentile
+         */
+        long percentile(final double percentile) {
+            long total = count.get();
+            long rank = (long) Math.ceil(total * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < 64; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank && seen > 0) {
+                    return i == 0 ? 0 : Math.min(max.get(), (1L << i) - 1);
+                }
+            }
+            return max.get();
+        }
+
+        @Override
+        void reset() {
+            for (int i = 0; i < 64; i++) {
+                buckets.set(i, 0);
+            }
+            count.set(0);
+            sum.set(0);
+            max.set(0);
+        }
+
+        @Override
+        String format() {
+            long n = count.get();
+            if (n == 0) {
+                return null;
+            }
+            return String.format(Locale.US, "n=%d, mean=%s, p50=%s, p90=%s, p99=%s, max=%s", n,
+                    withUnit(sum.get() / n), withUnit(percentile(50)), withUnit(percentile(90)),
+                    withUnit(percentile(99)), withUnit(max.get()));
+        }
+
+        @Override
+        JSONObject toJson() throws JSONException {
+            long n = count.get();
+            return new JSONObject().put("unit", unit).put("count", n).put("sum", sum.get())
+                    .put("mean", n > 0 ? sum.get() / n : 0).put("p50", percentile(50))
+                    .put("p90", percentile(90)).put("p99", percentile(99))
+                    .put("max", max.get());
+        }
+    }
+}
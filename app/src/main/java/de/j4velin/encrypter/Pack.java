@@ -0,0 +1,541 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * An archive of many small encrypted files, the members, in a single file.
+ * <p>
+ * Layout: [container header][record][record]...[index record][trailer]
+ * <p>
+ * The header is a {@link Container} header, so the pack has one data key, wrapped like the data
+ * key of any other file. Every member is a record of its own, sealed like a single chunk with
+ * the next free record number as chunk index, so no two records share a nonce. The record
+ * number is also the id of the member. Every index reserves the next {@link #RESERVE} record
+ * numbers, which are never used again after a crash, even if the records using them are lost.
+ * <p>
+ * The index, which maps the members to the position and length of their records, is an
+ * encrypted record as well, marked as last chunk so that it can not be swapped with a member.
+ * An index record only lists the changes since the previous index record, which it points to,
+ * so appending a member costs the same for any number of members. Every {@link #MAX_CHAIN}
+ * commits, the complete index is written instead. The trailer at the end of the file points to
+ * the newest index record: [index position][index record number][index length][magic]
+ * <p>
+ * Members are appended and never changed. Removed members stay in the file until it is
+ * {@link #compact}ed, which copies the records of the remaining members into a new file without
+ * decrypting them. If the process dies before a commit, the records written since the last
+ * commit are cut off on the next {@link #open}.
+ * <p>
+ * Truncating the file to an older commit can not be told apart from that, so a pack might be
+ * rolled back to an older, valid state. The catalog of the app is the authority on which
+ * members exist.
+ * <p>
+ * Instances are thread-safe, but there must be at most one instance per file.
+ */
+class Pack implements Closeable {
+
+    /**
+     * The maximum plaintext size of a member
+     */
+    final static int MAX_MEMBER_SIZE = Container.DEFAULT_CHUNK_SIZE;
+
+    private final static byte[] MAGIC = new byte[]{'P', 'A', 'C', 'K'};
+    private final static int TRAILER_LENGTH = 8 + 8 + 4 + MAGIC.length;
+    private final static int INDEX_HEADER_LENGTH = 8 + 8 + 4 + 8 + 4;
+    private final static int ENTRY_LENGTH = 8 + 8 + 4;
+    /**
+     * The maximum number of index records read when a pack is opened
+     */
+    private final static int MAX_CHAIN = 64;
+    private final static int RECOVERY_WINDOW = 256 * 1024;
+    private final static int RESERVE = 1024;
+
+    private static class Entry {
+        private final long position;
+        private final int length;
+
+        private Entry(final long position, final int length) {
+            this.position = position;
+            this.length = length;
+        }
+
+        /**
+         * @return the length of the record in the file
+         */
+        private int recordLength() {
+            return length + Container.TAG_LENGTH;
+        }
+    }
+
+    private final java.io.File file;
+    final Container container;
+    private final ChunkCipher cipher;
+    private FileChannel channel;
+    private final Map<Long, Entry> members = new TreeMap<>();
+    /**
+     * The members added (entry) or removed (null) since the last commit
+     */
+    private final Map<Long, Entry> changes = new LinkedHashMap<>();
+    private long nextRecord;
+    /**
+     * The first record number not reserved by the last durable index
+     */
+    private long reserved;
+    /**
+     * The end of the last record written, committed or not
+     */
+    private long end;
+    private long indexPosition, indexRecord;
+    private int indexLength;
+    /**
+     * The number of index records since the last complete index
+     */
+    private int chain;
+    private long live;
+
+    private Pack(final java.io.File file, final FileChannel channel, final Container container,
+                 final byte[] dataKey) {
+        this.file = file;
+        this.channel = channel;
+        this.container = container;
+        this.cipher = new ChunkCipher(container, dataKey);
+    }
+
+    /**
+     * Creates a new, empty pack
+     *
+     * @param file      the file of the pack, which is overwritten
+     * @param container the header, see {@link Container#create}. Its chunk size must be at
+     *                  least {@link #MAX_MEMBER_SIZE}
+     * @param dataKey   the (unwrapped) data key of the header
+     * @return the pack
+     */
+    static Pack create(final java.io.File file, final Container container,
+                       final byte[] dataKey) throws IOException, GeneralSecurityException {
+        if (container.compression != Container.COMPRESSION_NONE ||
+                container.chunkSize < MAX_MEMBER_SIZE) {
+            throw new IllegalArgumentException("Unsuitable container");
+        }
+        FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+        try {
+            channel.truncate(0);
+            container.write(channel);
+            Pack pack = new Pack(file, channel, container, dataKey);
+            pack.end = container.headerLength();
+            pack.writeIndex(true);
+            return pack;
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens an existing pack and reads its index
+     *
+     * @param file      the file of the pack
+     * @param masterKey the master key of the pack, as unwrapped by the Android Key Store
+     * @return the pack
+     * @throws IOException if the file is not a pack or its index is corrupt
+     */
+    static Pack open(final java.io.File file, final byte[] masterKey) throws IOException,
+            GeneralSecurityException {
+        if (!file.exists()) {
+            throw new FileNotFoundException(file.getPath());
+        }
+        FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+        try {
+            Container container = Container.read(new BufferedInputStream(
+                    Channels.newInputStream(channel), Container.DEFAULT_CHUNK_SIZE));
+            if (container == null || container.version < 2 ||
+                    container.compression != Container.COMPRESSION_NONE) {
+                throw new IOException(file + " is not a pack");
+            }
+            byte[] key = container.dataKey(masterKey);
+            Pack pack = new Pack(file, channel, container, key);
+            Arrays.fill(key, (byte) 0);
+            pack.load();
+            return pack;
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads the index the trailer points to or, if the trailer is missing, looks for the last
+     * complete commit and cuts off everything behind it
+     */
+    private void load() throws IOException {
+        long size = channel.size();
+        ByteBuffer trailer = ByteBuffer.allocate(TRAILER_LENGTH);
+        if (size >= container.headerLength() + TRAILER_LENGTH) {
+            readFully(trailer, size - TRAILER_LENGTH);
+            if (load(trailer.array(), 0, size)) {
+                return;
+            }
+        }
+        // the tail of an interrupted commit: search backwards for the last valid trailer
+        long from = size;
+        do {
+            from = Math.max(container.headerLength(), from - RECOVERY_WINDOW);
+            ByteBuffer window = ByteBuffer.allocate((int) Math.min(Integer.MAX_VALUE - 8,
+                    size - from));
+            readFully(window, from);
+            byte[] bytes = window.array();
+            for (int i = bytes.length - MAGIC.length; i >= TRAILER_LENGTH - MAGIC.length; i--) {
+                if (bytes[i] == MAGIC[0] && bytes[i + 1] == MAGIC[1] &&
+                        bytes[i + 2] == MAGIC[2] && bytes[i + 3] == MAGIC[3] &&
+                        load(bytes, i + MAGIC.length - TRAILER_LENGTH,
+                                from + i + MAGIC.length)) {
+                    channel.truncate(end);
+                    channel.force(false);
+                    return;
+                }
+            }
+        } while (from > container.headerLength() && size - from < Integer.MAX_VALUE / 2);
+        throw new IOException(file + " has no valid index");
+    }
+
+    /**
+     * @param trailer    the bytes containing the trailer
+     * @param offset     the position of the trailer in the bytes
+     * @param trailerEnd the position in the file right after the trailer
+     * @return true, if the trailer is valid and the index it points to has been read
+     */
+    private boolean load(final byte[] trailer, final int offset, final long trailerEnd) {
+        ByteBuffer buffer = ByteBuffer.wrap(trailer, offset, TRAILER_LENGTH);
+        long position = buffer.getLong();
+        long record = buffer.getLong();
+        int length = buffer.getInt();
+        byte[] magic = new byte[MAGIC.length];
+        buffer.get(magic);
+        if (!Arrays.equals(magic, MAGIC) || length < INDEX_HEADER_LENGTH +
+                Container.TAG_LENGTH || position < container.headerLength() ||
+                position + length != trailerEnd - TRAILER_LENGTH) {
+            return false;
+        }
+        try {
+            // newest first
+            List<ByteBuffer> chainRecords = new ArrayList<>();
+            long next = -1;
+            while (position >= 0) {
+                if (chainRecords.size() >= MAX_CHAIN) {
+                    throw new IOException("Index chain too long");
+                }
+                ByteBuffer index = ByteBuffer.wrap(readRecord(position, record, length, true));
+                if (next < 0) {
+                    next = index.getLong(INDEX_HEADER_LENGTH - 12);
+                }
+                position = index.getLong();
+                record = index.getLong();
+                length = index.getInt();
+                index.position(INDEX_HEADER_LENGTH);
+                chainRecords.add(index);
+            }
+            members.clear();
+            live = 0;
+            for (int i = chainRecords.size() - 1; i >= 0; i--) {
+                ByteBuffer index = chainRecords.get(i);
+                int count = index.getInt(INDEX_HEADER_LENGTH - 4);
+                if (index.remaining() != count * ENTRY_LENGTH) {
+                    throw new IOException("Invalid index length");
+                }
+                for (int j = 0; j < count; j++) {
+                    long member = index.getLong();
+                    long memberPosition = index.getLong();
+                    int memberLength = index.getInt();
+                    apply(member, memberLength < 0 ? null :
+                            new Entry(memberPosition, memberLength));
+                }
+            }
+            // the reserved numbers might have been used before the process died
+            nextRecord = next;
+            reserved = next;
+            chain = chainRecords.size();
+            end = trailerEnd;
+            ByteBuffer newest = ByteBuffer.wrap(trailer, offset, TRAILER_LENGTH);
+            indexPosition = newest.getLong();
+            indexRecord = newest.getLong();
+            indexLength = newest.getInt();
+            return true;
+        } catch (IOException | GeneralSecurityException e) {
+            members.clear();
+            live = 0;
+            return false;
+        }
+    }
+
+    private void apply(final long member, final Entry entry) {
+        Entry old = entry == null ? members.remove(member) : members.put(member, entry);
+        if (old != null) {
+            live -= old.recordLength();
+        }
+        if (entry != null) {
+            live += entry.recordLength();
+        }
+    }
+
+    /**
+     * Appends a member. It is only part of the pack once {@link #commit()} returned
+     *
+     * @param data   the plaintext
+     * @param length the length of the plaintext, at most {@link #MAX_MEMBER_SIZE}
+     * @return the id of the new member
+     */
+    synchronized long append(final byte[] data, final int length) throws IOException,
+            GeneralSecurityException {
+        if (length > MAX_MEMBER_SIZE) {
+            throw new IllegalArgumentException("Member too large: " + length);
+        }
+        if (nextRecord + 1 >= reserved) {
+            // one number is left for the index
+            writeIndex(chain >= MAX_CHAIN);
+        }
+        long member = nextRecord++;
+        byte[] record = new byte[length + Container.TAG_LENGTH];
+        cipher.seal(member, false, data, length, record);
+        writeFully(ByteBuffer.wrap(record), end);
+        Entry entry = new Entry(end, length);
+        end += record.length;
+        apply(member, entry);
+        changes.put(member, entry);
+        return member;
+    }
+
+    /**
+     * Removes a member. It is only removed from the file once {@link #commit()} returned and
+     * its record is only deleted by {@link #compact()}
+     *
+     * @param member the id of the member
+     * @return false, if there is no such member
+     */
+    synchronized boolean remove(final long member) {
+        if (!members.containsKey(member)) {
+            return false;
+        }
+        apply(member, null);
+        changes.put(member, null);
+        return true;
+    }
+
+    /**
+     * Writes the index of all members appended or removed since the last commit and makes the
+     * pack durable
+     */
+    synchronized void commit() throws IOException, GeneralSecurityException {
+        if (!changes.isEmpty()) {
+            writeIndex(chain >= MAX_CHAIN);
+        }
+    }
+
+    /**
+     * @param complete true to write all members instead of the changes since the last commit
+     */
+    private void writeIndex(final boolean complete) throws IOException,
+            GeneralSecurityException {
+        Map<Long, Entry> entries = complete ? members : changes;
+        long record = nextRecord++;
+        long reserve = nextRecord + RESERVE;
+        ByteBuffer index = ByteBuffer.allocate(INDEX_HEADER_LENGTH +
+                entries.size() * ENTRY_LENGTH);
+        index.putLong(complete ? -1 : indexPosition).putLong(complete ? -1 : indexRecord)
+                .putInt(complete ? 0 : indexLength).putLong(reserve).putInt(entries.size());
+        for (Map.Entry<Long, Entry> entry : entries.entrySet()) {
+            Entry value = entry.getValue();
+            index.putLong(entry.getKey()).putLong(value != null ? value.position : -1)
+                    .putInt(value != null ? value.length : -1);
+        }
+        byte[] sealed = new byte[index.capacity() + Container.TAG_LENGTH];
+        cipher.seal(record, true, index.array(), index.capacity(), sealed);
+        ByteBuffer out = ByteBuffer.allocate(sealed.length + TRAILER_LENGTH);
+        out.put(sealed).putLong(end).putLong(record).putInt(sealed.length).put(MAGIC);
+        out.flip();
+        writeFully(out, end);
+        channel.force(false);
+        indexPosition = end;
+        indexRecord = record;
+        indexLength = sealed.length;
+        reserved = reserve;
+        end += out.capacity();
+        chain = complete ? 1 : chain + 1;
+        changes.clear();
+    }
+
+    /**
+     * Reads and verifies a member
+     *
+     * @param member the id of the member
+     * @return the plaintext
+     * @throws FileNotFoundException if there is no such member
+     * @throws javax.crypto.AEADBadTagException if the member has been modified
+     */
+    synchronized byte[] read(final long member) throws IOException, GeneralSecurityException {
+        Entry entry = members.get(member);
+        if (entry == null) {
+            throw new FileNotFoundException(file + "#" + member);
+        }
+        return readRecord(entry.position, member, entry.recordLength(), false);
+    }
+
+    private byte[] readRecord(final long position, final long record, final int length,
+                              final boolean index) throws IOException,
+            GeneralSecurityException {
+        if (length < Container.TAG_LENGTH ||
+                length > container.chunkSize + Container.TAG_LENGTH) {
+            throw new IOException("Invalid record length " + length);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        readFully(buffer, position);
+        byte[] plaintext = new byte[length - Container.TAG_LENGTH];
+        cipher.open(record, index, buffer.array(), length, plaintext);
+        return plaintext;
+    }
+
+    /**
+     * @return the ids of all members
+     */
+    synchronized Set<Long> getMembers() {
+        return Collections.unmodifiableSet(new TreeSet<>(members.keySet()));
+    }
+
+    /**
+     * @return the size of the pack in bytes
+     */
+    synchronized long size() {
+        return end;
+    }
+
+    /**
+     * @return the number of bytes {@link #compact()} would free
+     */
+    synchronized long garbage() {
+        return end - container.headerLength() - live -
+                (INDEX_HEADER_LENGTH + members.size() * ENTRY_LENGTH + Container.TAG_LENGTH +
+                        TRAILER_LENGTH);
+    }
+
+    /**
+     * Rewrites the pack without the records of removed members and with a single, complete
+     * index. The records are copied as they are, so the members keep their ids. The new file
+     * replaces the old one only once it is complete and durable.
+     */
+    synchronized void compact() throws IOException, GeneralSecurityException {
+        commit();
+        List<Map.Entry<Long, Entry>> records = new ArrayList<>(members.entrySet());
+        Collections.sort(records, new Comparator<Map.Entry<Long, Entry>>() {
+            @Override
+            public int compare(final Map.Entry<Long, Entry> a, final Map.Entry<Long, Entry> b) {
+                return Long.compare(a.getValue().position, b.getValue().position);
+            }
+        });
+        java.io.File temp = new java.io.File(file.getPath() + ".tmp");
+        FileChannel out = new RandomAccessFile(temp, "rw").getChannel();
+        FileChannel old = channel;
+        try {
+            out.truncate(0);
+            container.write(out);
+            long position = container.headerLength();
+            Map<Long, Entry> moved = new TreeMap<>();
+            for (Map.Entry<Long, Entry> record : records) {
+                Entry entry = record.getValue();
+                long copied = 0;
+                while (copied < entry.recordLength()) {
+                    long n = old.transferTo(entry.position + copied,
+                            entry.recordLength() - copied, out);
+                    if (n <= 0) {
+                        throw new EOFException("Pack is truncated");
+                    }
+                    copied += n;
+                }
+                moved.put(record.getKey(), new Entry(position, entry.length));
+                position += entry.recordLength();
+            }
+            members.clear();
+            members.putAll(moved);
+            channel = out;
+            end = position;
+            writeIndex(true);
+            out.force(true);
+            if (!temp.renameTo(file)) {
+                throw new IOException("Can not replace " + file);
+            }
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            // the old file is untouched, but its positions are lost. A failure to restore them
+            // must not hide why the compaction failed
+            channel = old;
+            try {
+                out.close();
+            } catch (IOException close) {
+                e.addSuppressed(close);
+            }
+            temp.delete();
+            try {
+                load();
+            } catch (IOException | RuntimeException reload) {
+                e.addSuppressed(reload);
+            }
+            throw e;
+        }
+        old.close();
+    }
+
+    /**
+     * Closes the file
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        cipher.destroy();
+        channel.close();
+    }
+
+    private void readFully(final ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException("Pack is truncated");
+            }
+            position += read;
+        }
+        buffer.flip();
+    }
+
+    private void writeFully(final ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+}
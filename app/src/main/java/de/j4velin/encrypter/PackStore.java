@@ -0,0 +1,358 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter;
+
+import android.content.Context;
+import android.net.Uri;
+import android.preference.PreferenceManager;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The storage of small encrypted files in {@link Pack}s.
+ * <p>
+ * If enabled, all small files of one batch are appended to one pack, which is wrapped with the
+ * master key of the batch. The uri of such a file is the uri of its pack with the id of the
+ * member as fragment.
+ * <p>
+ * Removing a member from the encrypted index needs the key of the pack, so deleting a file
+ * only deletes its entry. Whenever a pack has been used with its key, the members without an
+ * entry are removed and the pack is compacted in the background, if enough space is wasted.
+ * A pack without any entries is deleted right away.
+ */
+class PackStore {
+
+    private final static String DIRECTORY = "packs";
+    private final static String EXTENSION = ".pack";
+    private final static String PREF_ENABLED = "pack_small_files";
+    /**
+     * Packs are only compacted, if at least this many bytes and more than the members are wasted
+     */
+    private final static long MIN_GARBAGE = 1024 * 1024;
+
+    private final static ExecutorService COMPACTOR = Executors.newSingleThreadExecutor();
+
+    /**
+     * The open packs, by path
+     */
+    private final static Map<String, Handle> OPEN = new HashMap<>();
+
+    /**
+     * The paths of the packs, which are still going to get jobs, see {@link #unreserve}
+     */
+    private final static Set<String> RESERVED = new HashSet<>();
+
+    private static class Handle {
+        private final String path;
+        private final Pack pack;
+        private final CryptoUtil.MasterKey masterKey;
+        private int references;
+        /**
+         * Counts the calls to {@link #acquire}
+         */
+        private long generation;
+
+        private Handle(final String path, final Pack pack,
+                       final CryptoUtil.MasterKey masterKey) {
+            this.path = path;
+            this.pack = pack;
+            this.masterKey = masterKey;
+        }
+    }
+
+    private PackStore() {
+    }
+
+    /**
+     * @param context the context
+     * @return true, if small files should be packed
+     */
+    static boolean isEnabled(final Context context) {
+        return PreferenceManager.getDefaultSharedPreferences(context)
+                .getBoolean(PREF_ENABLED, false);
+    }
+
+    /**
+     * @param context the context
+     * @param enabled true to pack small files from now on
+     */
+    static void setEnabled(final Context context, final boolean enabled) {
+        PreferenceManager.getDefaultSharedPreferences(context).edit()
+                .putBoolean(PREF_ENABLED, enabled).apply();
+    }
+
+    /**
+     * @param context the context
+     * @param file    a plaintext file
+     * @return true, if the file should be encrypted into a pack. Audio and video files never
+     * are, as they are played from their encrypted file, see {@link EncryptedMediaDataSource}
+     */
+    static boolean accepts(final Context context, final File file) {
+        return file.size >= 0 && file.size <= Pack.MAX_MEMBER_SIZE && isEnabled(context) &&
+                (file.mime == null ||
+                        !file.mime.startsWith("audio/") && !file.mime.startsWith("video/"));
+    }
+
+    /**
+     * Creates a new, empty pack. The pack is kept, even without any members or jobs, until
+     * {@link #unreserve} is called
+     *
+     * @param context   the context
+     * @param masterKey the master key of the batch, which wraps the key of the pack
+     * @return the uri of the pack
+     */
+    static Uri create(final Context context, final CryptoUtil.MasterKey masterKey) throws
+            IOException, GeneralSecurityException {
+        Database db = new Database(context);
+        java.io.File file;
+        try {
+            file = new java.io.File(new java.io.File(BlobStore.getRoot(context), DIRECTORY),
+                    Long.toHexString(db.allocateBlobId()) + EXTENSION);
+        } finally {
+            db.close();
+        }
+        java.io.File dir = file.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Can not create " + dir);
+        }
+        byte[] dataKey = new byte[Container.KEY_LENGTH];
+        new SecureRandom().nextBytes(dataKey);
+        try {
+            Pack.create(file, Container.create(Pack.MAX_MEMBER_SIZE, masterKey.iv,
+                    masterKey.wrapped, masterKey.key, dataKey, Container.COMPRESSION_NONE),
+                    dataKey).close();
+        } finally {
+            Arrays.fill(dataKey, (byte) 0);
+        }
+        synchronized (OPEN) {
+            RESERVED.add(file.getPath());
+        }
+        return Uri.fromFile(file);
+    }
+
+    /**
+     * Marks a pack created by {@link #create} as complete: no more jobs are going to be
+     * submitted for it. Deletes the pack, if it is unused
+     *
+     * @param db  the database
+     * @param uri the uri of the pack
+     */
+    static void unreserve(final Database db, final Uri uri) {
+        synchronized (OPEN) {
+            RESERVED.remove(uri.getPath());
+        }
+        deleteIfUnused(db, uri);
+    }
+
+    /**
+     * @param uri the uri of an encrypted file
+     * @return true, if the uri is the uri of a pack or of a member of a pack
+     */
+    static boolean isPack(final Uri uri) {
+        return "file".equals(uri.getScheme()) && uri.getPath() != null &&
+                uri.getPath().endsWith(EXTENSION);
+    }
+
+    /**
+     * @param uri the uri of an encrypted file
+     * @return true, if the file is a member of a pack
+     */
+    static boolean isMember(final Uri uri) {
+        return isPack(uri) && uri.getFragment() != null;
+    }
+
+    /**
+     * @param pack   the uri of a pack
+     * @param member the id of a member
+     * @return the uri of the member
+     */
+    static Uri getMemberUri(final Uri pack, final long member) {
+        return pack.buildUpon().fragment(Long.toString(member)).build();
+    }
+
+    /**
+     * @param uri the uri of a pack or of a member
+     * @return the uri of the pack
+     */
+    static Uri getPackUri(final Uri uri) {
+        return uri.buildUpon().fragment(null).build();
+    }
+
+    /**
+     * Opens a pack or returns the already open instance
+     *
+     * @param uri       the uri of the pack or of a member
+     * @param masterKey the unwrapped master key of the pack
+     * @return the pack, which must be given back to {@link #release(Context, Pack)}
+     */
+    static Pack acquire(final Uri uri, final CryptoUtil.MasterKey masterKey) throws
+            IOException, GeneralSecurityException {
+        String path = uri.getPath();
+        synchronized (OPEN) {
+            Handle handle = OPEN.get(path);
+            if (handle == null) {
+                handle = new Handle(path, Pack.open(new java.io.File(path), masterKey.key),
+                        masterKey);
+                masterKey.retain();
+                OPEN.put(path, handle);
+            }
+            handle.references++;
+            handle.generation++;
+            return handle.pack;
+        }
+    }
+
+    /**
+     * Gives back a pack opened by {@link #acquire}. Once it is no longer used, the members,
+     * which have no entry in the database, are removed and the pack is compacted if needed
+     *
+     * @param context the context
+     * @param pack    the pack
+     */
+    static void release(final Context context, final Pack pack) {
+        final Handle handle;
+        final long generation;
+        synchronized (OPEN) {
+            handle = findHandle(pack);
+            if (--handle.references > 0) {
+                return;
+            }
+            // still used by the compaction
+            handle.references++;
+            generation = handle.generation;
+        }
+        final Context appContext = context.getApplicationContext();
+        COMPACTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                Uri uri = Uri.fromFile(new java.io.File(handle.path));
+                Database db = new Database(appContext);
+                try {
+                    Set<Long> referenced = db.getPackMembers(uri);
+                    synchronized (OPEN) {
+                        // a job acquiring the pack since might have added members, which
+                        // have no entry yet
+                        if (handle.generation == generation) {
+                            for (long member : pack.getMembers()) {
+                                if (!referenced.contains(member)) {
+                                    pack.remove(member);
+                                }
+                            }
+                        }
+                    }
+                    pack.commit();
+                    long garbage = pack.garbage();
+                    if (garbage >= MIN_GARBAGE && garbage > pack.size() - garbage) {
+                        long start = System.nanoTime();
+                        pack.compact();
+                        Metrics.PACK_COMPACT.recordSince(start);
+                    }
+                } catch (IOException | GeneralSecurityException e) {
+                    // retried the next time the pack is used
+                    e.printStackTrace();
+                } finally {
+                    close(handle);
+                    deleteIfUnused(db, uri);
+                    db.close();
+                }
+            }
+        });
+    }
+
+    private static Handle findHandle(final Pack pack) {
+        for (Handle handle : OPEN.values()) {
+            if (handle.pack == pack) {
+                return handle;
+            }
+        }
+        throw new IllegalArgumentException("Pack not acquired");
+    }
+
+    private static void close(final Handle handle) {
+        synchronized (OPEN) {
+            if (--handle.references > 0) {
+                return;
+            }
+            OPEN.values().remove(handle);
+        }
+        try {
+            handle.pack.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        handle.masterKey.release();
+    }
+
+    /**
+     * Reads a member of a pack
+     *
+     * @param context   the context
+     * @param file      the encrypted file
+     * @param masterKey the unwrapped master key of the pack
+     * @return the plaintext
+     */
+    static byte[] read(final Context context, final File file,
+                       final CryptoUtil.MasterKey masterKey) throws IOException,
+            GeneralSecurityException {
+        Pack pack = acquire(file.uri, masterKey);
+        try {
+            return pack.read(getMember(file.uri));
+        } finally {
+            release(context, pack);
+        }
+    }
+
+    /**
+     * @param uri the uri of a member
+     * @return the id of the member
+     */
+    private static long getMember(final Uri uri) throws IOException {
+        try {
+            return Long.parseLong(uri.getFragment());
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid member " + uri);
+        }
+    }
+
+    /**
+     * Deletes a pack, which is not in use and has neither entries nor jobs in the database
+     *
+     * @param db  the database
+     * @param uri the uri of the pack or of a member
+     */
+    static void deleteIfUnused(final Database db, final Uri uri) {
+        Uri pack = getPackUri(uri);
+        synchronized (OPEN) {
+            if (OPEN.containsKey(pack.getPath()) || RESERVED.contains(pack.getPath()) ||
+                    db.hasJobs(pack) || !db.getPackMembers(pack).isEmpty()) {
+                return;
+            }
+            java.io.File file = new java.io.File(pack.getPath());
+            if (file.exists() && !file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+}
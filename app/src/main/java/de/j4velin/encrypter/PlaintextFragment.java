@@ -15,10 +15,7 @@
  */
 package de.j4velin.encrypter;
 
-import android.content.BroadcastReceiver;
-import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.os.Bundle;
 import android.provider.DocumentsContract;
 import android.support.design.widget.Snackbar;
@@ -35,21 +32,15 @@ import android.view.ViewGroup;
 public class PlaintextFragment extends Fragment {
 
     private FileAdapter adapter;
-    private final BroadcastReceiver cryptoCompleteReceiver = new BroadcastReceiver() {
+    private final JobEvents.Listener jobListener = new JobEvents.Listener() {
         @Override
-        public void onReceive(final Context context, final Intent intent) {
-            if (intent.getAction().equals(MainActivity.CRYPTO_COMPLETE_ACTION)) {
-                if (adapter.getSize() == 0) {
-                    // we're about to add a file so show the plaintext layout now
-                    ((MainActivity) getActivity()).showPlaintextLayout(true);
-                }
-                File file = intent.getParcelableExtra(MainActivity.EXTRA_RESULT_FILE);
-                if (file.isEncrypted) {
-                    // encrypt operation -> add the original file instead
-                    file = intent.getParcelableExtra(MainActivity.EXTRA_ORIGINAL_FILE);
-                }
-                adapter.add(file);
+        void onCompleted(final JobEvents.Completed event) {
+            if (adapter.getSize() == 0) {
+                // we're about to add a file so show the plaintext layout now
+                ((MainActivity) getActivity()).showPlaintextLayout(true);
             }
+            // encrypt operation -> add the original file instead
+            adapter.add(event.encrypt ? event.source : event.target);
         }
     };
 
@@ -95,14 +86,13 @@ public class PlaintextFragment extends Fragment {
     @Override
     public void onResume() {
         super.onResume();
-        getActivity()
-                .registerReceiver(cryptoCompleteReceiver, new IntentFilter(MainActivity.CRYPTO_COMPLETE_ACTION));
+        JobEvents.register(jobListener);
     }
 
     @Override
     public void onPause() {
         super.onPause();
-        getActivity().unregisterReceiver(cryptoCompleteReceiver);
+        JobEvents.unregister(jobListener);
     }
 
 }
@@ -0,0 +1,254 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter;
+
+import android.app.Activity;
+import android.content.Context;
+import android.content.Intent;
+import android.media.MediaPlayer;
+import android.os.Bundle;
+import android.view.MotionEvent;
+import android.view.SurfaceHolder;
+import android.view.SurfaceView;
+import android.widget.MediaController;
+import android.widget.Toast;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.Cipher;
+
+/**
+ * Plays an encrypted audio or video file with the MediaPlayer, decrypting only the parts the
+ * player reads, see {@link EncryptedMediaDataSource}
+ */
+public class PlayerActivity extends Activity implements SurfaceHolder.Callback,
+        MediaPlayer.OnPreparedListener, MediaPlayer.OnErrorListener,
+        MediaController.MediaPlayerControl {
+
+    private final static String EXTRA_TOKEN = "token";
+
+    /**
+     * The files to play with their keys, until the activity picked them up
+     */
+    private final static Map<Integer, Source> SOURCES = new ConcurrentHashMap<>();
+    private final static AtomicInteger NEXT_TOKEN = new AtomicInteger();
+
+    private static class Source {
+        private final File file;
+        private final CryptoUtil.MasterKey masterKey;
+        private final Cipher legacyCipher;
+
+        private Source(final File file, final CryptoUtil.MasterKey masterKey,
+                       final Cipher legacyCipher) {
+            this.file = file;
+            this.masterKey = masterKey;
+            this.legacyCipher = legacyCipher;
+        }
+    }
+
+    private MediaPlayer player;
+    private MediaController controller;
+    private EncryptedMediaDataSource dataSource;
+    private boolean prepared;
+
+    /**
+     * Starts playing the given file
+     *
+     * @param context      the context
+     * @param file         the encrypted file
+     * @param masterKey    the unwrapped master key of the file or null, if it is a legacy file
+     * @param legacyCipher the authenticated cipher to decrypt a legacy file with
+     */
+    static void start(final Context context, final File file,
+                      final CryptoUtil.MasterKey masterKey, final Cipher legacyCipher) {
+        int token = NEXT_TOKEN.incrementAndGet();
+        if (masterKey != null) {
+            masterKey.retain();
+        }
+        SOURCES.put(token, new Source(file, masterKey, legacyCipher));
+        context.startActivity(
+                new Intent(context, PlayerActivity.class).putExtra(EXTRA_TOKEN, token));
+    }
+
+    @Override
+    protected void onCreate(final Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        Source source = SOURCES.remove(getIntent().getIntExtra(EXTRA_TOKEN, 0));
+        if (source == null) {
+            // the keys only live in memory and are gone after the process has been restarted
+            finish();
+            return;
+        }
+        setTitle(source.file.name);
+        Database db = new Database(this);
+        byte[] treeRoot = db.getTreeRoot(source.file.uri);
+        db.close();
+        try {
+            dataSource = EncryptedMediaDataSource
+                    .open(source.file, source.masterKey, source.legacyCipher, treeRoot);
+        } catch (IOException | GeneralSecurityException e) {
+            Toast.makeText(this, getString(R.string.error_io, e.getMessage()),
+                    Toast.LENGTH_LONG).show();
+            finish();
+            return;
+        } finally {
+            if (source.masterKey != null) {
+                source.masterKey.release();
+            }
+        }
+        setContentView(R.layout.activity_player);
+        SurfaceView surface = (SurfaceView) findViewById(R.id.surface);
+        surface.getHolder().addCallback(this);
+        player = new MediaPlayer();
+        player.setOnPreparedListener(this);
+        player.setOnErrorListener(this);
+        player.setDataSource(dataSource);
+        player.prepareAsync();
+        controller = new MediaController(this);
+        controller.setMediaPlayer(this);
+        controller.setAnchorView(surface);
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        if (player != null && prepared) {
+            player.pause();
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (player != null) {
+            player.release();
+        }
+        if (dataSource != null) {
+            try {
+                dataSource.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    @Override
+    public boolean onTouchEvent(final MotionEvent event) {
+        if (prepared && event.getAction() == MotionEvent.ACTION_UP) {
+            if (controller.isShowing()) {
+                controller.hide();
+            } else {
+                controller.show();
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void onPrepared(final MediaPlayer mediaPlayer) {
+        prepared = true;
+        mediaPlayer.start();
+        controller.setEnabled(true);
+        controller.show();
+    }
+
+    @Override
+    public boolean onError(final MediaPlayer mediaPlayer, final int what, final int extra) {
+        if (BuildConfig.DEBUG) android.util.Log.d(MainActivity.TAG,
+                "PlayerActivity error: " + what + "," + extra);
+        Toast.makeText(this, getString(R.string.error_io, String.valueOf(what)),
+                Toast.LENGTH_LONG).show();
+        finish();
+        return true;
+    }
+
+    @Override
+    public void surfaceCreated(final SurfaceHolder surfaceHolder) {
+        player.setDisplay(surfaceHolder);
+    }
+
+    @Override
+    public void surfaceChanged(final SurfaceHolder surfaceHolder, final int format,
+                               final int width, final int height) {
+    }
+
+    @Override
+    public void surfaceDestroyed(final SurfaceHolder surfaceHolder) {
+        if (player != null) {
+            player.setDisplay(null);
+        }
+    }
+
+    @Override
+    public void start() {
+        player.start();
+    }
+
+    @Override
+    public void pause() {
+        player.pause();
+    }
+
+    @Override
+    public int getDuration() {
+        return prepared ? player.getDuration() : 0;
+    }
+
+    @Override
+    public int getCurrentPosition() {
+        return prepared ? player.getCurrentPosition() : 0;
+    }
+
+    @Override
+    public void seekTo(final int position) {
+        player.seekTo(position);
+    }
+
+    @Override
+    public boolean isPlaying() {
+        return prepared && player.isPlaying();
+    }
+
+    @Override
+    public int getBufferPercentage() {
+        // the whole file is available locally
+        return 100;
+    }
+
+    @Override
+    public boolean canPause() {
+        return true;
+    }
+
+    @Override
+    public boolean canSeekBackward() {
+        return true;
+    }
+
+    @Override
+    public boolean canSeekForward() {
+        return true;
+    }
+
+    @Override
+    public int getAudioSessionId() {
+        return player.getAudioSessionId();
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter;
+
+/**
+ * Arithmetic on file sizes.
+ * <p>
+ * Contains no Android classes, so it is tested on the plain JVM by the benchmark module.
+ */
+class Sizes {
+
+    private final static long INT_RANGE = 1L << 32;
+
+    private Sizes() {
+    }
+
+    /**
+     * Repairs a size, which versions before 64 bit sizes stored as a 32 bit int. Such a size is
+     * the real size modulo 2^32. The encrypted file is only a little larger than the plaintext,
+     * so the real size is the one with the stored lower 32 bits, which is closest to the length
+     * of the encrypted file.
+     *
+     * @param stored the stored size
+     * @param length the length of the encrypted file
+     * @return the repaired size or the stored size, if it is plausible or -1, which means unknown
+     */
+    static long repair(final long stored, final long length) {
+        if (stored == -1 || length - stored <= Integer.MAX_VALUE) {
+            return stored;
+        }
+        long low = stored & (INT_RANGE - 1);
+        return low + Math.round((length - low) / (double) INT_RANGE) * INT_RANGE;
+    }
+
+    /**
+     * @param size a size in bytes
+     * @return the size in the largest unit, in which it is at least 1
+     */
+    static String format(final long size) {
+        if (size < 1024) return size + " Bytes";
+        long kb = size / 1024;
+        if (kb < 1024) return kb + " KB";
+        long mb = kb / 1024;
+        if (mb < 1024) return mb + " MB";
+        else return (mb / 1024) + " GB";
+    }
+}
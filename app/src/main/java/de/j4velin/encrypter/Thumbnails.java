@@ -0,0 +1,302 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.media.ExifInterface;
+import android.media.MediaMetadataRetriever;
+import android.media.ThumbnailUtils;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.LruCache;
+import android.widget.ImageView;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Previews of encrypted images and videos.
+ * <p>
+ * A thumbnail is created from the plaintext when a file is encrypted and stored encrypted in the
+ * {@link Database}, so that showing it never touches the encrypted file itself. Shown thumbnails
+ * are kept decoded in memory, up to a budget of bytes. Reading, decrypting and decoding happens
+ * on background threads, the most recently requested thumbnail first.
+ */
+class Thumbnails {
+
+    /**
+     * The width and height of a thumbnail in pixel
+     */
+    private final static int SIZE = 160;
+    private final static int QUALITY = 75;
+    private final static int CACHE_BYTES =
+            (int) Math.min(16 * 1024 * 1024, Runtime.getRuntime().maxMemory() / 8);
+
+    private final static Handler HANDLER = new Handler(Looper.getMainLooper());
+    /**
+     * Loads the last requested thumbnail first, as that's the one most likely on screen
+     */
+    private final static ExecutorService EXECUTOR =
+            new ThreadPoolExecutor(2, 2, 0, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingDeque<Runnable>() {
+                        @Override
+                        public boolean offer(final Runnable runnable) {
+                            return offerFirst(runnable);
+                        }
+                    });
+    private final static LruCache<String, Bitmap> CACHE =
+            new LruCache<String, Bitmap>(CACHE_BYTES) {
+                @Override
+                protected int sizeOf(final String key, final Bitmap value) {
+                    return value.getByteCount();
+                }
+            };
+    /**
+     * Files known to have no thumbnail, so that the database is not asked again
+     */
+    private final static LruCache<String, Boolean> MISSING = new LruCache<>(1024);
+    private static Database db;
+
+    private Thumbnails() {
+    }
+
+    /**
+     * @param file a file
+     * @return true, if a thumbnail can be created for the file
+     */
+    private static boolean hasPreview(final File file) {
+        return file.mime != null &&
+                (file.mime.startsWith("image/") || file.mime.startsWith("video/"));
+    }
+
+    /**
+     * Creates the thumbnail of a plaintext file. Must not be called on the main thread
+     *
+     * @param context the context
+     * @param file    the plaintext file
+     * @return the encrypted thumbnail or null, if the file has no preview or the thumbnail key is
+     * not available
+     */
+    static byte[] create(final Context context, final File file) {
+        if (!hasPreview(file)) {
+            return null;
+        }
+        SecretKey key = CipherUtil.getThumbnailKey(context);
+        if (key == null) {
+            return null;
+        }
+        long start = System.nanoTime();
+        Bitmap bitmap = null;
+        try {
+            bitmap = file.mime.startsWith("image/") ? decodeImage(context, file) :
+                    decodeVideo(context, file);
+            if (bitmap == null) {
+                return null;
+            }
+            Bitmap thumbnail = ThumbnailUtils.extractThumbnail(bitmap, SIZE, SIZE,
+                    ThumbnailUtils.OPTIONS_RECYCLE_INPUT);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            thumbnail.compress(Bitmap.CompressFormat.JPEG, QUALITY, out);
+            thumbnail.recycle();
+            bitmap = null;
+            byte[] encrypted = CipherUtil.encryptThumbnail(key, out.toByteArray());
+            Metrics.THUMBNAIL_CREATE.recordSince(start);
+            return encrypted;
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            // a missing thumbnail must not fail the encryption
+            e.printStackTrace();
+            return null;
+        } finally {
+            if (bitmap != null) {
+                bitmap.recycle();
+            }
+        }
+    }
+
+    private static Bitmap decodeImage(final Context context, final File file)
+            throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        try (InputStream in = context.getContentResolver().openInputStream(file.uri)) {
+            BitmapFactory.decodeStream(in, null, options);
+        }
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        int sampleSize = 1;
+        while (Math.min(options.outWidth, options.outHeight) / (sampleSize * 2) >= SIZE) {
+            sampleSize *= 2;
+        }
+        options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        Bitmap bitmap;
+        try (InputStream in = context.getContentResolver().openInputStream(file.uri)) {
+            bitmap = BitmapFactory.decodeStream(in, null, options);
+        }
+        if (bitmap == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
+            return bitmap;
+        }
+        int degrees;
+        try (InputStream in = context.getContentResolver().openInputStream(file.uri)) {
+            degrees = new ExifInterface(in).getAttributeInt(ExifInterface.TAG_ORIENTATION,
+                    ExifInterface.ORIENTATION_NORMAL);
+        }
+        switch (degrees) {
+            case ExifInterface.ORIENTATION_ROTATE_90:
+                degrees = 90;
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_180:
+                degrees = 180;
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_270:
+                degrees = 270;
+                break;
+            default:
+                return bitmap;
+        }
+        Matrix matrix = new Matrix();
+        matrix.postRotate(degrees);
+        Bitmap rotated = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(),
+                matrix, true);
+        if (rotated != bitmap) {
+            bitmap.recycle();
+        }
+        return rotated;
+    }
+
+    private static Bitmap decodeVideo(final Context context, final File file) {
+        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        try {
+            retriever.setDataSource(context, file.uri);
+            return retriever.getFrameAtTime();
+        } finally {
+            retriever.release();
+        }
+    }
+
+    /**
+     * Shows the thumbnail of an encrypted file in the given view, once it is loaded. The view
+     * keeps its current image, if the file has no thumbnail. Must be called on the main thread
+     *
+     * @param context the context
+     * @param file    the encrypted file
+     * @param view    the view, which might be reused for another file in the meantime
+     */
+    static void show(final Context context, final File file, final ImageView view) {
+        final String uri = file.uri.toString();
+        if (!hasPreview(file) || MISSING.get(uri) != null) {
+            view.setTag(R.id.mime, null);
+            return;
+        }
+        Bitmap bitmap = CACHE.get(uri);
+        if (bitmap != null) {
+            view.setTag(R.id.mime, null);
+            view.setImageBitmap(bitmap);
+            return;
+        }
+        view.setTag(R.id.mime, uri);
+        final Context appContext = context.getApplicationContext();
+        EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Bitmap loaded = load(appContext, uri);
+                HANDLER.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (loaded != null && uri.equals(view.getTag(R.id.mime))) {
+                            view.setTag(R.id.mime, null);
+                            view.setImageBitmap(loaded);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * @return the cached or decoded thumbnail or null, if there is none
+     */
+    private static Bitmap load(final Context context, final String uri) {
+        Bitmap bitmap = CACHE.get(uri);
+        if (bitmap != null || MISSING.get(uri) != null) {
+            return bitmap;
+        }
+        SecretKey key = CipherUtil.getThumbnailKey(context);
+        if (key == null) {
+            // might be available after the next authentication
+            return null;
+        }
+        long start = System.nanoTime();
+        byte[] encrypted;
+        synchronized (Thumbnails.class) {
+            if (db == null) {
+                db = new Database(context);
+            }
+            encrypted = db.getThumbnail(android.net.Uri.parse(uri));
+        }
+        if (encrypted != null) {
+            try {
+                byte[] jpeg = CipherUtil.decryptThumbnail(key, encrypted);
+                BitmapFactory.Options options = new BitmapFactory.Options();
+                options.inPreferredConfig = Bitmap.Config.RGB_565;
+                bitmap = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options);
+            } catch (GeneralSecurityException e) {
+                // encrypted with a key, which has been invalidated since
+                e.printStackTrace();
+            }
+        }
+        if (bitmap == null) {
+            MISSING.put(uri, Boolean.TRUE);
+        } else {
+            CACHE.put(uri, bitmap);
+            Metrics.THUMBNAIL_LOAD.recordSince(start);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Stores the thumbnail of a new encrypted file, unless the file has one already
+     *
+     * @param db        the database
+     * @param file      the encrypted file
+     * @param thumbnail the thumbnail returned by {@link #create(Context, File)}
+     */
+    static void store(final Database db, final File file, final byte[] thumbnail) {
+        db.addThumbnail(file.uri, thumbnail);
+        MISSING.remove(file.uri.toString());
+    }
+
+    /**
+     * Removes all thumbnails from memory
+     */
+    static void clearCache() {
+        CACHE.evictAll();
+        MISSING.evictAll();
+    }
+}
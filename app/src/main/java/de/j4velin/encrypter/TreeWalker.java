@@ -0,0 +1,197 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.DocumentsContract;
+import android.provider.DocumentsContract.Document;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Finds all files in a document tree, as chosen with
+ * {@link android.content.Intent#ACTION_OPEN_DOCUMENT_TREE}.
+ * <p>
+ * Every directory is listed with a single query, which returns the name, type and size of all
+ * its children at once, so no file has to be queried on its own. The directories are listed in
+ * parallel on a small pool of threads, as most of the time is spent waiting for the documents
+ * provider. The files found are handed on in batches, while the rest of the tree is still being
+ * listed.
+ */
+class TreeWalker {
+
+    interface Listener {
+        /**
+         * Called with the next files found, at most {@link #BATCH_SIZE} at a time. Calls are
+         * never concurrent, but come from any of the walker threads. The walker waits while
+         * this method blocks
+         *
+         * @param files the files, with their paths relative to the tree
+         */
+        void found(final List<File> files);
+
+        /**
+         * Called once, after the last call to {@link #found}
+         *
+         * @param files the number of files found
+         * @param error the first error or null, if the whole tree has been listed
+         */
+        void done(final int files, final Exception error);
+    }
+
+    final static int BATCH_SIZE = 64;
+    private final static int THREADS = 4;
+    private final static String[] PROJECTION =
+            new String[]{Document.COLUMN_DOCUMENT_ID, Document.COLUMN_DISPLAY_NAME,
+                    Document.COLUMN_MIME_TYPE, Document.COLUMN_SIZE};
+
+    private final ContentResolver resolver;
+    private final Uri tree;
+    private final Listener listener;
+    private final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    /**
+     * The number of directories, which are not completely listed yet
+     */
+    private final AtomicInteger pending = new AtomicInteger();
+    private final List<File> batch = new ArrayList<>();
+    private int found;
+    private volatile Exception error;
+
+    /**
+     * @param context  the context
+     * @param tree     the uri of the tree
+     * @param listener the listener for the files found
+     */
+    TreeWalker(final Context context, final Uri tree, final Listener listener) {
+        this.resolver = context.getContentResolver();
+        this.tree = tree;
+        this.listener = listener;
+    }
+
+    /**
+     * Starts listing the tree in the background
+     */
+    void start() {
+        final String root = DocumentsContract.getTreeDocumentId(tree);
+        pending.incrementAndGet();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                String name = root;
+                try (Cursor c = resolver.query(DocumentsContract.buildDocumentUriUsingTree(tree,
+                        root), new String[]{Document.COLUMN_DISPLAY_NAME}, null, null, null)) {
+                    if (c != null && c.moveToFirst() && c.getString(0) != null) {
+                        name = c.getString(0);
+                    }
+                } catch (RuntimeException e) {
+                    // the listing itself reports the error
+                    e.printStackTrace();
+                }
+                list(root, name);
+            }
+        });
+    }
+
+    /**
+     * Lists one directory and submits its sub-directories
+     *
+     * @param directory the document id of the directory
+     * @param path      the path of the directory, relative to the tree
+     */
+    private void list(final String directory, final String path) {
+        try {
+            if (error != null) {
+                return;
+            }
+            long start = System.nanoTime();
+            List<File> files = new ArrayList<>();
+            try (Cursor c = resolver.query(
+                    DocumentsContract.buildChildDocumentsUriUsingTree(tree, directory),
+                    PROJECTION, null, null, null)) {
+                while (c != null && c.moveToNext()) {
+                    final String id = c.getString(0);
+                    String name = c.getString(1);
+                    String mime = c.getString(2);
+                    if (Document.MIME_TYPE_DIR.equals(mime)) {
+                        final String child = path + "/" + name;
+                        pending.incrementAndGet();
+                        executor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                list(id, child);
+                            }
+                        });
+                    } else {
+                        files.add(new File(-1, name, mime,
+                                DocumentsContract.buildDocumentUriUsingTree(tree, id),
+                                c.isNull(3) ? -1 : c.getLong(3), false, path));
+                    }
+                }
+            }
+            Metrics.TREE_LIST.recordSince(start);
+            add(files);
+        } catch (RuntimeException e) {
+            // e.g. a SecurityException, if the permission has been revoked
+            e.printStackTrace();
+            if (error == null) {
+                error = e;
+            }
+        } finally {
+            if (pending.decrementAndGet() == 0) {
+                finish();
+            }
+        }
+    }
+
+    /**
+     * Hands on the given files as soon as a batch is complete
+     */
+    private void add(final List<File> files) {
+        synchronized (batch) {
+            batch.addAll(files);
+            while (batch.size() >= BATCH_SIZE) {
+                deliver(BATCH_SIZE);
+            }
+        }
+    }
+
+    /**
+     * Hands on the first files of the batch. Must hold the lock of the batch
+     */
+    private void deliver(final int count) {
+        List<File> next = new ArrayList<>(batch.subList(0, count));
+        batch.subList(0, count).clear();
+        found += count;
+        listener.found(next);
+    }
+
+    private void finish() {
+        synchronized (batch) {
+            if (!batch.isEmpty()) {
+                deliver(batch.size());
+            }
+            listener.done(found, error);
+        }
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks loading the catalog as {@link Catalog.Loader} does: querying the ids of all files
+ * matching a search in the given order and reading the first page of rows. Runs the statements
+ * of {@link CatalogSql} against SQLite through JDBC, on a catalog of generated file names.
+ * <p>
+ * An empty query lists all files.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class CatalogBenchmark {
+
+    private final static String[] WORDS =
+            {"holiday", "vacation", "scan", "invoice", "contract", "passport", "img", "dsc",
+                    "video", "report", "tax", "family", "beach", "notes", "backup", "letter"};
+    private final static String[] TYPES =
+            {"jpg:image/jpeg", "png:image/png", "mp4:video/mp4", "pdf:application/pdf",
+                    "txt:text/plain", "mp3:audio/mpeg"};
+    private final static String[] COLUMNS = {"_id", "name", "mime", "uri", "size"};
+    private final static int PAGE_SIZE = 64;
+
+    @Param({"100000"})
+    int files;
+
+    @Param({"", "p", "vac", "invoice 2016", "image", "passport scan pdf"})
+    String query;
+
+    @Param({"DATE", "NAME", "SIZE"})
+    String orderName;
+
+    private File file;
+    private Connection connection;
+    private CatalogSql.Order order;
+    private String match;
+
+    @Setup
+    public void setup() throws IOException, SQLException {
+        file = File.createTempFile("catalog", ".db");
+        connection = DriverManager.getConnection("jdbc:sqlite:" + file.getAbsolutePath());
+        try (Statement statement = connection.createStatement()) {
+            // the schema of Database.onCreate
+            statement.execute("CREATE TABLE " + CatalogSql.TABLE_FILES + " (_id INTEGER " +
+                    "PRIMARY KEY, name TEXT, mime TEXT, uri TEXT, size INTEGER, hash BLOB)");
+        }
+        connection.setAutoCommit(false);
+        Random random = new Random(42);
+        try (PreparedStatement insert = connection.prepareStatement("INSERT INTO " +
+                CatalogSql.TABLE_FILES + " (name, mime, uri, size) VALUES (?, ?, ?, ?)")) {
+            for (int i = 0; i < files; i++) {
+                String[] type = TYPES[random.nextInt(TYPES.length)].split(":");
+                String name = WORDS[random.nextInt(WORDS.length)] + "_" +
+                        (2010 + random.nextInt(10)) + "-" + random.nextInt(10000) + " " +
+                        WORDS[random.nextInt(WORDS.length)] + "." + type[0];
+                insert.setString(1, name);
+                insert.setString(2, type[1]);
+                insert.setString(3, "file:///data/files/blobs/" + i);
+                insert.setLong(4, (long) (Math.exp(random.nextDouble() * 22)));
+                insert.addBatch();
+            }
+            insert.executeBatch();
+        }
+        try (Statement statement = connection.createStatement()) {
+            for (String sql : CatalogSql.createSortIndexes()) {
+                statement.execute(sql);
+            }
+            for (String sql : CatalogSql.createSearch()) {
+                statement.execute(sql);
+            }
+        }
+        connection.commit();
+        connection.setAutoCommit(true);
+        match = CatalogSql.toMatch(query);
+        order = CatalogSql.Order.valueOf(orderName);
+    }
+
+    @TearDown
+    public void tearDown() throws SQLException {
+        connection.close();
+        file.delete();
+    }
+
+    /**
+     * The same steps as Database#getIds
+     */
+    private long[] getIds() throws SQLException {
+        if (match == null) {
+            return getIds(CatalogSql.selectIds(order), null);
+        }
+        long[] matches = getIds(CatalogSql.selectMatches(), match);
+        if (order == CatalogSql.Order.DATE || matches.length == 0) {
+            return matches;
+        } else if (CatalogSql.sortInDatabase(matches.length)) {
+            return getIds(CatalogSql.selectIds(matches, order), null);
+        } else {
+            return CatalogSql.retain(getIds(CatalogSql.selectIds(order), null), matches);
+        }
+    }
+
+    private long[] getIds(final String sql, final String arg) throws SQLException {
+        long[] ids = new long[1024];
+        int count = 0;
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+            if (arg != null) {
+                statement.setString(1, arg);
+            }
+            try (ResultSet result = statement.executeQuery()) {
+                while (result.next()) {
+                    if (count == ids.length) {
+                        ids = Arrays.copyOf(ids, count * 2);
+                    }
+                    ids[count++] = result.getLong(1);
+                }
+            }
+        }
+        return Arrays.copyOf(ids, count);
+    }
+
+    @Benchmark
+    public int load() throws SQLException {
+        long[] ids = getIds();
+        if (ids.length == 0) {
+            return 0;
+        }
+        int rows = 0;
+        try (Statement statement = connection.createStatement(); ResultSet result = statement
+                .executeQuery(CatalogSql.selectFiles(COLUMNS, ids, 0,
+                        Math.min(ids.length, PAGE_SIZE)))) {
+            while (result.next()) {
+                rows++;
+            }
+        }
+        return ids.length + rows;
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.security.GeneralSecurityException;
+import java.security.Security;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Benchmarks the raw cipher throughput when a file is sealed chunk by chunk, each chunk with its
+ * own nonce, as it is done for the {@link Container} format.
+ * <p>
+ * Every operation processes {@link StreamBenchmark#SIZE} bytes, so MB/s = ops/s * 16.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class CipherBenchmark {
+
+    @Param({"AES/CBC/PKCS5Padding", "AES/GCM/NoPadding", "ChaCha20-Poly1305"})
+    String transformation;
+
+    @Param({"4096", "16384", "65536", "262144", "1048576"})
+    int chunkSize;
+
+    private byte[] plaintext, output;
+    private byte[] nonce;
+    private Cipher cipher;
+    private SecretKeySpec key;
+    private long counter;
+
+    @Setup
+    public void setup() throws GeneralSecurityException {
+        Security.addProvider(new BouncyCastleProvider());
+        Random random = new Random(42);
+        plaintext = new byte[StreamBenchmark.SIZE];
+        random.nextBytes(plaintext);
+        output = new byte[chunkSize + 32];
+        byte[] keyBytes = new byte[Container.KEY_LENGTH];
+        random.nextBytes(keyBytes);
+        if (transformation.startsWith("ChaCha20")) {
+            key = new SecretKeySpec(keyBytes, "ChaCha20");
+            cipher = Cipher.getInstance(transformation, BouncyCastleProvider.PROVIDER_NAME);
+            nonce = new byte[12];
+        } else {
+            key = new SecretKeySpec(keyBytes, "AES");
+            cipher = Cipher.getInstance(transformation);
+            nonce = new byte[transformation.contains("GCM") ? 12 : 16];
+        }
+    }
+
+    @Benchmark
+    public long sealChunks() throws GeneralSecurityException {
+        long written = 0;
+        for (int offset = 0; offset < plaintext.length; offset += chunkSize) {
+            // a fresh nonce per chunk, GCM does not allow to reuse one with the same key
+            counter++;
+            for (int i = 0; i < 8; i++) {
+                nonce[nonce.length - 1 - i] = (byte) (counter >>> (8 * i));
+            }
+            if (transformation.contains("GCM")) {
+                cipher.init(Cipher.ENCRYPT_MODE, key,
+                        new GCMParameterSpec(Container.TAG_LENGTH * 8, nonce));
+            } else {
+                cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(nonce));
+            }
+            written += cipher.doFinal(plaintext, offset,
+                    Math.min(chunkSize, plaintext.length - offset), output, 0);
+        }
+        return written;
+    }
+}
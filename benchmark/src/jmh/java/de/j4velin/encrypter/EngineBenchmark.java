@@ -0,0 +1,85 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.security.GeneralSecurityException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks encrypting into the {@link Container} format with the pipelined, parallel
+ * {@link ChunkEngine} and, for comparison, with the single threaded {@link ChunkOutputStream}.
+ * <p>
+ * Every operation processes {@link StreamBenchmark#SIZE} bytes, so MB/s = ops/s * 16.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class EngineBenchmark {
+
+    @Param({"4096", "16384", "65536", "262144", "1048576"})
+    int blockSize;
+
+    @Param({"0"})
+    int depth;
+
+    private byte[] plaintext, key;
+    private Container container;
+    private ChunkEngine.Config config;
+
+    @Setup
+    public void setup() throws GeneralSecurityException {
+        Random random = new Random(42);
+        plaintext = new byte[StreamBenchmark.SIZE];
+        random.nextBytes(plaintext);
+        key = new byte[Container.KEY_LENGTH];
+        random.nextBytes(key);
+        ChunkEngine.Config defaults = ChunkEngine.Config.defaults();
+        config = new ChunkEngine.Config(blockSize, depth > 0 ? depth : defaults.depth);
+        container = Container.create(blockSize, new byte[16], new byte[48],
+                new byte[Container.KEY_LENGTH], key, Container.COMPRESSION_NONE);
+    }
+
+    @Benchmark
+    public long chunkEngine() throws IOException {
+        NullOutputStream sink = new NullOutputStream();
+        ChunkEngine.encrypter(container, key, config)
+                .run(Channels.newChannel(new ByteArrayInputStream(plaintext)), sink, null);
+        return sink.written;
+    }
+
+    @Benchmark
+    public long chunkOutputStream() throws IOException {
+        NullOutputStream sink = new NullOutputStream();
+        OutputStream out = new ChunkOutputStream(sink, new ChunkCipher(container, key));
+        out.write(plaintext);
+        out.close();
+        return sink.written;
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Sink which discards everything written to it, usable as stream and as channel
+ */
+class NullOutputStream extends OutputStream implements WritableByteChannel {
+
+    long written;
+
+    @Override
+    public void write(int b) {
+        written++;
+    }
+
+    @Override
+    public void write(final byte[] b, int off, int len) {
+        written += len;
+    }
+
+    @Override
+    public int write(final ByteBuffer src) {
+        int n = src.remaining();
+        src.position(src.limit());
+        written += n;
+        return n;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return true;
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the ingest of many small files, as CryptoService encrypts them: one
+ * {@link Container} file per plaintext in the sharded layout of BlobStore, or one member per
+ * plaintext in a single {@link Pack}, committed after every member.
+ * <p>
+ * The plaintexts are between 256 bytes and 16 KB, like scanned receipts and notes. Every
+ * operation ingests all of them into an empty directory. The space the files take on a file
+ * system with 4 KB blocks is printed after each iteration.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class PackBenchmark {
+
+    private final static int BLOCK = 4096;
+
+    @Param({"10000"})
+    int files;
+
+    @Param({"BLOB", "PACK"})
+    String format;
+
+    private byte[][] plaintexts;
+    private byte[] masterKey;
+    private File dir;
+    private int iteration;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        plaintexts = new byte[files][];
+        for (int i = 0; i < files; i++) {
+            plaintexts[i] = new byte[256 + random.nextInt(16 * 1024 - 256)];
+            random.nextBytes(plaintexts[i]);
+        }
+        masterKey = new byte[Container.KEY_LENGTH];
+        random.nextBytes(masterKey);
+    }
+
+    @Setup(Level.Invocation)
+    public void createDirectory() throws IOException {
+        dir = File.createTempFile("ingest", "");
+        if (!dir.delete() || !dir.mkdir()) {
+            throw new IOException("Can not create " + dir);
+        }
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteDirectory() {
+        long[] usage = new long[2];
+        delete(dir, usage);
+        System.out.println(String.format(Locale.US, "%n%s #%d: %d files, %d KB allocated",
+                format, ++iteration, usage[0], usage[1] / 1024));
+    }
+
+    private static void delete(final File file, final long[] usage) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child, usage);
+            }
+        } else {
+            usage[0]++;
+            usage[1] += (file.length() + BLOCK - 1) / BLOCK * BLOCK;
+        }
+        file.delete();
+    }
+
+    @Benchmark
+    public long ingest() throws IOException, GeneralSecurityException {
+        return "PACK".equals(format) ? pack() : blobs();
+    }
+
+    /**
+     * The same steps as CryptoService#encrypt for a small file: a new data key, the header and
+     * a single chunk per file
+     */
+    private long blobs() throws IOException, GeneralSecurityException {
+        SecureRandom random = new SecureRandom();
+        byte[] dataKey = new byte[Container.KEY_LENGTH];
+        byte[] sealed = new byte[Container.DEFAULT_CHUNK_SIZE + Container.TAG_LENGTH];
+        long written = 0;
+        for (int i = 0; i < files; i++) {
+            File shard = new File(dir, String.format(Locale.US, "%02x", i & 0xff));
+            if (!shard.isDirectory() && !shard.mkdir()) {
+                throw new IOException("Can not create " + shard);
+            }
+            random.nextBytes(dataKey);
+            Container container = Container.create(Container.DEFAULT_CHUNK_SIZE, new byte[16],
+                    new byte[48], masterKey, dataKey, Container.COMPRESSION_NONE);
+            int length = new ChunkCipher(container, dataKey)
+                    .seal(0, true, plaintexts[i], plaintexts[i].length, sealed);
+            try (FileChannel out = new RandomAccessFile(
+                    new File(shard, Integer.toHexString(i) + ".enc"), "rw").getChannel()) {
+                container.write(out);
+                ByteBuffer buffer = ByteBuffer.wrap(sealed, 0, length);
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+                written += out.size();
+            }
+        }
+        return written;
+    }
+
+    /**
+     * The same steps as CryptoService#encryptIntoPack: every member is appended and committed
+     * on its own
+     */
+    private long pack() throws IOException, GeneralSecurityException {
+        byte[] dataKey = new byte[Container.KEY_LENGTH];
+        new SecureRandom().nextBytes(dataKey);
+        Container container = Container.create(Pack.MAX_MEMBER_SIZE, new byte[16],
+                new byte[48], masterKey, dataKey, Container.COMPRESSION_NONE);
+        try (Pack pack = Pack.create(new File(dir, "0.pack"), container, dataKey)) {
+            for (byte[] plaintext : plaintexts) {
+                pack.append(plaintext, plaintext.length);
+                pack.commit();
+            }
+            return pack.size();
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.CipherOutputStream;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Benchmarks the stream based transfer: the copy loop of {@code CryptoService} and the
+ * CipherInputStream/CipherOutputStream wrapping used for files in the legacy CBC format.
+ * <p>
+ * Every operation processes {@link #SIZE} bytes, so MB/s = ops/s * 16.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class StreamBenchmark {
+
+    final static int SIZE = 16 * 1024 * 1024;
+
+    @Param({"4096", "16384", "65536", "262144", "1048576"})
+    int bufferSize;
+
+    private byte[] plaintext, ciphertext;
+    private SecretKeySpec key;
+    private IvParameterSpec iv;
+
+    @Setup
+    public void setup() throws GeneralSecurityException {
+        Random random = new Random(42);
+        plaintext = new byte[SIZE];
+        random.nextBytes(plaintext);
+        byte[] keyBytes = new byte[Container.KEY_LENGTH];
+        random.nextBytes(keyBytes);
+        key = new SecretKeySpec(keyBytes, "AES");
+        byte[] ivBytes = new byte[16];
+        random.nextBytes(ivBytes);
+        iv = new IvParameterSpec(ivBytes);
+        ciphertext = cbc(Cipher.ENCRYPT_MODE).doFinal(plaintext);
+    }
+
+    private Cipher cbc(final int mode) throws GeneralSecurityException {
+        Cipher c = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        c.init(mode, key, iv);
+        return c;
+    }
+
+    /**
+     * The copy loop of {@code CryptoService} for legacy files
+     */
+    private long copy(final InputStream in, final OutputStream out) throws IOException {
+        byte[] buffer = new byte[bufferSize];
+        int read;
+        long bytesRead = 0;
+        while ((read = in.read(buffer)) > 0) {
+            out.write(buffer, 0, read);
+            bytesRead += read;
+        }
+        out.flush();
+        return bytesRead;
+    }
+
+    @Benchmark
+    public long copyLoop() throws IOException {
+        return copy(new BufferedInputStream(new ByteArrayInputStream(plaintext), bufferSize),
+                new BufferedOutputStream(new NullOutputStream(), bufferSize));
+    }
+
+    @Benchmark
+    public long cipherOutputStream() throws IOException, GeneralSecurityException {
+        NullOutputStream sink = new NullOutputStream();
+        OutputStream out = new CipherOutputStream(new BufferedOutputStream(sink, bufferSize),
+                cbc(Cipher.ENCRYPT_MODE));
+        copy(new BufferedInputStream(new ByteArrayInputStream(plaintext), bufferSize), out);
+        out.close();
+        return sink.written;
+    }
+
+    @Benchmark
+    public long cipherInputStream() throws IOException, GeneralSecurityException {
+        InputStream in = new CipherInputStream(
+                new BufferedInputStream(new ByteArrayInputStream(ciphertext), bufferSize),
+                cbc(Cipher.DECRYPT_MODE));
+        return copy(in, new BufferedOutputStream(new NullOutputStream(), bufferSize));
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter;
+
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+
+public class ContainerTest {
+
+    private static byte[] key(final long seed) {
+        byte[] key = new byte[Container.KEY_LENGTH];
+        new Random(seed).nextBytes(key);
+        return key;
+    }
+
+    @Test
+    public void unwrapsDataKey() throws IOException, GeneralSecurityException {
+        byte[] masterKey = key(1), dataKey = key(2);
+        Container container = Container.create(Container.DEFAULT_CHUNK_SIZE, new byte[16],
+                new byte[48], masterKey, dataKey, Container.COMPRESSION_DEFLATE);
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        container.write(header);
+        container = Container.read(new ByteArrayInputStream(header.toByteArray()));
+        assertEquals(Container.VERSION, container.version);
+        assertArrayEquals(dataKey, container.dataKey(masterKey));
+    }
+
+    /**
+     * Version 1 files use the master key itself, which the callers must be able to overwrite
+     * without affecting other files of the same master key
+     */
+    @Test
+    public void copiesMasterKeyOfVersion1() throws IOException, GeneralSecurityException {
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(header);
+        data.write(new byte[]{'E', 'N', 'C', 'R'});
+        data.writeByte(1);
+        data.writeInt(Container.DEFAULT_CHUNK_SIZE);
+        data.write(new byte[Container.NONCE_PREFIX_LENGTH]);
+        data.writeByte(16);
+        data.write(new byte[16]);
+        data.writeShort(48);
+        data.write(new byte[48]);
+        Container container = Container.read(
+                new BufferedInputStream(new ByteArrayInputStream(header.toByteArray())));
+        assertEquals(1, container.version);
+        assertEquals(header.size(), container.headerLength());
+
+        byte[] masterKey = key(1);
+        byte[] dataKey = container.dataKey(masterKey);
+        assertNotSame(masterKey, dataKey);
+        assertArrayEquals(masterKey, dataKey);
+        Arrays.fill(dataKey, (byte) 0);
+        assertArrayEquals(key(1), masterKey);
+    }
+}
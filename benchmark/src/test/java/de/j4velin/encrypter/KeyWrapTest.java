@@ -0,0 +1,106 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.GeneralSecurityException;
+import java.util.Random;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * The thumbnail key is unwrapped from its file after every restart of the process, so the file
+ * has to be readable without anything kept in memory.
+ */
+public class KeyWrapTest {
+
+    private File file;
+    private SecretKey wrappingKey;
+    private byte[] key;
+
+    @Before
+    public void setUp() throws IOException, GeneralSecurityException {
+        file = File.createTempFile("thumbnails", ".key");
+        KeyGenerator generator = KeyGenerator.getInstance("AES");
+        generator.init(256);
+        wrappingKey = generator.generateKey();
+        key = new byte[32];
+        new Random(22).nextBytes(key);
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void roundTrip() throws IOException, GeneralSecurityException {
+        KeyWrap.write(file, wrappingKey, key);
+        // 12 bytes IV, the key and the tag
+        assertEquals(1 + 12 + key.length + 16, file.length());
+        assertArrayEquals(key, KeyWrap.read(file, wrappingKey));
+        // a new process only has the file
+        assertArrayEquals(key, KeyWrap.read(new File(file.getPath()), wrappingKey));
+    }
+
+    @Test
+    public void replacesKey() throws IOException, GeneralSecurityException {
+        KeyWrap.write(file, wrappingKey, new byte[32]);
+        KeyWrap.write(file, wrappingKey, key);
+        assertArrayEquals(key, KeyWrap.read(file, wrappingKey));
+    }
+
+    @Test
+    public void rejectsOtherKey() throws IOException, GeneralSecurityException {
+        KeyWrap.write(file, wrappingKey, key);
+        KeyGenerator generator = KeyGenerator.getInstance("AES");
+        generator.init(256);
+        try {
+            KeyWrap.read(file, generator.generateKey());
+            fail();
+        } catch (GeneralSecurityException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void rejectsModifiedIv() throws IOException, GeneralSecurityException {
+        KeyWrap.write(file, wrappingKey, key);
+        try (RandomAccessFile f = new RandomAccessFile(file, "rw")) {
+            f.seek(1);
+            int b = f.read();
+            f.seek(1);
+            f.write(b ^ 1);
+        }
+        try {
+            KeyWrap.read(file, wrappingKey);
+            fail();
+        } catch (GeneralSecurityException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Encrypts a sparse plaintext file larger than 4 GB and decrypts it at positions beyond 2 and
+ * 4 GB, so every size and offset has to be a long. The plaintext takes almost no space, but the
+ * ciphertext is written in full.
+ */
+public class LargeFileTest {
+
+    private final static long SIZE = (1L << 32) + 3 * Container.DEFAULT_CHUNK_SIZE + 123;
+    private final static long[] MARKS = {0, (1L << 31) - 5, 1L << 32, SIZE - 8};
+    private final static byte[] MARK = "4K video".getBytes();
+
+    private File plaintext, encrypted;
+    private byte[] masterKey, dataKey;
+
+    @Before
+    public void setUp() throws IOException {
+        plaintext = File.createTempFile("large", ".bin");
+        encrypted = File.createTempFile("large", ".enc");
+        try (RandomAccessFile file = new RandomAccessFile(plaintext, "rw")) {
+            file.setLength(SIZE);
+            for (long position : MARKS) {
+                file.seek(position);
+                file.write(MARK);
+            }
+        }
+        Random random = new Random(16);
+        masterKey = new byte[Container.KEY_LENGTH];
+        dataKey = new byte[Container.KEY_LENGTH];
+        random.nextBytes(masterKey);
+        random.nextBytes(dataKey);
+    }
+
+    @After
+    public void tearDown() {
+        plaintext.delete();
+        encrypted.delete();
+    }
+
+    @Test
+    public void roundTrip() throws IOException, GeneralSecurityException {
+        Container container = Container.create(Container.DEFAULT_CHUNK_SIZE, new byte[16],
+                new byte[48], masterKey, dataKey, Container.COMPRESSION_NONE);
+        final long[] processed = new long[1];
+        try (FileChannel in = new FileInputStream(plaintext).getChannel();
+             FileChannel out = new RandomAccessFile(encrypted, "rw").getChannel()) {
+            container.write(out);
+            ChunkEngine.encrypter(container, dataKey, ChunkEngine.Config.defaults())
+                    .run(in, out, new ChunkEngine.ProgressListener() {
+                        @Override
+                        public void progress(final long bytes) {
+                            processed[0] = bytes;
+                        }
+                    });
+        }
+        assertEquals(SIZE, processed[0]);
+        long chunks = (SIZE + container.chunkSize - 1) / container.chunkSize;
+        assertEquals(container.chunkOffset(chunks - 1) + SIZE % container.chunkSize +
+                Container.TAG_LENGTH, encrypted.length());
+
+        container = readContainer();
+        for (long position : MARKS) {
+            assertArrayEquals("at " + position, MARK, read(container, position, MARK.length));
+        }
+        // the zeros between the marks
+        assertArrayEquals(new byte[100],
+                read(container, (1L << 32) + MARK.length, 100));
+
+        // the engine starts at the chunk containing the offset
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (FileChannel in = new FileInputStream(encrypted).getChannel()) {
+            in.position(container.headerLength());
+            ChunkEngine.decrypter(container, dataKey, in.size(), 1L << 32,
+                    ChunkEngine.Config.defaults()).run(in, Channels.newChannel(out), null);
+        }
+        byte[] tail = out.toByteArray();
+        assertEquals(SIZE - (1L << 32), tail.length);
+        assertArrayEquals(MARK, Arrays.copyOfRange(tail, 0, MARK.length));
+        assertArrayEquals(MARK, Arrays.copyOfRange(tail, tail.length - MARK.length,
+                tail.length));
+    }
+
+    private Container readContainer() throws IOException, GeneralSecurityException {
+        try (FileInputStream in = new FileInputStream(encrypted)) {
+            Container container = Container.read(in);
+            assertArrayEquals(dataKey, container.dataKey(masterKey));
+            return container;
+        }
+    }
+
+    /**
+     * Decrypts a range chunk by chunk, like EncryptedMediaDataSource does
+     */
+    private byte[] read(final Container container, final long position, final int length)
+            throws IOException, GeneralSecurityException {
+        ChunkCipher cipher = new ChunkCipher(container, dataKey);
+        long chunks = (SIZE + container.chunkSize - 1) / container.chunkSize;
+        int skip = (int) (position % container.chunkSize);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (FileChannel in = new FileInputStream(encrypted).getChannel()) {
+            for (long chunk = position / container.chunkSize; out.size() < skip + length;
+                 chunk++) {
+                boolean last = chunk == chunks - 1;
+                long offset = container.chunkOffset(chunk);
+                ByteBuffer frame = ByteBuffer.allocate(last ? (int) (in.size() - offset) :
+                        container.frameLength());
+                while (frame.hasRemaining()) {
+                    if (in.read(frame, offset + frame.position()) < 0) {
+                        throw new EOFException();
+                    }
+                }
+                frame.flip();
+                ByteBuffer plaintext = ByteBuffer.allocate(container.chunkSize);
+                cipher.open(chunk, last, frame, plaintext);
+                out.write(plaintext.array(), 0, plaintext.position());
+            }
+        }
+        return Arrays.copyOfRange(out.toByteArray(), skip, skip + length);
+    }
+}
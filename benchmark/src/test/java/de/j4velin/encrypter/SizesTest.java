@@ -0,0 +1,74 @@
+/*
+ * Copyright 2016 Thomas Hoffmann
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.j4velin.encrypter;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class SizesTest {
+
+    private final static long GB = 1024L * 1024 * 1024;
+    /**
+     * The overhead of a small encrypted file: header and one tag
+     */
+    private final static long OVERHEAD = 200;
+
+    /**
+     * @return the size as stored by versions before 64 bit sizes
+     */
+    private static long asInt(final long size) {
+        return (int) size;
+    }
+
+    @Test
+    public void keepsPlausibleSizes() {
+        assertEquals(0, Sizes.repair(0, OVERHEAD));
+        assertEquals(1000, Sizes.repair(1000, 1000 + OVERHEAD));
+        assertEquals(GB, Sizes.repair(GB, GB + 16 * 1024 + OVERHEAD));
+        assertEquals(5 * GB, Sizes.repair(5 * GB, 5 * GB + 80 * 1024 * 16));
+    }
+
+    @Test
+    public void keepsUnknownSizes() {
+        assertEquals(-1, Sizes.repair(-1, 100));
+        // -1 is also a 4 GB - 1 file stored as int, which can not be told apart
+        assertEquals(-1, Sizes.repair(-1, 3 * GB));
+        assertEquals(-1, Sizes.repair(-1, 4 * GB + OVERHEAD));
+    }
+
+    @Test
+    public void repairsOverflownSizes() {
+        for (long size : new long[]{2 * GB, 3 * GB, 4 * GB, 4 * GB + 1, 7 * GB + 12345,
+                17 * GB}) {
+            // up to 16 bytes tag per 64 KB chunk
+            long length = size + size / (64 * 1024) * 16 + OVERHEAD;
+            assertEquals(size, Sizes.repair(asInt(size), length));
+        }
+    }
+
+    @Test
+    public void formatsInLargestUnit() {
+        assertEquals("0 Bytes", Sizes.format(0));
+        assertEquals("1023 Bytes", Sizes.format(1023));
+        assertEquals("1 KB", Sizes.format(1024));
+        assertEquals("1023 KB", Sizes.format(1024 * 1024 - 1));
+        assertEquals("1 MB", Sizes.format(1024 * 1024));
+        assertEquals("2 GB", Sizes.format(2 * GB));
+        assertEquals("3 GB", Sizes.format(3 * GB + 500 * 1024 * 1024));
+        assertEquals("4096 GB", Sizes.format(4096 * GB));
+    }
+}